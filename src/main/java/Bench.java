@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.lang.ref.Reference;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Times a LogFileParser implementation over the same files a bunch of times,
+ * for LogTop -c.  The first few runs are thrown away so that the JIT has a
+ * chance to finish with our code before we start believing the numbers; for
+ * the rest, we keep the wall time of each run, the bytes this thread
+ * allocated, and the collections the GC did, and report the median and p95
+ * wall time, bytes allocated per line, and GC counts & time per run.  Once
+ * they're done, we GC and see how much heap the last run's parser is
+ * holding on to.
+ *
+ * <p>A new parser is used for each run, and everything happens on the
+ * calling thread, since that's the one whose allocations we can count.
+ */
+public class Bench {
+
+    /**
+     * Makes a new, configured parser for each run.
+     */
+    public interface ParserFactory {
+        LogFileParser newParser();
+    }
+
+    /**
+     * @param warmups how many runs to throw away first.
+     * @param runs how many runs to measure; must be at least 1.
+     */
+    public Bench(int warmups, int runs) {
+        if ((warmups < 0) || (runs < 1)) {
+            throw new IllegalArgumentException("bad warmups/runs " + warmups + "/" + runs);
+        }
+        this.warmups = warmups;
+        this.runs = runs;
+    }
+
+    /**
+     * Runs the parsers from the given factory over the given files, and
+     * returns what happened.
+     *
+     * @param name what to call this in the report.
+     * @param topHowMany passed to getSummary().
+     * @param includeSeconds passed to LogTop.summariesToString().
+     */
+    public Result run(String name, ParserFactory factory, List<String> paths,
+                      int topHowMany, boolean includeSeconds) throws IOException {
+        Result rv = new Result(name, runs);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        //  getThreadAllocatedBytes() isn't standard, but HotSpot has it.
+        com.sun.management.ThreadMXBean allocs =
+                (threads instanceof com.sun.management.ThreadMXBean) ?
+                        (com.sun.management.ThreadMXBean)threads : null;
+        if ((allocs != null) && !allocs.isThreadAllocatedMemorySupported()) allocs = null;
+        if (allocs != null) allocs.setThreadAllocatedMemoryEnabled(true);
+        long threadID = Thread.currentThread().getId();
+        List<GarbageCollectorMXBean> gcs = ManagementFactory.getGarbageCollectorMXBeans();
+
+        LogFileParser lfp = null;
+        for (int ii = -warmups; ii < runs; ++ii) {
+            //  Don't let the last run's parser (or garbage) count against
+            //  this one.
+            lfp = null;
+            if (ii >= 0) collect();
+            long gcCount = 0;
+            long gcMs = 0;
+            for (GarbageCollectorMXBean gc : gcs) {
+                gcCount -= Math.max(gc.getCollectionCount(), 0);
+                gcMs -= Math.max(gc.getCollectionTime(), 0);
+            }
+            long allocated = (allocs == null) ? 0 : -allocs.getThreadAllocatedBytes(threadID);
+            long start = System.nanoTime();
+
+            lfp = factory.newParser();
+            lfp.processEverything(paths);
+            String summary = LogTop.summariesToString(lfp, topHowMany,
+                    includeSeconds);
+
+            long elapsed = System.nanoTime() - start;
+            if (allocs != null) allocated += allocs.getThreadAllocatedBytes(threadID);
+            for (GarbageCollectorMXBean gc : gcs) {
+                gcCount += Math.max(gc.getCollectionCount(), 0);
+                gcMs += Math.max(gc.getCollectionTime(), 0);
+            }
+            lfp.getDiagnostics().close();
+            if (ii < 0) continue;
+
+            rv.wallNs[ii] = elapsed;
+            rv.allocatedBytes = (allocs == null) ? -1 : rv.allocatedBytes + allocated;
+            rv.gcCount += gcCount;
+            rv.gcMs += gcMs;
+            rv.lines += lfp.getLinesRead();
+            if ((rv.summary != null) && !rv.summary.equals(summary)) {
+                //  Same files, same parser, different answer?  Somebody's
+                //  keeping state they shouldn't be.
+                throw new IllegalStateException(name + " said something " +
+                        "different on run " + ii + ":\n\n" + summary +
+                        "\nthan it did before:\n\n" + rv.summary);
+            }
+            rv.summary = summary;
+        }
+
+        //  What's still around with the last parser alive, minus what's
+        //  around without it.
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        collect();
+        rv.retainedBytes = memory.getHeapMemoryUsage().getUsed();
+        Reference.reachabilityFence(lfp);
+        lfp = null;
+        collect();
+        rv.retainedBytes -= memory.getHeapMemoryUsage().getUsed();
+        return rv;
+    }
+
+    /**
+     * System.gc() is only a suggestion, so we ask a few times.
+     */
+    private static void collect() {
+        for (int ii = 0; ii < 3; ++ii) System.gc();
+    }
+
+    /**
+     * What run() found out.
+     */
+    public static class Result {
+        Result(String name, int runs) {
+            this.name = name;
+            wallNs = new long[runs];
+        }
+
+        /**
+         * Returns the median wall time of the measured runs, in ms.
+         */
+        public double getMedianMs() {
+            return percentileMs(50);
+        }
+
+        /**
+         * Returns the 95th percentile wall time of the measured runs, in ms
+         * (which, unless you did a lot of runs, is the slowest one).
+         */
+        public double getP95Ms() {
+            return percentileMs(95);
+        }
+
+        private double percentileMs(double percentile) {
+            long[] sorted = wallNs.clone();
+            Arrays.sort(sorted);
+            int index = (int)Math.ceil(percentile * sorted.length / 100.0) - 1;
+            return sorted[Math.max(index, 0)] / 1e6;
+        }
+
+        /**
+         * Returns how many bytes were allocated per line read, or -1 if the
+         * JVM won't tell us.
+         */
+        public double getBytesPerLine() {
+            if (allocatedBytes < 0) return -1;
+            return (lines == 0) ? 0 : (double)allocatedBytes / lines;
+        }
+
+        /**
+         * Returns what the parser said, which was the same every time.
+         */
+        public String getSummary() {
+            return summary;
+        }
+
+        public void print(PrintStream out) {
+            int runs = wallNs.length;
+            out.println(name + ", " + runs + " runs, " + (lines / runs) +
+                    " lines each:");
+            out.println(String.format("    wall time: median %.1f ms, p95 %.1f ms",
+                    getMedianMs(), getP95Ms()));
+            if (allocatedBytes < 0) {
+                out.println("    allocated: unknown");
+            } else {
+                out.println(String.format("    allocated: %.1f bytes/line",
+                        getBytesPerLine()));
+            }
+            out.println(String.format("    GC: %.1f collections, %.1f ms per run",
+                    (double)gcCount / runs, (double)gcMs / runs));
+            out.println(String.format("    retained heap: %.1f MB",
+                    retainedBytes / (1024.0 * 1024.0)));
+        }
+
+        final String name;
+        final long[] wallNs;
+        //  totals over the measured runs; -1 if we can't tell
+        long allocatedBytes = 0;
+        long gcCount = 0;
+        long gcMs = 0;
+        long lines = 0;
+        long retainedBytes = 0;
+        String summary;
+    }
+
+    private final int warmups;
+    private final int runs;
+}
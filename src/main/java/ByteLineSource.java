@@ -0,0 +1,188 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A LineSource which reads the raw bytes of a file into a big buffer and
+ * finds the line ends itself, instead of decoding everything into Strings
+ * through a Reader.  Each line is handed out as a CharSequence view of the
+ * buffer (one byte per char, so this is for ASCII-ish logs), which the
+ * LineFormats can scan without anybody creating a String for it.
+ *
+ * <p>The newlines are found a byte at a time.  I tried doing it eight bytes
+ * at a time (the "does this word contain a zero byte" bit trick), but on
+ * the 290 MB log in the README it was no faster, and sometimes slower:
+ * what this class buys you is not making a String for every line, and
+ * parsing the lines costs a lot more than finding them.
+ *
+ * <p>Lines end with '\n'; a '\r' right before it is dropped.  (Unlike
+ * BufferedReader, a '\r' by itself doesn't end a line.)
+ */
+public class ByteLineSource implements LineSource {
+
+    static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    public ByteLineSource(File file) throws IOException {
+        this(file, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * For testing with silly little buffers.
+     */
+    ByteLineSource(File file, int bufferSize) throws IOException {
+        this(file, 0, Long.MAX_VALUE, bufferSize);
+    }
+
+    /**
+     * Only reads the bytes from offset from up to (but not including) offset
+     * to, which should both be the starts of lines (or the end of the file);
+     * see TimeIndex.
+     */
+    public ByteLineSource(File file, long from, long to) throws IOException {
+        this(file, from, to, DEFAULT_BUFFER_SIZE);
+    }
+
+    ByteLineSource(File file, long from, long to, int bufferSize)
+            throws IOException {
+        channel = new FileInputStream(file).getChannel();
+        channel.position(from);
+        bufferOffset = from;
+        remaining = to - from;
+        buf = new byte[Math.max(bufferSize, 16)];
+    }
+
+    @Override
+    public CharSequence nextLine() throws IOException {
+        while (true) {
+            int nl = findNewline(buf, scanned, limit);
+            if (nl >= 0) {
+                int end = nl;
+                if ((end > start) && (buf[end - 1] == '\r')) --end;
+                line.set(buf, start, end - start);
+                lineOffset = bufferOffset + start;
+                start = scanned = nl + 1;
+                return line;
+            }
+            scanned = limit;
+            if (eof) {
+                if (start == limit) return null;
+                //  last line, with no newline at the end
+                int end = limit;
+                if ((end > start) && (buf[end - 1] == '\r')) --end;
+                line.set(buf, start, end - start);
+                lineOffset = bufferOffset + start;
+                start = scanned = limit;
+                return line;
+            }
+            fill();
+        }
+    }
+
+    /**
+     * Returns where in the file the line nextLine() last returned starts.
+     */
+    public long getLineOffset() {
+        return lineOffset;
+    }
+
+    /**
+     * Moves the partial line at the end of the buffer to the start, and reads
+     * more after it (growing the buffer if the partial line fills it).
+     */
+    private void fill() throws IOException {
+        int partial = limit - start;
+        if (partial == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        } else if (start > 0) {
+            System.arraycopy(buf, start, buf, 0, partial);
+        }
+        bufferOffset += start;
+        start = 0;
+        scanned = partial;
+        limit = partial;
+        ByteBuffer tb = ByteBuffer.wrap(buf, limit,
+                (int)Math.min(buf.length - limit, remaining));
+        int got = (remaining == 0) ? -1 : channel.read(tb);
+        if (got < 0) {
+            eof = true;
+        } else {
+            limit += got;
+            remaining -= got;
+        }
+    }
+
+    /**
+     * Returns the index of the first '\n' in [from, to) of the given buffer,
+     * or -1.
+     */
+    static int findNewline(byte[] buf, int from, int to) {
+        for (int ii = from; ii < to; ++ii) {
+            if (buf[ii] == '\n') return ii;
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * A line in our buffer, pretending to be a String.
+     */
+    static final class Line implements CharSequence {
+        void set(byte[] buf, int off, int len) {
+            this.buf = buf;
+            this.off = off;
+            this.len = len;
+        }
+
+        @Override
+        public int length() {
+            return len;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return (char)(buf[off + index] & 0xff);
+        }
+
+        /**
+         * Returns a String, not a view, since the only reason anybody calls
+         * this is to hang on to a piece of the line (like the user ID).
+         */
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return new String(buf, off + start, end - start, StandardCharsets.ISO_8859_1);
+        }
+
+        @Override
+        public String toString() {
+            return new String(buf, off, len, StandardCharsets.ISO_8859_1);
+        }
+
+        private byte[] buf;
+        private int off;
+        private int len;
+    }
+
+    private final FileChannel channel;
+    private final Line line = new Line();
+    private byte[] buf;
+    //  The current line starts at start; we've looked for newlines up to
+    //  scanned, and there's file data up to limit.
+    private int start = 0;
+    private int scanned = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    //  where buf[0] is in the file, and how much more of the file we're
+    //  supposed to read
+    private long bufferOffset;
+    private long remaining;
+    //  see getLineOffset()
+    private long lineOffset = 0;
+}
@@ -0,0 +1,233 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Where complaints about log lines go, instead of straight to System.err.
+ *
+ * <p>Every report() bumps a counter for its reason, and the first few reports
+ * for each reason are kept as samples; that's cheap enough to always do.  If
+ * we're verbose, every report is also queued up for a background thread to
+ * print, so that the thread doing the parsing never waits on a synchronized
+ * stream.  The queue has a fixed size; if the printing thread can't keep up,
+ * reports which don't fit are dropped (and counted), rather than slowing
+ * down the parse.
+ *
+ * <p>report() may be called from any thread.
+ */
+public class Diagnostics {
+
+    /**
+     * The line wasn't a user request (see LineFormat.NOT_A_REQUEST).
+     */
+    public static final int NOT_A_REQUEST = 0;
+    /**
+     * The line looked like a user request, but we couldn't make sense of its
+     * timestamp (see LineFormat.BAD_TIMESTAMP).
+     */
+    public static final int BAD_TIMESTAMP = 1;
+    /**
+     * The line was a user request, but the parser couldn't use it (like when
+     * LogServer gets one which is too far out of order).
+     */
+    public static final int DROPPED_REQUEST = 2;
+    /**
+     * Not a problem with a line, just something you might want to know, like
+     * which file we're on.
+     */
+    public static final int INFO = 3;
+
+    private static final String[] REASONS = {
+            "ignoring", "couldn't parse timestamp in", "dropped", "info" };
+
+    public static final int DEFAULT_SAMPLES = 5;
+    public static final int DEFAULT_QUEUE_SIZE = 8192;
+
+    /**
+     * @param out where verbose output and the summary go.
+     * @param verbose if false, we just count and keep samples.
+     */
+    public Diagnostics(PrintStream out, boolean verbose) {
+        this(out, verbose, DEFAULT_SAMPLES, DEFAULT_QUEUE_SIZE);
+    }
+
+    /**
+     * @param samplesPerReason how many reports of each reason to keep.
+     * @param queueSize how many reports can be waiting to be printed before
+     *                  we start dropping them.
+     */
+    public Diagnostics(PrintStream out, boolean verbose, int samplesPerReason,
+                       int queueSize) {
+        this.out = out;
+        this.samplesPerReason = samplesPerReason;
+        for (int ii = 0; ii < REASONS.length; ++ii) samples.add(new ArrayList<Message>());
+        if (verbose) {
+            queue = new ArrayBlockingQueue<>(queueSize);
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            }, "Diagnostics");
+            writer.setDaemon(true);
+            writer.start();
+        } else {
+            queue = null;
+            writer = null;
+        }
+    }
+
+    /**
+     * Reports something.  All this does on the calling thread is bump a
+     * counter, and, if we're going to keep or print the report, copy the
+     * text (which is usually a line buffer that's about to be reused) and
+     * wrap it in a little Message; the line the Message turns into isn't put
+     * together until the background thread prints it, or somebody asks for
+     * the samples.  Callers which have to build the text (rather than
+     * passing a line they've already got) should check isVerbose() first,
+     * if it's only of interest when we're verbose.
+     *
+     * @param reason NOT_A_REQUEST, BAD_TIMESTAMP, DROPPED_REQUEST, or INFO.
+     * @param file the name of the file we were reading, or null.
+     * @param line the line number in that file, or 0.
+     * @param text the offending line, or the message.
+     */
+    public void report(int reason, String file, int line, CharSequence text) {
+        long count = counts.incrementAndGet(reason);
+        boolean sample = (count <= samplesPerReason);
+        if (!sample && (queue == null)) return;
+        Message msg = new Message(reason, file, line, text.toString());
+        if (sample) {
+            List<Message> tl = samples.get(reason);
+            synchronized (tl) {
+                tl.add(msg);
+            }
+        }
+        if ((queue != null) && !queue.offer(msg)) dropped.incrementAndGet();
+    }
+
+    /**
+     * Prints something which is worth saying even if nobody asked us to be
+     * verbose, like an index file we couldn't read: straight to our stream,
+     * right now, on the calling thread, so don't use this for anything that
+     * happens once a line.  It's counted as INFO.
+     */
+    public void warn(String message) {
+        counts.incrementAndGet(INFO);
+        out.println(message);
+    }
+
+    /**
+     * Returns true if reports are being printed, and not just counted.
+     */
+    public boolean isVerbose() {
+        return queue != null;
+    }
+
+    /**
+     * Returns how many times the given reason has been reported.
+     */
+    public long getCount(int reason) {
+        return counts.get(reason);
+    }
+
+    /**
+     * Returns the first few reports of the given reason, as printed.
+     */
+    public List<String> getSamples(int reason) {
+        List<Message> tl = samples.get(reason);
+        List<String> rv = new ArrayList<>();
+        synchronized (tl) {
+            for (Message msg : tl) rv.add(msg.toString());
+        }
+        return rv;
+    }
+
+    /**
+     * Returns how many reports didn't get printed because the queue was full.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * If we're verbose, waits for everything in the queue to be printed, and
+     * then prints a summary of the counts & samples.  Don't report() anything
+     * after calling this.
+     */
+    public void close() {
+        if (writer == null) return;
+        try {
+            queue.put(STOP);
+            writer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        printSummary(out);
+    }
+
+    /**
+     * Prints the number of reports for each reason (other than INFO), with
+     * their samples.
+     */
+    public void printSummary(PrintStream ps) {
+        for (int reason = 0; reason < INFO; ++reason) {
+            long count = counts.get(reason);
+            if (count == 0) continue;
+            ps.println(count + " x " + REASONS[reason] + ", for example:");
+            for (String ts : getSamples(reason)) ps.println("    " + ts);
+        }
+        if (dropped.get() > 0) {
+            ps.println(dropped.get() + " messages not printed because we " +
+                    "couldn't keep up");
+        }
+    }
+
+    /**
+     * The background thread.
+     */
+    private void drain() {
+        try {
+            Message msg;
+            while ((msg = queue.take()) != STOP) out.println(msg);
+        } catch (InterruptedException ie) {
+            //  just go away
+        }
+        out.flush();
+    }
+
+    private static class Message {
+        Message(int reason, String file, int line, String text) {
+            this.reason = reason;
+            this.file = file;
+            this.line = line;
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            if (reason == INFO) {
+                return (file == null) ? text : (file + ": " + text);
+            }
+            return file + " " + line + ": " + REASONS[reason] + " " + text;
+        }
+
+        final int reason;
+        final String file;
+        final int line;
+        final String text;
+    }
+    private static final Message STOP = new Message(INFO, null, 0, "");
+
+    private final PrintStream out;
+    private final int samplesPerReason;
+    private final AtomicLongArray counts = new AtomicLongArray(REASONS.length);
+    private final List<List<Message>> samples = new ArrayList<>();
+    private final AtomicLong dropped = new AtomicLong();
+    //  null if we're not verbose
+    private final ArrayBlockingQueue<Message> queue;
+    private final Thread writer;
+}
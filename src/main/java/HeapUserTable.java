@@ -0,0 +1,79 @@
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The UserTable ReorderingFileParser has always had: a map of User objects,
+ * each of which is its own lock.
+ */
+public class HeapUserTable implements UserTable {
+
+    @Override
+    public void update(String id, LineParser.Context ct, Updater updater) {
+        //  get() & put() instead of putIfAbsent() because only one thread
+        //  ever adds users, and this way we don't create a User per request.
+        ReorderingFileParser.User user = users.get(id);
+        if (user == null) {
+            user = new ReorderingFileParser.User(id);
+            users.put(id, user);
+        }
+        //  Only one thread ever gets in here, but a Snapshot may be reading
+        //  this User on another.
+        synchronized (user) {
+            updater.update(user, ct);
+        }
+    }
+
+    @Override
+    public void add(ReorderingFileParser.User user) {
+        users.put(user.id, user);
+    }
+
+    @Override
+    public boolean keepsSketches() {
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return users.size();
+    }
+
+    @Override
+    public Snapshot snapshot() {
+        final ArrayList<ReorderingFileParser.User> all = new ArrayList<>(users.values());
+        return new Snapshot() {
+            @Override
+            public int size() {
+                return all.size();
+            }
+
+            @Override
+            public int pages(int index) {
+                return all.get(index).pages;
+            }
+
+            @Override
+            public String id(int index) {
+                return all.get(index).id;
+            }
+
+            @Override
+            public void read(int index, ReorderingFileParser.User into, boolean histograms) {
+                ReorderingFileParser.User user = all.get(index);
+                synchronized (user) {
+                    into.copyFrom(user, histograms);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+        users.clear();
+    }
+
+    //  Concurrent so that a Snapshot can be taken while another thread is in
+    //  update(); see LogServer.
+    private final ConcurrentHashMap<String, ReorderingFileParser.User> users =
+            new ConcurrentHashMap<>();
+}
@@ -0,0 +1,165 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Counts of non-negative ints, for getting percentiles out of without keeping
+ * every value around.  This is the HdrHistogram idea, cut down to what we
+ * need: values below 64 get a bucket each, and above that, each power of two
+ * is split into 32 buckets, so a value is only ever off by less than 1/32
+ * (about 3%).  That's at most 864 buckets for the whole int range.
+ *
+ * <p>The bucket array only grows as far as the biggest value recorded, so
+ * a histogram of pages per session (which are mostly small) is a lot smaller
+ * than that.  record() is O(1), and two histograms can be add()ed together,
+ * which is how ReorderingFileParser combines the sessions it's finished with
+ * the ones which are still going.
+ *
+ * <p>Not thread-safe.
+ */
+public class Histogram {
+
+    private static final int SUB_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    //  values below this get their own buckets
+    private static final int EXACT = 2 * SUB_BUCKETS;
+    private static final int MAX_BUCKETS = bucketFor(Integer.MAX_VALUE) + 1;
+
+    public Histogram() {
+    }
+
+    /**
+     * Counts one more of the given value.
+     *
+     * @param value must not be negative.
+     */
+    public void record(int value) {
+        record(value, 1);
+    }
+
+    /**
+     * Counts count more of the given value.
+     *
+     * @param value must not be negative.
+     * @param count must not be negative.
+     */
+    public void record(int value, long count) {
+        if (value < 0) throw new IllegalArgumentException("negative value " + value);
+        if (count < 0) throw new IllegalArgumentException("negative count " + count);
+        int bucket = bucketFor(value);
+        if (bucket >= counts.length) {
+            counts = Arrays.copyOf(counts,
+                    Math.min(Math.max(bucket + 1, counts.length * 2), MAX_BUCKETS));
+        }
+        counts[bucket] += count;
+        total += count;
+        if ((count > 0) && (value > max)) max = value;
+    }
+
+    /**
+     * Adds all of other's counts to ours.
+     */
+    public void add(Histogram other) {
+        if (other.counts.length > counts.length) {
+            counts = Arrays.copyOf(counts, other.counts.length);
+        }
+        for (int ii = 0; ii < other.counts.length; ++ii) counts[ii] += other.counts[ii];
+        total += other.total;
+        if (other.max > max) max = other.max;
+    }
+
+    /**
+     * Returns a new Histogram with the same counts as this one.
+     */
+    public Histogram copy() {
+        Histogram rv = new Histogram();
+        rv.add(this);
+        return rv;
+    }
+
+    /**
+     * Returns how many values have been recorded.
+     */
+    public long getCount() {
+        return total;
+    }
+
+    /**
+     * Returns the biggest value recorded, or 0 if none have been.
+     */
+    public int getMax() {
+        return max;
+    }
+
+    /**
+     * Returns the value which the given percentage of the recorded values are
+     * at or below.  (More precisely, the highest value in the bucket where
+     * that happens, but never more than getMax(); so this is exact for small
+     * values, and within about 3% for big ones.)
+     *
+     * @param percentile 0 to 100.
+     * @return 0 if nothing has been recorded.
+     */
+    public int getValueAtPercentile(double percentile) {
+        if (total == 0) return 0;
+        long want = (long)Math.ceil(percentile * total / 100.0);
+        if (want < 1) want = 1;
+        long seen = 0;
+        for (int ii = 0; ii < counts.length; ++ii) {
+            seen += counts[ii];
+            if (seen >= want) return (int)Math.min(highestValueIn(ii), max);
+        }
+        return max;
+    }
+
+    /**
+     * Writes this to the given stream, for read() to read back.
+     */
+    public void write(DataOutput out) throws IOException {
+        int used = counts.length;
+        while ((used > 0) && (counts[used - 1] == 0)) --used;
+        out.writeInt(used);
+        for (int ii = 0; ii < used; ++ii) out.writeLong(counts[ii]);
+        out.writeInt(max);
+    }
+
+    /**
+     * Reads what write() wrote.
+     *
+     * @throws IOException if it doesn't look like a Histogram.
+     */
+    public static Histogram read(DataInput in) throws IOException {
+        int used = in.readInt();
+        if ((used < 0) || (used > MAX_BUCKETS)) {
+            throw new IOException("bad histogram bucket count " + used);
+        }
+        Histogram rv = new Histogram();
+        rv.counts = new long[used];
+        for (int ii = 0; ii < used; ++ii) {
+            rv.counts[ii] = in.readLong();
+            rv.total += rv.counts[ii];
+        }
+        rv.max = in.readInt();
+        return rv;
+    }
+
+    static int bucketFor(int value) {
+        if (value < EXACT) return value;
+        //  how far we have to shift the value to get it down to SUB_BITS + 1
+        //  bits, which is the top bit (always 1) and SUB_BITS more
+        int shift = (31 - Integer.numberOfLeadingZeros(value)) - SUB_BITS;
+        return (shift << SUB_BITS) + (value >>> shift);
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < EXACT) return bucket;
+        int shift = (bucket >> SUB_BITS) - 1;
+        long top = (bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    private long[] counts = new long[0];
+    private long total = 0;
+    private int max = 0;
+}
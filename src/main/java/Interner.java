@@ -0,0 +1,68 @@
+/**
+ * Hands out one String for each different chunk of text it's shown, without
+ * making a new String to look the chunk up with.  This is for things like
+ * tenant IDs (see LogFileParser.setGroupByTenant()), which are on every
+ * line but only come in a handful of different values: once we've seen one,
+ * finding it again costs a hash and a compare, and no garbage.
+ *
+ * <p>Not thread-safe; each LineParser has its own.
+ */
+public class Interner {
+
+    /**
+     * Returns the String with the same characters as s from start up to
+     * (but not including) end, making one the first time.
+     */
+    public String intern(CharSequence s, int start, int end) {
+        int hash = LogFileParser.uidHash(s, start, end);
+        int mask = table.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            String ts = table[slot];
+            if (ts == null) break;
+            if ((hashes[slot] == hash) && matches(ts, s, start, end)) return ts;
+        }
+        //  It's a new one.
+        if (++size * 2 > table.length) grow();
+        String rv = s.subSequence(start, end).toString();
+        put(rv, hash);
+        return rv;
+    }
+
+    /**
+     * Returns how many different Strings we've handed out.
+     */
+    public int size() {
+        return size;
+    }
+
+    private static boolean matches(String str, CharSequence s, int start, int end) {
+        if (str.length() != end - start) return false;
+        for (int ii = 0; ii < str.length(); ++ii) {
+            if (str.charAt(ii) != s.charAt(start + ii)) return false;
+        }
+        return true;
+    }
+
+    private void grow() {
+        String[] oldTable = table;
+        int[] oldHashes = hashes;
+        table = new String[oldTable.length * 2];
+        hashes = new int[oldTable.length * 2];
+        for (int ii = 0; ii < oldTable.length; ++ii) {
+            if (oldTable[ii] != null) put(oldTable[ii], oldHashes[ii]);
+        }
+    }
+
+    private void put(String str, int hash) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != null) slot = (slot + 1) & mask;
+        table[slot] = str;
+        hashes[slot] = hash;
+    }
+
+    //  open addressing, never more than half full
+    private String[] table = new String[16];
+    private int[] hashes = new int[16];
+    private int size = 0;
+}
@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Chops a stream of byte chunks (which don't care where lines end) into
+ * lines.  You give it whatever you read from a socket or wherever, and it
+ * calls your Handler once for each complete line, hanging on to any partial
+ * line at the end of the chunk until the rest of it shows up.
+ *
+ * <p>Lines are split on '\n'; a '\r' right before the '\n' is dropped too.
+ * Not thread-safe; use one of these per stream.
+ *
+ * <p>A line longer than maxLineLength bytes is thrown away (everything up to
+ * the next '\n') and reported to the Handler's tooLong(), instead of being
+ * buffered; otherwise somebody who connects to LogServer and never sends a
+ * newline could eat the whole heap.
+ */
+public class LineAssembler {
+
+    public static final int DEFAULT_MAX_LINE_LENGTH = 64 * 1024;
+
+    public LineAssembler() {
+        this(DEFAULT_MAX_LINE_LENGTH);
+    }
+
+    /**
+     * @param maxLineLength the longest line (in bytes, counting a '\r' at
+     *                      the end but not the '\n') we'll hang on to.
+     */
+    public LineAssembler(int maxLineLength) {
+        if (maxLineLength < 1) throw new IllegalArgumentException("bad maxLineLength " + maxLineLength);
+        this.maxLineLength = maxLineLength;
+        buf = new byte[Math.min(1024, maxLineLength)];
+    }
+
+    /**
+     * Gets called with each line.
+     */
+    public interface Handler {
+        /**
+         * @param line the line, without its terminator; never null.
+         */
+        void line(String line) throws IOException;
+
+        /**
+         * Called (once) when we start throwing a line away because it's
+         * longer than maxLineLength.  The rest of the stream carries on
+         * after the line's '\n'.
+         */
+        void tooLong() throws IOException;
+    }
+
+    /**
+     * Consumes everything remaining in the given buffer, calling the given
+     * handler for each line completed along the way.  When this returns,
+     * the buffer's position will be at its limit.
+     */
+    public void feed(ByteBuffer bb, Handler handler) throws IOException {
+        while (bb.hasRemaining()) {
+            byte tb = bb.get();
+            if (tb == '\n') {
+                if (discarding) {
+                    discarding = false;
+                } else {
+                    emit(handler);
+                }
+            } else if (!discarding) {
+                if (len == maxLineLength) {
+                    discarding = true;
+                    len = 0;
+                    handler.tooLong();
+                    continue;
+                }
+                if (len == buf.length) {
+                    buf = Arrays.copyOf(buf, (int)Math.min(buf.length * 2L, maxLineLength));
+                }
+                buf[len++] = tb;
+            }
+        }
+    }
+
+    /**
+     * Call this at end-of-stream; if there's a partial line hanging around
+     * (because the last line didn't end with a newline), it's passed to the
+     * given handler.
+     */
+    public void finish(Handler handler) throws IOException {
+        if (discarding) {
+            discarding = false;
+        } else if (len > 0) {
+            emit(handler);
+        }
+    }
+
+    private void emit(Handler handler) throws IOException {
+        int end = len;
+        if ((end > 0) && (buf[end - 1] == '\r')) --end;
+        //  reset len before calling the handler, in case it throws
+        len = 0;
+        handler.line(new String(buf, 0, end, StandardCharsets.UTF_8));
+    }
+
+    private final int maxLineLength;
+    //  The partial line we're building up.  This grows as necessary to hold
+    //  the longest line we've seen (up to maxLineLength), and never shrinks.
+    private byte[] buf;
+    private int len = 0;
+    //  true if we're skipping the rest of a line that was too long
+    private boolean discarding = false;
+}
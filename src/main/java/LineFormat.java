@@ -0,0 +1,44 @@
+/**
+ * Knows how to pull the user ID and request time out of a log line in some
+ * particular layout.  LineParser uses one of these to do the real work.
+ *
+ * <p>Implementations must be thread-safe; the ones we've got are, because they
+ * don't keep any state between calls.
+ */
+public interface LineFormat {
+
+    /**
+     * parse() returns this when it found a user request.
+     */
+    int MATCHED = 0;
+    /**
+     * parse() returns this when the line isn't a user request (or isn't in
+     * this format at all).
+     */
+    int NOT_A_REQUEST = 1;
+    /**
+     * parse() returns this when the line looked like a user request, but we
+     * couldn't make sense of its timestamp.
+     */
+    int BAD_TIMESTAMP = 2;
+    /**
+     * parse() returns this when the line's user isn't in the sample we were
+     * asked for (see LineParser.Context.sampleOneIn).  It may or may not have
+     * been a user request; we stopped looking as soon as we had the user ID.
+     */
+    int NOT_SAMPLED = 3;
+
+    /**
+     * Attempts to parse a single log line.
+     *
+     * @param line the line, without its terminator; must not be null.
+     * @param ct must not be null; if this returns MATCHED, the user ID and
+     *           request time will have been put in here.  Nothing else in it
+     *           is touched.  If its sampleOneIn is more than 1, users who
+     *           aren't in the sample should be turned away as early as
+     *           possible; see LogFileParser.inSample().  If its tenants
+     *           isn't null, the request's tenant goes in it too.
+     * @return MATCHED, NOT_A_REQUEST, BAD_TIMESTAMP, or NOT_SAMPLED.
+     */
+    int parse(CharSequence line, LineParser.Context ct);
+}
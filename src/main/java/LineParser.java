@@ -1,47 +1,54 @@
-import java.text.DateFormat;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
 /**
- * Parses a single log file line.
+ * Parses a single log file line.  The actual picking-apart of the line is done
+ * by a LineFormat; this just keeps count, and complains about lines the
+ * format didn't like to the Context's Diagnostics, if it has one.
  */
 public class LineParser {
 
-    //  yo dawg, I heard you like regular expressions, so I put a... well,
-    //  actually, it's just one moderately nasty RE which captures the date and
-    //  user ID.
-    private static final Pattern USER_REQUEST = Pattern.compile(
-            //  IP address, which we don't care about.
-            "^\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}" +
-            //  Other junk which I should probably have looked for
-            //  documentation on.
-            "\\s+-\\s+-\\s+" +
-            //  Finally, the date string!  Horrible: we're just looking for a
-            //  blob of non-space stuff starting with a number, followed by
-            //  space, followed by non-space, which we very much hope is the TZ
-            //  offset.  This blob gets passed on to DateFormat for parsing.
-            "(\\d\\S+\\s+\\S+)\\s+" +
-            //  Now the actual request!  That last "[ /?]" bit is on there
-            //  because we have some requests which don't have a fourth slash;
-            //  they're just "POST /666/666/666 HTTP/1.0", and we have others
-            //  of the form "POST /666/666/666?667 HTTP/1.0"
-            //  Also, not sure I've seen the PATCH method before, but it's in
-            //  the example logs!
-            "\"(?:GET|POST|PUT|PATCH|DELETE)\\s+/[0-9a-f]+/[0-9a-f]+/([0-9a-f]+)[ /?]");
-    //  and we don't care about anything after the UID.
+    /**
+     * Uses TemplateLineFormat.DEFAULT.
+     */
+    public LineParser() {
+        this(TemplateLineFormat.DEFAULT);
+    }
 
-    //  Not super excited about the log file date format; if sysadmins would
-    //  just learn to read seconds or milliseconds since 1/1/70 UTC, we
-    //  wouldn't have to parse nonsense like "15/Aug/2016:23:59:20 -0500".
-    //
-    //  Was kind of hoping there'd be a log entry with a different TZ offset
-    //  than -0500 in the example data; this format string may be fragile.
-    //
-    //  Note that this guy's not static because SimpleDateFormat's not thread-safe.
-    private final DateFormat dateFormat = new SimpleDateFormat("d/MMM/yyyy:HH:mm:ss Z");
+    /**
+     * @param format must not be null.
+     */
+    public LineParser(LineFormat format) {
+        this(format, 1);
+    }
+
+    /**
+     * @param sampleOneIn if more than 1, we only accept requests from users
+     *                    in a 1-in-sampleOneIn sample; see
+     *                    LogFileParser.setSampling().
+     */
+    public LineParser(LineFormat format, int sampleOneIn) {
+        this(format, sampleOneIn, Integer.MIN_VALUE, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param sinceS if a request is before this, we pretend it isn't there;
+     *               see LogFileParser.setTimeRange().
+     * @param untilS likewise if it's after this.
+     */
+    public LineParser(LineFormat format, int sampleOneIn, int sinceS, int untilS) {
+        this(format, sampleOneIn, sinceS, untilS, false);
+    }
+
+    /**
+     * @param tenants if true, the LineFormat also puts each request's tenant
+     *                in Context.tenant; see LogFileParser.setGroupByTenant().
+     */
+    public LineParser(LineFormat format, int sampleOneIn, int sinceS, int untilS,
+                      boolean tenants) {
+        this.format = format;
+        this.sampleOneIn = sampleOneIn;
+        this.sinceS = sinceS;
+        this.untilS = untilS;
+        this.tenants = tenants ? new Interner() : null;
+    }
 
     /**
      * This contains all the stuff which goes in & out of parseLine().
@@ -53,9 +60,9 @@ public class LineParser {
         int userRequests = 0;
 
         /**
-         * If true, we'll dump warnings to System.err.
+         * If not null, lines we don't like get reported here.
          */
-        boolean verbose = false;
+        Diagnostics diagnostics;
         /**
          * The name of the file currently being parsed, or null.
          */
@@ -65,6 +72,17 @@ public class LineParser {
          */
         int verboseCurrentLine = 0;
 
+        /**
+         * Set by parseLine(), for the LineFormat; see
+         * LogFileParser.setSampling().
+         */
+        int sampleOneIn = 1;
+        /**
+         * Set by parseLine(), for the LineFormat: if not null, the LineFormat
+         * should set tenant, using this to get the String.
+         */
+        Interner tenants;
+
         /**
          * If parseLine() returns true, this will be set to the user ID found
          * in the given line.
@@ -75,13 +93,21 @@ public class LineParser {
          * seconds since 1/1/70 UTC.
          */
         int requestS;
+        /**
+         * If parseLine() returns true, and it was asked to, this will be set
+         * to the part of the request path before the user ID (like
+         * "ecf8427e/b443dc7f"), with no slashes on the ends.  The same
+         * LineParser gives you the same String for the same tenant every
+         * time.
+         */
+        String tenant;
     }
 
     /**
      * Attempts to parse a single log file line.  (The log format wasn't
-     * exactly specified in the challenge description, so the logic here is
-     * based on looking at the example data.)  If the line can't be parsed (or
-     * doesn't appear to be a request from a user), it's silently ignored.
+     * exactly specified in the challenge description, so the default format
+     * is based on looking at the example data.)  If the line can't be parsed
+     * (or doesn't appear to be a request from a user), it's silently ignored.
      *
      * @param line the alleged log file line
      * @param ct information about the line being parsed; must not be null.
@@ -90,35 +116,30 @@ public class LineParser {
      * @return true if the line was successfully parsed as a user request,
      *         false if not.
      */
-    public boolean parseLine(String line, Context ct) {
-        Matcher tm = USER_REQUEST.matcher(line);
-        if (!tm.find()) {
-            if (ct.verbose) {
-                System.err.println(ct.verboseCurrentFile + " " +
-                        ct.verboseCurrentLine + ": ignoring " + line);
-            }
-            return false;
-        }
-
-        String dateStr = tm.group(1);
-        String uid = tm.group(2);
-
-        int requestS = 0;
-        try {
-            Date anotherObjectForGC = dateFormat.parse(dateStr);
-            requestS = (int)(anotherObjectForGC.getTime() / 1000L);  //  ms to s
-        } catch (ParseException pe) {
-            if (ct.verbose) {
-                System.err.println(ct.verboseCurrentFile + " " +
-                        ct.verboseCurrentLine + ": got ParseException on \"" +
-                        dateStr + "\": " + pe.getMessage());
+    public boolean parseLine(CharSequence line, Context ct) {
+        ct.sampleOneIn = sampleOneIn;
+        ct.tenants = tenants;
+        int rv = format.parse(line, ct);
+        //  Leaving a user out on purpose is nothing to complain about.
+        if (rv == LineFormat.NOT_SAMPLED) return false;
+        if (rv != LineFormat.MATCHED) {
+            if (ct.diagnostics != null) {
+                ct.diagnostics.report((rv == LineFormat.BAD_TIMESTAMP) ?
+                                Diagnostics.BAD_TIMESTAMP : Diagnostics.NOT_A_REQUEST,
+                        ct.verboseCurrentFile, ct.verboseCurrentLine, line);
             }
             return false;
         }
-
+        //  Likewise a request outside the time range; it's a perfectly good
+        //  line, we just weren't asked about it.
+        if ((ct.requestS < sinceS) || (ct.requestS > untilS)) return false;
         ++ct.userRequests;
-        ct.userID = uid;
-        ct.requestS = requestS;
         return true;
     }
+
+    private final LineFormat format;
+    private final int sampleOneIn;
+    private final int sinceS;
+    private final int untilS;
+    private final Interner tenants;
 }
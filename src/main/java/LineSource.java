@@ -0,0 +1,14 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Something we can read log lines out of, one at a time.
+ */
+public interface LineSource extends Closeable {
+    /**
+     * Returns the next line, without its terminator, or null at end of file.
+     * The returned CharSequence may be reused by the next call, so if you
+     * want to hang on to it, call toString() on it.
+     */
+    CharSequence nextLine() throws IOException;
+}
@@ -1,5 +1,11 @@
+import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Base-class log-file-parsing stuff.
@@ -18,8 +24,48 @@ public abstract class LogFileParser {
     public static final int CONNECTION_THRESHOLD_S = 600;  //  10 minutes, in s
 
     protected LogFileParser(int connectionThresholdS, boolean verbose) {
-        this.connectionThresholdS = connectionThresholdS;
+        this(new int[] { connectionThresholdS }, verbose);
+    }
+
+    /**
+     * Keeps track of sessions with several thresholds at once, so that you
+     * can see what difference the threshold makes without parsing everything
+     * once per threshold.  Everything other than getSummary() and
+     * visitSummary() goes by the first (smallest) one.
+     *
+     * @param connectionThresholdsS in seconds, smallest first, no repeats.
+     */
+    protected LogFileParser(int[] connectionThresholdsS, boolean verbose) {
+        if (connectionThresholdsS.length == 0) {
+            throw new IllegalArgumentException("no thresholds");
+        }
+        for (int ii = 1; ii < connectionThresholdsS.length; ++ii) {
+            if (connectionThresholdsS[ii] <= connectionThresholdsS[ii - 1]) {
+                throw new IllegalArgumentException("thresholds should be " +
+                        "increasing: " + Arrays.toString(connectionThresholdsS));
+            }
+        }
+        this.thresholdsS = connectionThresholdsS.clone();
+        this.connectionThresholdS = thresholdsS[0];
         this.verbose = verbose;
+        this.diagnostics = new Diagnostics(System.err, verbose);
+    }
+
+    /**
+     * Returns the session thresholds we were created with, in seconds.
+     */
+    public int[] getThresholds() {
+        return thresholdsS.clone();
+    }
+
+    /**
+     * Returns why we gave up on getThresholds()[which], or null if we
+     * haven't.  Only ReorderingFileParser ever gives up, and then only on
+     * one of several thresholds; see its updateUser().  getSummary() throws
+     * an IllegalStateException for a threshold we've given up on.
+     */
+    public String getThresholdFailure(int which) {
+        return null;
     }
 
     /**
@@ -36,11 +82,578 @@ public abstract class LogFileParser {
      *                   more.
      * @return a new Summary instance, never null.
      */
-    abstract public Summary getSummary(int topHowMany);
+    public Summary getSummary(int topHowMany) {
+        return getSummary(topHowMany, 0);
+    }
+
+    /**
+     * Same as getSummary(topHowMany), but with sessions as they come out
+     * with one of our other thresholds.  (The top users are the same with
+     * any threshold; their sessions aren't.)
+     *
+     * @param which an index into getThresholds().
+     */
+    public Summary getSummary(int topHowMany, int which) {
+        final Summary rv = new Summary();
+        try {
+            visitSummary(topHowMany, which, new Summary.Visitor() {
+                @Override
+                public void uniqueUsers(int count) {
+                    rv.uniqueUsers = count;
+                }
+
+                @Override
+                public void sample(Summary.Sample sample) {
+                    rv.sample = sample;
+                }
+
+                @Override
+                public void sessions(Histogram lengths, Histogram pages) {
+                    rv.sessionLengths = lengths;
+                    rv.sessionPages = pages;
+                }
+
+                @Override
+                public void user(Summary.User user) {
+                    rv.top.add(user);
+                }
+            });
+        } catch (IOException ioe) {
+            //  Only the Visitor can throw these, and ours doesn't.
+            throw new IllegalStateException(ioe);
+        }
+        return rv;
+    }
+
+    /**
+     * Same as getSummary(), but hands the users to the given Visitor one at a
+     * time, instead of collecting them all into a List first.  When you want
+     * a *lot* of top users, that's the difference between holding a copy of
+     * all of them in memory and holding one.
+     *
+     * @param visitor must not be null.
+     * @throws IOException if the Visitor does.
+     */
+    public void visitSummary(int topHowMany, Summary.Visitor visitor)
+            throws IOException {
+        visitSummary(topHowMany, 0, visitor);
+    }
+
+    /**
+     * Same as getSummary(topHowMany, which), but with a Visitor.
+     */
+    abstract public void visitSummary(int topHowMany, int which,
+                                      Summary.Visitor visitor) throws IOException;
+
+    /**
+     * Sets the layout of the log lines we'll be reading; the default is
+     * TemplateLineFormat.DEFAULT.
+     *
+     * @param format must not be null.
+     */
+    public void setLineFormat(LineFormat format) {
+        this.lineFormat = format;
+    }
+
+    /**
+     * Returns how many lines we've read, user requests or not.  (Lines which
+     * ReorderingFileParser only looked at to find a file's start time don't
+     * count.)
+     */
+    public long getLinesRead() {
+        return linesRead;
+    }
+
+    /**
+     * Returns where we report lines we couldn't use (and, if we're verbose,
+     * what we're up to).  Whoever's done with us should close() it, so that
+     * anything still queued gets printed.
+     */
+    public Diagnostics getDiagnostics() {
+        return diagnostics;
+    }
+
+    /**
+     * If true, we'll read files with ByteLineSource instead of a Reader.
+     * That's faster, but it assumes the logs are ASCII (or close enough) and
+     * that lines end with "\n" or "\r\n".  The default is false.
+     */
+    public void setRawIngestion(boolean raw) {
+        this.rawIngestion = raw;
+    }
+
+    /**
+     * Opens the given file for reading lines, according to
+     * setRawIngestion().
+     */
+    LineSource openLines(File file) throws IOException {
+        return rawIngestion ? new ByteLineSource(file) : new ReaderLineSource(file);
+    }
+
+    /**
+     * Like openLines(), but if there's a time range (see setTimeRange()),
+     * only reads the part of the file which has the requests in it, using
+     * the file's TimeIndex if it has one which is up to date (making one
+     * first if setTimeIndexing() said to) and TimeIndex.bisect() if not.
+     * The part we read will still have some requests outside the range, which
+     * our LineParsers throw away.
+     *
+     * <p>Without a time range, we don't look at the index at all (unless
+     * we're supposed to be making one), so a broken one can't hurt.
+     */
+    LineSource openLinesInRange(File file) throws IOException {
+        boolean ranged = (sinceS != Integer.MIN_VALUE) || (untilS != Integer.MAX_VALUE);
+        if (!ranged && !timeIndexing) return openLines(file);
+        TimeIndex index = readTimeIndex(file);
+        if ((index == null) && timeIndexing) {
+            if (verbose) diagnostics.report(Diagnostics.INFO, null, 0, "indexing " + file);
+            index = TimeIndex.build(file, lineFormat, TimeIndex.DEFAULT_LINES_PER_BLOCK);
+            index.write(file);
+        }
+        if (!ranged) return openLines(file);
+        long[] range = (index != null) ? index.range(sinceS, untilS) :
+                TimeIndex.bisect(file, lineFormat, sinceS, untilS);
+        if (verbose) {
+            diagnostics.report(Diagnostics.INFO, null, 0, "reading bytes " + range[0] +
+                    " to " + range[1] + " of " + file + ((index == null) ? " (no index)" : ""));
+        }
+        return rawIngestion ?
+                new ByteLineSource(file, range[0], range[1]) :
+                new ReaderLineSource(file, range[0], range[1]);
+    }
+
+    /**
+     * Returns the given log's TimeIndex, or null if it doesn't have an
+     * up-to-date one.  One we can't read counts as not having one (we
+     * Diagnostics.warn() about it, whether or not we're verbose, since it's
+     * not going to fix itself); it's only an index, and we can always bisect
+     * instead.
+     */
+    TimeIndex readTimeIndex(File file) {
+        try {
+            return TimeIndex.read(file);
+        } catch (IOException ioe) {
+            //  (The message says which file.)
+            diagnostics.warn("ignoring time index: " + ioe.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * If true, we keep a separate set of users, and so a separate top n, for
+     * each tenant: the part of the request path before the user ID (like
+     * "ecf8427e/b443dc7f" in "/ecf8427e/b443dc7f/71f28176/...").  Each
+     * tenant's users go to a parser of their own, of the same kind as this
+     * one, which you get with getTenant(); this one's own summary is empty.
+     * All of them are fed from one pass over the files, and each request
+     * only costs a lookup more than without grouping, since the tenant
+     * Strings come from an Interner rather than being made for every line.
+     *
+     * <p>The same user ID under two tenants is two different users.  Set
+     * this before you give us any files.
+     */
+    public void setGroupByTenant(boolean groupByTenant) {
+        this.groupByTenant = groupByTenant;
+    }
+
+    /**
+     * Returns the tenants we've seen so far, in order (see
+     * setGroupByTenant()).  Like getSummary(), you can call this while
+     * another thread is feeding us.
+     */
+    public List<String> getTenants() {
+        ArrayList<String> rv = new ArrayList<>(tenants.keySet());
+        Collections.sort(rv);
+        return rv;
+    }
+
+    /**
+     * Returns the parser which has the given tenant's users, or null if we
+     * haven't seen that tenant.
+     */
+    public LogFileParser getTenant(String tenant) {
+        return tenants.get(tenant);
+    }
+
+    /**
+     * Returns the parser for the tenant of the request in the given context,
+     * making one if this is the first we've seen of it; handleUserRequest()
+     * passes the request to it when we're grouping by tenant.
+     */
+    LogFileParser tenantParser(LineParser.Context ct) {
+        LogFileParser rv = tenants.get(ct.tenant);
+        if (rv == null) {
+            rv = newTenantParser();
+            rv.diagnostics = diagnostics;
+            rv.percentiles = percentiles;
+            rv.sampleOneIn = sampleOneIn;
+            rv.shard = shard;
+            rv.shards = shards;
+            tenants.put(ct.tenant, rv);
+        }
+        return rv;
+    }
+
+    /**
+     * Returns a new, empty parser of our kind, with our thresholds, for
+     * tenantParser() to set up.
+     */
+    abstract LogFileParser newTenantParser();
+
+    /**
+     * Makes this parser only look at requests from sinceS through untilS
+     * (inclusive), in seconds since 1/1/70 UTC; everything else is thrown
+     * away, as if those lines weren't there.  Rather than reading the whole
+     * of each file to find them, we look them up in its TimeIndex, or bisect
+     * the file if it doesn't have one.  Set this before you give us any
+     * files.
+     *
+     * @param sinceS Integer.MIN_VALUE (the default) for "from the start."
+     * @param untilS Integer.MAX_VALUE (the default) for "to the end."
+     */
+    public void setTimeRange(int sinceS, int untilS) {
+        if (sinceS > untilS) {
+            throw new IllegalArgumentException("bad time range " + sinceS + " to " + untilS);
+        }
+        this.sinceS = sinceS;
+        this.untilS = untilS;
+    }
+
+    /**
+     * If true, every file we read which doesn't have an up-to-date TimeIndex
+     * gets one, so that later runs with a time range don't have to bisect
+     * it.  That means reading the file an extra time, so the default is
+     * false.
+     */
+    public void setTimeIndexing(boolean timeIndexing) {
+        this.timeIndexing = timeIndexing;
+    }
+
+    /**
+     * If true, we'll keep Histograms of session lengths and pages per
+     * session for everybody, and a SessionSketch of them for each top user,
+     * so that the Summary can have percentiles.  The default is false,
+     * because ReorderingFileParser has to keep a SessionSketch for every
+     * user, not just the top ones, and those cost a few hundred bytes each
+     * (unless it can read the files again instead; see
+     * ReorderingFileParser.setRereading()).  Set this before you give us
+     * any files.
+     */
+    public void setPercentiles(boolean percentiles) {
+        this.percentiles = percentiles;
+    }
+
+    /**
+     * Returns a new LineParser which uses our LineFormat.
+     */
+    LineParser newLineParser() {
+        return new LineParser(lineFormat, sampleOneIn, sinceS, untilS, groupByTenant);
+    }
+
+    /**
+     * Makes this parser only keep a 1-in-oneIn sample of the users, picked by
+     * a hash of their IDs, so that the same users are picked every time.
+     * Lines from everybody else are thrown away as soon as the LineFormat has
+     * found the user ID, without working out the time or making a String,
+     * so this is a lot faster than parsing everything.
+     *
+     * <p>The users we do keep get all of their requests, so their sessions
+     * and page counts are exact; but the top users are only the top of the
+     * sample, and the Summary's unique users are only the ones in the
+     * sample.  Its Sample has the estimates for everybody.  Set this before
+     * you give us any files.
+     *
+     * @param oneIn 1 (the default) means "everybody."
+     */
+    public void setSampling(int oneIn) {
+        if (oneIn < 1) throw new IllegalArgumentException("bad sampling 1 in " + oneIn);
+        this.sampleOneIn = oneIn;
+    }
+
+    /**
+     * Returns true if the user whose ID is the given chunk of s is in a
+     * 1-in-oneIn sample.
+     *
+     * <p>This isn't just uidHash() % oneIn, because that's what setShard()
+     * does: with 4 shards and 1 in 16, every sampled user would be in shard
+     * 0.  Mixing the hash again with a different seed makes the two have
+     * nothing to do with each other.
+     */
+    static boolean inSample(CharSequence s, int start, int end, int oneIn) {
+        return Integer.remainderUnsigned(mix(uidHash(s, start, end) ^ SAMPLE_SEED), oneIn) == 0;
+    }
+
+    //  any old odd number
+    private static final int SAMPLE_SEED = 0x5bd1e995;
+
+    /**
+     * Makes this parser ignore every user whose ID doesn't hash to the given
+     * shard, so that you can split a huge job across several processes (or
+     * machines), each keeping only its share of the users, and then
+     * Summary.merge() their results.  Every process has to be given the same
+     * files and the same number of shards, and a different shard.
+     *
+     * @param shard which shard this is, 0 to shards - 1.
+     * @param shards how many shards there are; 1 (the default) means "no
+     *               sharding."
+     */
+    public void setShard(int shard, int shards) {
+        if ((shards < 1) || (shard < 0) || (shard >= shards)) {
+            throw new IllegalArgumentException("bad shard " + shard + " of " + shards);
+        }
+        this.shard = shard;
+        this.shards = shards;
+    }
+
+    /**
+     * Returns true if the given user belongs to our shard (which is always
+     * true if we're not sharding).
+     */
+    boolean inShard(String userID) {
+        return (shards == 1) ||
+               ((uidHash(userID, 0, userID.length()) & 0x7fffffff) % shards == shard);
+    }
+
+    /**
+     * Hashes the given chunk of a user ID.  This is String.hashCode() (so it
+     * comes out the same in every JVM) run through a mixing function, because
+     * String.hashCode()'s low bits are not great for picking shards with.
+     *
+     * @param start the index of the first character of the ID in s.
+     * @param end the index after the last character of the ID in s.
+     */
+    static int uidHash(CharSequence s, int start, int end) {
+        int rv = 0;
+        for (int ii = start; ii < end; ++ii) rv = 31 * rv + s.charAt(ii);
+        return mix(rv);
+    }
+
+    /**
+     * MurmurHash3's finalizer, which makes every bit of the result depend on
+     * every bit of the input.
+     */
+    private static int mix(int hash) {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
+    /**
+     * Feeds a single line to this parser, for when the lines are coming from
+     * somewhere other than a file (like a socket; see LogServer).  Lines which
+     * aren't user requests are ignored, same as in processEverything().
+     *
+     * <p>This is not thread-safe with respect to other calls to
+     * processLine() or processEverything(); you get one ingestion thread.
+     * It <i>is</i> safe to call getSummary() from another thread while this is
+     * going on.
+     *
+     * @param lp the LineParser to use; see newLineParser().
+     * @param line the alleged log line, without the line terminator.
+     * @param ct must not be null.
+     * @return true if the line was a user request.
+     */
+    public boolean processLine(LineParser lp, CharSequence line, LineParser.Context ct) {
+        ++linesRead;
+        if (!lp.parseLine(line, ct)) return false;
+        handleUserRequest(ct);
+        ++userRequests;
+        return true;
+    }
+
+    /**
+     * Folds the user request which LineParser just put into the given context
+     * into our state.
+     */
+    abstract void handleUserRequest(LineParser.Context ct);
+
+    /**
+     * Returns a sort key which orders users by number of page requests,
+     * descending, and then by the order in which we came across them (but
+     * see topUsers(), which straightens out the ties).  We
+     * sort these instead of sorting users with a Comparator because the
+     * Comparator reads User.pages, which, if someone's calling processLine()
+     * on another thread, may be changing while we sort--and sort() really
+     * doesn't like it when comparisons change their minds halfway through.
+     *
+     * @param pages must not be negative.
+     * @param index the user's index in whatever list you're sorting.
+     */
+    static long byPagesKey(int pages, int index) {
+        return ((long)(Integer.MAX_VALUE - pages) << 32) | index;
+    }
+
+    /**
+     * Undoes byPagesKey(), returning the index.
+     */
+    static int indexFromKey(long key) {
+        return (int)(key & 0xffffffffL);
+    }
+
+    /**
+     * Undoes byPagesKey(), returning the pages.
+     */
+    static int pagesFromKey(long key) {
+        return Integer.MAX_VALUE - (int)(key >>> 32);
+    }
+
+    /**
+     * Tells topUsers() the user ID at an index.
+     */
+    interface UserIDs {
+        String get(int index);
+    }
+
+    /**
+     * Picks the top topHowMany users out of the given byPagesKey()s, and
+     * returns their indexes, most pages first, and ties in order of user ID.
+     * That's so that which users make the cut (and their order) doesn't
+     * depend on the order in which they happened to be found, or on what
+     * they're stored in; both parsers, and ReorderingFileParser with any
+     * UserTable, come up with the same answer for the same logs.
+     *
+     * <p>We only look up IDs where pages don't settle it: everybody tied
+     * with the last of the top users (to see which of them make the cut),
+     * and each bunch of top users with the same number of pages (to put them
+     * in order), one bunch at a time.  So a huge topHowMany doesn't cost a
+     * String per user on top of the int[]; the Summary.Visitor gets each
+     * user's ID when it gets to that user.
+     *
+     * @param keys may get shuffled around.
+     */
+    static int[] topUsers(long[] keys, int topHowMany, UserIDs ids) {
+        long[] top = topKeys(keys, topHowMany);
+        if (top.length == 0) return new int[0];
+        int[] rv = new int[top.length];
+
+        //  Everybody with more pages than the last one is definitely in, and
+        //  they're already in order by pages.
+        int cutoff = pagesFromKey(top[top.length - 1]);
+        int above = 0;
+        for (; pagesFromKey(top[above]) > cutoff; ++above) {
+            rv[above] = indexFromKey(top[above]);
+        }
+        for (int from = 0; from < above; ) {
+            int to = from + 1;
+            while ((to < above) && (pagesFromKey(top[to]) == pagesFromKey(top[from]))) ++to;
+            if (to - from > 1) sortByID(rv, from, to, ids);
+            from = to;
+        }
+
+        //  Some of the ones with exactly that many pages are in; which ones
+        //  is up to their IDs.
+        ArrayList<Pick> tied = new ArrayList<>();
+        for (long key : keys) {
+            if (pagesFromKey(key) == cutoff) {
+                tied.add(new Pick(indexFromKey(key), ids.get(indexFromKey(key))));
+            }
+        }
+        Collections.sort(tied, Pick.byID);
+        for (int ii = above; ii < rv.length; ++ii) rv[ii] = tied.get(ii - above).index;
+        return rv;
+    }
+
+    /**
+     * Sorts the user indexes in rv from from up to (but not including) to
+     * by their IDs.
+     */
+    private static void sortByID(int[] rv, int from, int to, UserIDs ids) {
+        ArrayList<Pick> picks = new ArrayList<>(to - from);
+        for (int ii = from; ii < to; ++ii) picks.add(new Pick(rv[ii], ids.get(rv[ii])));
+        Collections.sort(picks, Pick.byID);
+        for (int ii = from; ii < to; ++ii) rv[ii] = picks.get(ii - from).index;
+    }
+
+    private static class Pick {
+        Pick(int index, String id) {
+            this.index = index;
+            this.id = id;
+        }
+        final int index;
+        final String id;
+
+        static final Comparator<Pick> byID = new Comparator<Pick>() {
+            @Override
+            public int compare(Pick p1, Pick p2) {
+                return p1.id.compareTo(p2.id);
+            }
+        };
+    }
+
+    /**
+     * Returns the smallest topHowMany of the given byPagesKey()s (that is,
+     * the users with the most pages), in order.  The given array may get
+     * shuffled around.
+     *
+     * <p>If that's most of them, we just sort the whole thing; but if it's a
+     * few out of a lot, we keep the best ones so far in a heap, which is
+     * O(n log topHowMany) instead of O(n log n), and usually way better than
+     * that, because most keys lose to the heap's worst without any sifting.
+     * The keys are all different (they have the index in them), so either way
+     * gets the same answer.
+     */
+    static long[] topKeys(long[] keys, int topHowMany) {
+        int count = Math.min(Math.max(topHowMany, 0), keys.length);
+        if (count > keys.length / 8) {
+            Arrays.sort(keys);
+            return (count == keys.length) ? keys : Arrays.copyOf(keys, count);
+        }
+        if (count == 0) return new long[0];
+
+        //  A max-heap, so heap[0] is the worst of the best so far.
+        long[] heap = Arrays.copyOf(keys, count);
+        for (int ii = count / 2 - 1; ii >= 0; --ii) siftDown(heap, ii, count);
+        for (int ii = count; ii < keys.length; ++ii) {
+            if (keys[ii] < heap[0]) {
+                heap[0] = keys[ii];
+                siftDown(heap, 0, count);
+            }
+        }
+        Arrays.sort(heap);
+        return heap;
+    }
+
+    private static void siftDown(long[] heap, int ii, int size) {
+        long key = heap[ii];
+        while (true) {
+            int child = 2 * ii + 1;
+            if (child >= size) break;
+            if ((child + 1 < size) && (heap[child + 1] > heap[child])) ++child;
+            if (heap[child] <= key) break;
+            heap[ii] = heap[child];
+            ii = child;
+        }
+        heap[ii] = key;
+    }
 
+    //  thresholdsS[0]
     int connectionThresholdS;
+    //  see getThresholds()
+    int[] thresholdsS;
     boolean verbose;
+    Diagnostics diagnostics;
+    LineFormat lineFormat = TemplateLineFormat.DEFAULT;
+    boolean rawIngestion = false;
+    boolean percentiles = false;
+    //  see setSampling()
+    int sampleOneIn = 1;
+    //  see setTimeRange() & setTimeIndexing()
+    int sinceS = Integer.MIN_VALUE;
+    int untilS = Integer.MAX_VALUE;
+    boolean timeIndexing = false;
+    //  see setGroupByTenant(); concurrent for the same reason as
+    //  HeapUserTable's map
+    boolean groupByTenant = false;
+    final ConcurrentHashMap<String, LogFileParser> tenants = new ConcurrentHashMap<>();
+    //  see setShard()
+    int shard = 0;
+    int shards = 1;
     //  same as LineParser.userRequests, for spanning multiple calls
     //  now, if this guy were designing for *scale*, this would be a long.  FAIL
     int userRequests = 0;
+    //  see getLinesRead()
+    long linesRead = 0;
 }
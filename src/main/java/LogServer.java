@@ -0,0 +1,310 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Keeps a LogFileParser around for the long haul, feeding it log lines which
+ * arrive on a TCP socket, and answering queries about what it's seen so far.
+ *
+ * <p>The protocol is dumb: every client connection is a stream of
+ * newline-terminated lines.  Most of those should be log lines, which are
+ * handed to the parser exactly as if they'd been read from a file.  A line
+ * which is one of these commands is a query instead:
+ *
+ * <ul>
+ *     <li><code>top</code> or <code>top <i>n</i></code>: we send back the
+ *         same summary LogTop would print (top <i>n</i> users, or the
+ *         default we were given), followed by an empty line so you know
+ *         it's done.</li>
+ *     <li><code>quit</code>: we close the connection.</li>
+ * </ul>
+ *
+ * <p>So you can point your load balancers' log output at this, and then, from
+ * somewhere else, <code>echo top 20 | nc localhost 6666</code>.
+ *
+ * <p>All socket I/O and all line parsing happens on the thread calling
+ * serve(), using a non-blocking Selector.  Queries are answered by a separate
+ * thread, so a big getSummary() doesn't stall ingestion; the parsers allow
+ * that without locking the whole user table (see processLine()).
+ */
+public class LogServer {
+
+    /**
+     * @param parser the thing to feed lines to; must not be null.  You may
+     *               have already fed it some files, but once serve() is
+     *               called, you shouldn't call its processEverything() or
+     *               processLine() yourself.  Set its LineFormat before
+     *               passing it in here.
+     * @param defaultTopHowMany what to use for "top" with no number.
+     * @param includeSeconds passed to LogTop.summaryToString().
+     * @param verbose if true, we'll report connection stuff to the parser's
+     *                Diagnostics.  (Requests which the parser chokes on are
+     *                always reported there.)
+     */
+    public LogServer(LogFileParser parser, int defaultTopHowMany,
+                     boolean includeSeconds, boolean verbose) {
+        this.parser = parser;
+        this.defaultTopHowMany = defaultTopHowMany;
+        this.includeSeconds = includeSeconds;
+        this.verbose = verbose;
+        lp = parser.newLineParser();
+        diagnostics = parser.getDiagnostics();
+        ct.diagnostics = diagnostics;
+        ct.verboseCurrentFile = "socket";
+    }
+
+    /**
+     * Opens the listening socket.  Call this before serve().
+     *
+     * @param address where to listen; port 0 means "pick one."
+     * @return the address we actually ended up listening on.
+     */
+    public InetSocketAddress bind(InetSocketAddress address) throws IOException {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.bind(address);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        return (InetSocketAddress)server.getLocalAddress();
+    }
+
+    /**
+     * Handles connections until close() is called from another thread.
+     */
+    public void serve() throws IOException {
+        ByteBuffer readBuf = ByteBuffer.allocateDirect(64 * 1024);
+        while (!closed) {
+            selector.select();
+
+            //  Queries which finished since last time around; now that we're
+            //  on the selector thread, we can tell the selector we want to
+            //  write their results.
+            Connection tc;
+            while ((tc = readyToWrite.poll()) != null) {
+                if (tc.key.isValid()) {
+                    tc.key.interestOps(tc.key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            }
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+                try {
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) accept();
+                    if (key.isValid() && key.isReadable()) {
+                        read((Connection)key.attachment(), readBuf);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        write((Connection)key.attachment());
+                    }
+                } catch (IOException ioe) {
+                    //  One client going away shouldn't take down the server.
+                    if (verbose) diagnostics.report(Diagnostics.INFO, "LogServer", 0, ioe.toString());
+                    if (key.attachment() != null) {
+                        ((Connection)key.attachment()).close();
+                    }
+                }
+            }
+        }
+        for (SelectionKey key : selector.keys()) key.channel().close();
+        selector.close();
+        queries.shutdown();
+    }
+
+    /**
+     * Makes serve() return.  Safe to call from any thread.
+     */
+    public void close() {
+        closed = true;
+        if (selector != null) selector.wakeup();
+    }
+
+    private void accept() throws IOException {
+        SocketChannel ch = server.accept();
+        if (ch == null) return;
+        if (verbose) {
+            diagnostics.report(Diagnostics.INFO, "LogServer", 0,
+                    "connection from " + ch.getRemoteAddress());
+        }
+        ch.configureBlocking(false);
+        Connection conn = new Connection(ch);
+        conn.key = ch.register(selector, SelectionKey.OP_READ, conn);
+    }
+
+    private void read(final Connection conn, ByteBuffer readBuf) throws IOException {
+        readBuf.clear();
+        int got = conn.channel.read(readBuf);
+        if (got < 0) {
+            conn.lines.finish(conn);
+            conn.doneReading();
+            return;
+        }
+        readBuf.flip();
+        conn.lines.feed(readBuf, conn);
+    }
+
+    private void write(Connection conn) throws IOException {
+        ByteBuffer tb;
+        while ((tb = conn.out.peek()) != null) {
+            conn.channel.write(tb);
+            if (tb.hasRemaining()) return;  //  socket's full; try again later
+            conn.out.poll();
+            --conn.pendingQueries;
+        }
+        conn.key.interestOps(conn.key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (conn.doneReading && (conn.pendingQueries == 0)) conn.close();
+    }
+
+    /**
+     * Called on the selector thread with each line we get from a client.
+     */
+    private void handleLine(final Connection conn, String line) throws IOException {
+        if (line.startsWith("top") || line.startsWith("quit")) {
+            String[] words = line.trim().split("\\s+");
+            if (words[0].equals("quit") && (words.length == 1)) {
+                conn.doneReading();
+                return;
+            } else if (words[0].equals("top") && (words.length <= 2)) {
+                int topHowMany = defaultTopHowMany;
+                if (words.length == 2) {
+                    try {
+                        topHowMany = Integer.parseInt(words[1]);
+                    } catch (NumberFormatException nfe) {
+                        topHowMany = 0;
+                    }
+                }
+                query(conn, topHowMany);
+                return;
+            }
+            //  otherwise, fall through and let the parser ignore it.
+        }
+        try {
+            ++ct.verboseCurrentLine;
+            parser.processLine(lp, line, ct);
+        } catch (RuntimeException re) {
+            //  ReorderingFileParser croaks on requests which are too far out
+            //  of order; that's fatal when we're reading files, but here it
+            //  just means this one line gets dropped.
+            diagnostics.report(Diagnostics.DROPPED_REQUEST, ct.verboseCurrentFile,
+                    ct.verboseCurrentLine, re.getMessage());
+        }
+    }
+
+    private void query(final Connection conn, final int topHowMany) {
+        ++conn.pendingQueries;
+        queries.execute(new Runnable() {
+            @Override
+            public void run() {
+                String rv = (topHowMany < 1) ?
+                        "top how many?\n" :
+                        LogTop.summariesToString(parser, topHowMany,
+                                includeSeconds);
+                conn.queryDone(ByteBuffer.wrap(
+                        (rv + "\n").getBytes(StandardCharsets.UTF_8)));
+            }
+        });
+    }
+
+    /**
+     * One of these is attached to each client's SelectionKey.
+     */
+    private class Connection implements LineAssembler.Handler {
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void line(String line) throws IOException {
+            //  "quit" may be followed by more stuff in the same read
+            if (!doneReading) handleLine(this, line);
+        }
+
+        @Override
+        public void tooLong() {
+            ++ct.verboseCurrentLine;
+            diagnostics.report(Diagnostics.DROPPED_REQUEST, ct.verboseCurrentFile,
+                    ct.verboseCurrentLine, "line longer than " +
+                    LineAssembler.DEFAULT_MAX_LINE_LENGTH + " bytes");
+        }
+
+        /**
+         * Called on the query thread.  Query results must go out in the order
+         * the queries came in, which they do, because there's only one query
+         * thread.
+         */
+        void queryDone(ByteBuffer result) {
+            out.add(result);
+            readyToWrite.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Called on the selector thread when they've hung up or said "quit".
+         * We don't close right away if they still have query results coming;
+         * write() will close once those have gone out.
+         */
+        void doneReading() throws IOException {
+            doneReading = true;
+            if (!key.isValid()) return;
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            if (pendingQueries == 0) close();
+        }
+
+        void close() throws IOException {
+            key.cancel();
+            channel.close();
+        }
+
+        final SocketChannel channel;
+        SelectionKey key;
+        final LineAssembler lines = new LineAssembler();
+        //  Query results waiting to go out.  Added to by the query thread,
+        //  drained by the selector thread.
+        final ConcurrentLinkedQueue<ByteBuffer> out = new ConcurrentLinkedQueue<>();
+        //  These are only touched on the selector thread.  pendingQueries
+        //  counts queries whose results haven't been completely written yet.
+        int pendingQueries = 0;
+        boolean doneReading = false;
+    }
+
+    private final LogFileParser parser;
+    private final int defaultTopHowMany;
+    private final boolean includeSeconds;
+    private final boolean verbose;
+    private final Diagnostics diagnostics;
+
+    //  Only used on the selector thread.
+    private final LineParser lp;
+    private final LineParser.Context ct = new LineParser.Context();
+
+    private Selector selector;
+    private ServerSocketChannel server;
+    private volatile boolean closed = false;
+
+    //  Connections with query results waiting to be written.
+    private final ConcurrentLinkedQueue<Connection> readyToWrite =
+            new ConcurrentLinkedQueue<>();
+    //  One thread, so that queries from a client are answered in order, and
+    //  so that a flood of queries can't eat every core we've got.
+    private final ExecutorService queries = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread rv = new Thread(r, "LogServer query");
+                    rv.setDaemon(true);
+                    return rv;
+                }
+            });
+}
@@ -0,0 +1,149 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+
+/**
+ * Feeds a LogFileParser from a Flow.Publisher of byte chunks, for when the
+ * log lines are coming from something else in the same JVM (a log shipper,
+ * say) instead of from files or a socket.  The chunks don't have to line up
+ * with lines; see LineAssembler.
+ *
+ * <p>We only ask for prefetch chunks at a time, and ask for more as we get
+ * through them, so a fast publisher can't bury us: a SubmissionPublisher,
+ * for example, will block (or drop, or whatever you told it to do) once its
+ * buffer fills up.  Each chunk is parsed right there in onNext(), on the
+ * publisher's thread, and consumed completely before onNext() returns; but a
+ * publisher may hand it to us long after it was published, so don't reuse a
+ * buffer once you've published it.
+ *
+ * <p>Flow promises that onNext() calls happen one at a time, which is all
+ * the parser needs; you can call its getSummary() or visitSummary() from any
+ * thread while this is going on.  Don't feed the same parser from anything
+ * else at the same time, though.
+ *
+ * <p>As in LogServer, a request ReorderingFileParser chokes on (because it's
+ * too far out of order) is reported to the parser's Diagnostics and dropped,
+ * rather than killing the whole stream.
+ */
+public class LogSubscriber implements Flow.Subscriber<ByteBuffer> {
+
+    public static final int DEFAULT_PREFETCH = 16;
+
+    /**
+     * @param parser the thing to feed lines to; must not be null.  Set its
+     *               LineFormat before passing it in here.
+     * @param name what to call this stream in Diagnostics reports.
+     */
+    public LogSubscriber(LogFileParser parser, String name) {
+        this(parser, name, DEFAULT_PREFETCH);
+    }
+
+    /**
+     * @param prefetch the most chunks we'll have asked for and not yet gotten.
+     */
+    public LogSubscriber(LogFileParser parser, String name, int prefetch) {
+        if (prefetch < 1) throw new IllegalArgumentException("bad prefetch " + prefetch);
+        this.parser = parser;
+        this.prefetch = prefetch;
+        lp = parser.newLineParser();
+        ct.diagnostics = parser.getDiagnostics();
+        ct.verboseCurrentFile = name;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (subscription == null) throw new NullPointerException("subscription");
+        if (this.subscription != null) {
+            //  We can only read one stream.
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        subscription.request(prefetch);
+    }
+
+    @Override
+    public void onNext(ByteBuffer chunk) {
+        if (chunk == null) throw new NullPointerException("chunk");
+        //  We might still get a few after cancelling.
+        if (completion.isDone()) return;
+        try {
+            lines.feed(chunk, handler);
+        } catch (Throwable t) {
+            //  Not allowed to throw from here, so we give up on the stream.
+            subscription.cancel();
+            completion.completeExceptionally(t);
+            return;
+        }
+        //  Ask for more once we're halfway through what we asked for, so the
+        //  publisher isn't left waiting on us while we finish the rest.
+        if (++unrequested >= (prefetch + 1) / 2) {
+            subscription.request(unrequested);
+            unrequested = 0;
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        if (throwable == null) throw new NullPointerException("throwable");
+        //  Whatever partial line we have is probably garbage, so we don't
+        //  finish() it.
+        completion.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        if (completion.isDone()) return;
+        try {
+            lines.finish(handler);
+        } catch (Throwable t) {
+            completion.completeExceptionally(t);
+            return;
+        }
+        completion.complete(ct.verboseCurrentLine);
+    }
+
+    /**
+     * Returns something which completes, with the number of lines we read,
+     * once the publisher's done with us; or completes exceptionally if it
+     * gave us an error (in which case the parser has whatever we'd gotten
+     * before that).
+     */
+    public CompletableFuture<Integer> getCompletion() {
+        return completion;
+    }
+
+    private final LineAssembler.Handler handler = new LineAssembler.Handler() {
+        @Override
+        public void line(String line) {
+            ++ct.verboseCurrentLine;
+            try {
+                parser.processLine(lp, line, ct);
+            } catch (RuntimeException re) {
+                ct.diagnostics.report(Diagnostics.DROPPED_REQUEST,
+                        ct.verboseCurrentFile, ct.verboseCurrentLine, re.getMessage());
+            }
+        }
+
+        @Override
+        public void tooLong() {
+            ++ct.verboseCurrentLine;
+            ct.diagnostics.report(Diagnostics.DROPPED_REQUEST, ct.verboseCurrentFile,
+                    ct.verboseCurrentLine, "line longer than " +
+                    LineAssembler.DEFAULT_MAX_LINE_LENGTH + " bytes");
+        }
+    };
+
+    private final LogFileParser parser;
+    private final int prefetch;
+    private final CompletableFuture<Integer> completion = new CompletableFuture<>();
+
+    //  Only touched in signal methods, which Flow says happen one at a time
+    //  (and, if on different threads, in order).
+    private Flow.Subscription subscription;
+    private final LineParser lp;
+    private final LineParser.Context ct = new LineParser.Context();
+    private final LineAssembler lines = new LineAssembler();
+    //  chunks we've gotten since we last asked for more
+    private long unrequested = 0;
+}
@@ -3,12 +3,24 @@ import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
-import java.io.InputStreamReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoField;
+import java.time.temporal.TemporalAccessor;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
 
 /**
  * Processes one or more log files and generates a summary of the top n users'
@@ -25,10 +37,81 @@ public class LogTop {
      */
     public static void main(String[] argv) throws IOException {
         Options opts = new Options();
+        opts.addOption("L", true,
+                "listen: after processing the given files (if any), keep " +
+                "running as a server on the given [host:]port, reading log " +
+                "lines and answering \"top n\" queries; see LogServer.");
+        opts.addOption("C", true,
+                "checkpoint: load ReorderingFileParser's state from this " +
+                "file if it exists (skipping log files it already covers), " +
+                "and save it back there when we're done.");
+        opts.addOption("shard", true,
+                "k/n: only keep users whose ID hashes to shard k of n (0 to " +
+                "n-1), and write a partial result for -merge instead of the " +
+                "summary.");
+        opts.addOption("merge", false,
+                "instead of log files, read the partial results written by " +
+                "-shard runs, and print the combined summary.  Use the same " +
+                "or smaller -t as the -shard runs did.");
         opts.addOption("c", false,
-                "compare: wait for input on stdin so that you can connect " +
-                 "with jconsole or whatever, run both LogFileParser implementations, " +
-                 "and compare output.");
+                "compare: run both LogFileParser implementations a few times " +
+                "each, report how long they took and how much memory they " +
+                "used, and compare their output; see Bench.");
+        opts.addOption("cr", false,
+                "compare reading: like -c, but instead of both parsers, run " +
+                "one (-p2 picks which) reading the files through a Reader, " +
+                "then with -raw.");
+        opts.addOption("warmup", true,
+                "in compare mode, how many runs of each parser to do before " +
+                "we start timing them; defaults to 2");
+        opts.addOption("runs", true,
+                "in compare mode, how many runs of each parser to time; " +
+                "defaults to 5");
+        opts.addOption("F", true,
+                "log line format: \"default\", \"nginx\" (combined), " +
+                "\"regex\" (same as default, but slower), or a template; " +
+                "see TemplateLineFormat.");
+        opts.addOption("raw", false,
+                "read files as raw bytes, finding line ends ourselves, " +
+                "instead of decoding them through a Reader.  Faster; " +
+                "assumes ASCII-ish logs with \\n or \\r\\n line ends.");
+        opts.addOption("o", true,
+                "output format for the summary: \"text\" (the default), " +
+                "\"csv\", or \"json\" (JSON lines); see SummaryWriter.");
+        opts.addOption("P", false,
+                "percentiles: also print p50, p90, and p99 of session " +
+                "length and pages per session, for everybody and for each " +
+                "top user.  The default parser reads the files a second " +
+                "time to do the top users; with -L, -C, or -g, where it " +
+                "can't, it keeps a little under 400 bytes more per user " +
+                "(per -T) instead.");
+        opts.addOption("U", true,
+                "keep ReorderingFileParser's users in memory-mapped files in " +
+                "this directory (which we'll make if need be), instead of " +
+                "on the heap, for when there are too many of them; see " +
+                "MappedUserTable.");
+        opts.addOption("S", true,
+                "sample: only look at 1 in this many users (picked by a hash " +
+                "of their IDs), and estimate the totals for everybody; see " +
+                "LogFileParser.setSampling().");
+        opts.addOption("since", true,
+                "only look at requests at or after this time: seconds since " +
+                "1/1/70, or ISO (2016-08-16, 2016-08-16T09:30:00, with or " +
+                "without a Z or +01:00; UTC if not).  Reads just that part " +
+                "of each file, using its time index (see -index) if it has " +
+                "one, or a binary search of the file if not.");
+        opts.addOption("until", true,
+                "only look at requests at or before this time; same format " +
+                "as -since.");
+        opts.addOption("index", false,
+                "write a time index (" + TimeIndex.SUFFIX + ") next to each " +
+                "log file which doesn't have an up-to-date one, for later " +
+                "runs with -since or -until; see TimeIndex.");
+        opts.addOption("g", false,
+                "group by tenant: a separate summary, with its own top " +
+                "users, for each tenant (the part of the request path " +
+                "before the user ID), all from one pass over the files; " +
+                "see LogFileParser.setGroupByTenant().");
         opts.addOption("p2", false,
                 "use NonChronologicalFileParser instead of ReorderingFileParser");
         opts.addOption("s", false,
@@ -37,7 +120,9 @@ public class LogTop {
                 "top how-many users to list; defaults to 5");
         opts.addOption("T", true,
                 "session threshold time, in seconds; defaults to " +
-                LogFileParser.CONNECTION_THRESHOLD_S);
+                LogFileParser.CONNECTION_THRESHOLD_S + ".  A list (like " +
+                "300,600,1800) gets a summary for each, from one pass " +
+                "over the files.");
         opts.addOption("v", false,
                 "verbose");
         opts.addOption("v1", false,
@@ -51,65 +136,380 @@ public class LogTop {
             usage(opts, pe.getMessage());
         }
         argv = args.getArgs();
-        if (argv.length == 0) usage(opts, "I need at least one file or directory!");
+        String listen = args.getOptionValue("L");
+        if ((argv.length == 0) && (listen == null)) {
+            usage(opts, "I need at least one file or directory!");
+        }
 
-        boolean compare = args.hasOption("c");
+        boolean compareReading = args.hasOption("cr");
+        boolean compare = args.hasOption("c") || compareReading;
         boolean includeSeconds = args.hasOption("s");
-        int threshold = positiveIntOpt(opts, args, "T",
-                LogFileParser.CONNECTION_THRESHOLD_S);
+        int[] thresholds = thresholdsOpt(opts, args);
+        int sampleOneIn = positiveIntOpt(opts, args, "S", 1);
         int topHowMany = positiveIntOpt(opts, args, "t", 5);
+        int sinceS = timeOpt(opts, args, "since", Integer.MIN_VALUE);
+        int untilS = timeOpt(opts, args, "until", Integer.MAX_VALUE);
+        if (sinceS > untilS) usage(opts, "-since should be before -until!");
+        boolean timeRange = args.hasOption("since") || args.hasOption("until");
+        LineFormat format = TemplateLineFormat.DEFAULT;
+        if (args.hasOption("F")) {
+            try {
+                format = TemplateLineFormat.forName(args.getOptionValue("F"));
+            } catch (IllegalArgumentException iae) {
+                usage(opts, iae.getMessage());
+            }
+        }
+        int outputFormat = -1;
+        if (args.hasOption("o") && !"text".equals(args.getOptionValue("o"))) {
+            outputFormat = SummaryWriter.formatForName(args.getOptionValue("o"));
+            if (outputFormat < 0) usage(opts, "-o should be text, csv, or json!");
+            if (compare || (listen != null) || args.hasOption("shard")) {
+                usage(opts, "-o doesn't go with -c, -L, or -shard!");
+            }
+        }
+        String checkpoint = args.getOptionValue("C");
+        if ((checkpoint != null) &&
+            (compare || (listen != null) || args.hasOption("p2"))) {
+            usage(opts, "-C doesn't go with -c, -L, or -p2!");
+        }
+        //  A checkpoint is everything through its last file; it doesn't
+        //  remember what part of them it looked at.
+        if ((checkpoint != null) && timeRange) {
+            usage(opts, "-C doesn't go with -since or -until!");
+        }
+        if (args.hasOption("P") && (args.hasOption("shard") || args.hasOption("merge"))) {
+            usage(opts, "-P doesn't go with -shard or -merge!");
+        }
+        String userDir = args.getOptionValue("U");
+        if ((userDir != null) &&
+            (compare || args.hasOption("p2") || args.hasOption("P"))) {
+            usage(opts, "-U doesn't go with -c, -p2, or -P!");
+        }
+        if (userDir != null) {
+            File tf = new File(userDir);
+            if (!tf.isDirectory() && !tf.mkdirs()) {
+                usage(opts, "-U " + userDir + " isn't a directory, and I can't make it one!");
+            }
+        }
+        if ((thresholds.length > 1) &&
+            ((outputFormat >= 0) || args.hasOption("shard"))) {
+            usage(opts, "more than one -T doesn't go with -o or -shard!");
+        }
+        if ((sampleOneIn > 1) && (args.hasOption("shard") || args.hasOption("merge"))) {
+            usage(opts, "-S doesn't go with -shard or -merge!");
+        }
+        boolean groupByTenant = args.hasOption("g");
+        if (groupByTenant &&
+            ((outputFormat >= 0) || (checkpoint != null) || (userDir != null) ||
+             args.hasOption("shard") || args.hasOption("merge"))) {
+            usage(opts, "-g doesn't go with -o, -C, -U, -shard, or -merge!");
+        }
+        if (compare && ((listen != null) || args.hasOption("shard"))) {
+            usage(opts, "-c and -cr don't go with -L or -shard!");
+        }
+        if (compareReading && (args.hasOption("c") || args.hasOption("raw"))) {
+            usage(opts, "-cr doesn't go with -c or -raw; it does both kinds of reading itself!");
+        }
+
+        if (args.hasOption("merge")) {
+            if (compare || (listen != null) || (checkpoint != null) ||
+                args.hasOption("shard")) {
+                usage(opts, "-merge doesn't go with -c, -C, -L, or -shard!");
+            }
+            ArrayList<Summary> parts = new ArrayList<>();
+            for (String path : argv) parts.add(SummaryFile.read(new File(path)));
+            Summary merged = Summary.merge(parts, topHowMany);
+            if (outputFormat >= 0) {
+                SummaryWriter sw = newSummaryWriter(outputFormat, includeSeconds);
+                merged.visit(sw);
+                sw.close();
+                System.out.flush();
+            } else {
+                System.out.println(summaryToString(merged, includeSeconds));
+            }
+            return;
+        }
 
         if (!compare) {
             LogFileParser lfp = args.hasOption("p2") ?
-                    new NonChronologicalFileParser(threshold, args.hasOption("v")) :
-                    new ReorderingFileParser(threshold, args.hasOption("v"));
-            lfp.processEverything(Arrays.asList(argv));
-            System.out.println(summaryToString(lfp.getSummary(topHowMany), includeSeconds));
+                    new NonChronologicalFileParser(thresholds, args.hasOption("v")) :
+                    new ReorderingFileParser(thresholds, args.hasOption("v"));
+            lfp.setLineFormat(format);
+            lfp.setRawIngestion(args.hasOption("raw"));
+            lfp.setPercentiles(args.hasOption("P"));
+            //  Unless we're going to need them for a checkpoint, or there
+            //  will be lines that didn't come from files, reading the files
+            //  again for the top users' percentiles is cheaper than keeping
+            //  a sketch for everybody.
+            if (!args.hasOption("p2") && (listen == null) && (checkpoint == null)) {
+                ((ReorderingFileParser)lfp).setRereading(true);
+            }
+            lfp.setSampling(sampleOneIn);
+            lfp.setTimeRange(sinceS, untilS);
+            lfp.setTimeIndexing(args.hasOption("index"));
+            lfp.setGroupByTenant(groupByTenant);
+            String shard = args.getOptionValue("shard");
+            if (shard != null) {
+                try {
+                    String[] kn = shard.split("/");
+                    lfp.setShard(Integer.parseInt(kn[0]), Integer.parseInt(kn[1]));
+                } catch (RuntimeException re) {
+                    usage(opts, "-shard should be k/n, with 0 <= k < n!");
+                }
+            }
+            UserTable users = null;
+            if (userDir != null) {
+                users = new MappedUserTable(new File(userDir), thresholds.length);
+                ((ReorderingFileParser)lfp).setUserTable(users);
+            }
+            File cf = (checkpoint == null) ? null : new File(checkpoint);
+            if ((cf != null) && cf.exists()) {
+                ((ReorderingFileParser)lfp).loadCheckpoint(cf);
+            }
+
+            if (argv.length > 0) lfp.processEverything(Arrays.asList(argv));
+            //  Let -v's chatter finish before the summary goes out; the
+            //  server reports to it for as long as it's up, though.
+            if (listen == null) lfp.getDiagnostics().close();
+
+            if (cf != null) ((ReorderingFileParser)lfp).saveCheckpoint(cf);
+            if (listen != null) {
+                InetSocketAddress address = null;
+                try {
+                    address = parseAddress(listen);
+                } catch (IllegalArgumentException iae) {
+                    usage(opts, "-L should be [host:]port!");
+                }
+                LogServer server = new LogServer(lfp, topHowMany, includeSeconds,
+                        args.hasOption("v"));
+                System.err.println("listening on " + server.bind(address));
+                server.serve();
+                lfp.getDiagnostics().close();
+            } else if (shard != null) {
+                SummaryFile.write(lfp.getSummary(topHowMany), System.out);
+            } else if (outputFormat >= 0) {
+                SummaryWriter sw = newSummaryWriter(outputFormat, includeSeconds);
+                lfp.visitSummary(topHowMany, sw);
+                sw.close();
+                System.out.flush();
+            } else {
+                System.out.println(summariesToString(lfp, topHowMany, includeSeconds));
+            }
+            if (users != null) users.close();
             return;
         }
 
         //  If we're here, then instead of running one parser and bailing,
-        //  we're running both and comparing their output.
+        //  we're running both a bunch of times, timing them, and comparing
+        //  their output.
+        final int[] finalThresholds = thresholds;
+        final LineFormat finalFormat = format;
+        final boolean raw = args.hasOption("raw");
+        final boolean percentiles = args.hasOption("P");
+        final int finalSampleOneIn = sampleOneIn;
+        final int finalSinceS = sinceS;
+        final int finalUntilS = untilS;
+        final boolean finalGroupByTenant = groupByTenant;
+        final boolean verbose1 = args.hasOption("v") || args.hasOption("v1");
+        final boolean verbose2 = args.hasOption("v") || args.hasOption("v2");
+        //  Index before we start timing, rather than in the first warmup run.
+        if (args.hasOption("index")) {
+            for (String path : argv) indexFiles(new File(path), format);
+        }
+        Bench bench = new Bench(nonNegativeIntOpt(opts, args, "warmup", 2),
+                                positiveIntOpt(opts, args, "runs", 5));
+        List<String> paths = Arrays.asList(argv);
 
-        String parserClass1 = "ReorderingFileParser";
-        LogFileParser lfp1 = new ReorderingFileParser(threshold,
-                args.hasOption("v") || args.hasOption("v1" ));
+        if (compareReading) {
+            compareReading(bench, paths, args.hasOption("p2"), finalThresholds,
+                    finalFormat, percentiles, finalSampleOneIn, finalSinceS,
+                    finalUntilS, finalGroupByTenant, verbose1, topHowMany,
+                    includeSeconds);
+            return;
+        }
 
-        BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
-        System.out.println("hit enter to begin " + parserClass1);
-        in.readLine();
+        Bench.Result result1 = bench.run("ReorderingFileParser", new Bench.ParserFactory() {
+            @Override
+            public LogFileParser newParser() {
+                ReorderingFileParser rv = new ReorderingFileParser(finalThresholds, verbose1);
+                rv.setLineFormat(finalFormat);
+                rv.setRawIngestion(raw);
+                rv.setPercentiles(percentiles);
+                rv.setRereading(true);
+                rv.setSampling(finalSampleOneIn);
+                rv.setTimeRange(finalSinceS, finalUntilS);
+                rv.setGroupByTenant(finalGroupByTenant);
+                return rv;
+            }
+        }, paths, topHowMany, includeSeconds);
+        Bench.Result result2 = bench.run("NonChronologicalFileParser", new Bench.ParserFactory() {
+            @Override
+            public LogFileParser newParser() {
+                LogFileParser rv = new NonChronologicalFileParser(finalThresholds, verbose2);
+                rv.setLineFormat(finalFormat);
+                rv.setRawIngestion(raw);
+                rv.setPercentiles(percentiles);
+                rv.setSampling(finalSampleOneIn);
+                rv.setTimeRange(finalSinceS, finalUntilS);
+                rv.setGroupByTenant(finalGroupByTenant);
+                return rv;
+            }
+        }, paths, topHowMany, includeSeconds);
 
-        long start = System.currentTimeMillis();
-        lfp1.processEverything(Arrays.asList(argv));
-        long elapsed1 = System.currentTimeMillis() - start;
+        String out1 = result1.getSummary();
+        String out2 = result2.getSummary();
+        if (out1.equals(out2)) {
+            System.out.println("Both approaches said:\n\n" + out1);
+        } else {
+            System.out.println("NO ReorderingFileParser said:\n\n" + out1 +
+                    "\nbut NonChronologicalFileParser said:\n\n" + out2);
+        }
+        result1.print(System.out);
+        result2.print(System.out);
+    }
 
-        String parserClass2 = "NonChronologicalFileParser";
-        LogFileParser lfp2 = new NonChronologicalFileParser(threshold,
-                args.hasOption("v") || args.hasOption("v2" ));
+    /**
+     * -cr: times one kind of parser reading the files through a Reader and
+     * through ByteLineSource, checks that they said the same thing, and
+     * prints the numbers.
+     */
+    private static void compareReading(Bench bench, List<String> paths,
+            final boolean nonChronological, final int[] thresholds,
+            final LineFormat format, final boolean percentiles,
+            final int sampleOneIn, final int sinceS, final int untilS,
+            final boolean groupByTenant, final boolean verbose,
+            int topHowMany, boolean includeSeconds) throws IOException {
+        String[] names = { "Reader", "-raw" };
+        Bench.Result[] results = new Bench.Result[names.length];
+        for (int ii = 0; ii < names.length; ++ii) {
+            final boolean raw = (ii > 0);
+            results[ii] = bench.run(names[ii], new Bench.ParserFactory() {
+                @Override
+                public LogFileParser newParser() {
+                    LogFileParser rv;
+                    if (nonChronological) {
+                        rv = new NonChronologicalFileParser(thresholds, verbose);
+                    } else {
+                        ReorderingFileParser rfp = new ReorderingFileParser(thresholds, verbose);
+                        rfp.setRereading(true);
+                        rv = rfp;
+                    }
+                    rv.setLineFormat(format);
+                    rv.setRawIngestion(raw);
+                    rv.setPercentiles(percentiles);
+                    rv.setSampling(sampleOneIn);
+                    rv.setTimeRange(sinceS, untilS);
+                    rv.setGroupByTenant(groupByTenant);
+                    return rv;
+                }
+            }, paths, topHowMany, includeSeconds);
+        }
 
-        System.out.println("hit enter to begin " + parserClass2);
-        in.readLine();
+        String out = results[0].getSummary();
+        boolean same = true;
+        for (int ii = 1; ii < results.length; ++ii) {
+            if (!results[ii].getSummary().equals(out)) {
+                System.out.println("NO " + names[0] + " said:\n\n" + out +
+                        "\nbut " + names[ii] + " said:\n\n" + results[ii].getSummary());
+                same = false;
+            }
+        }
+        if (same) System.out.println("Both ways of reading said:\n\n" + out);
+        for (Bench.Result result : results) result.print(System.out);
+    }
 
-        start = System.currentTimeMillis();
-        lfp2.processEverything(Arrays.asList(argv));
-        long elapsed2 = System.currentTimeMillis() - start;
+    /**
+     * Returns -T's thresholds, smallest first, or the default one.
+     */
+    private static int[] thresholdsOpt(Options opts, CommandLine cl) {
+        if (!cl.hasOption("T")) return new int[] { LogFileParser.CONNECTION_THRESHOLD_S };
+        TreeSet<Integer> thresholds = new TreeSet<>();
+        for (String str : cl.getOptionValue("T").split(",")) {
+            try {
+                thresholds.add(Integer.parseInt(str.trim()));
+            } catch (NumberFormatException nfe) {
+                usage(opts, "-T should be a number, or numbers separated by commas!");
+            }
+        }
+        if (thresholds.first() < 1) usage(opts, "-T should be positive!");
+        int[] rv = new int[thresholds.size()];
+        int ii = 0;
+        for (int threshold : thresholds) rv[ii++] = threshold;
+        return rv;
+    }
 
-        System.out.println("hit enter to generate summary and exit");
-        in.readLine();
+    /**
+     * Returns the given -since or -until, in seconds since 1/1/70 UTC.
+     */
+    private static int timeOpt(Options opts, CommandLine cl, String optName, int defaultValue) {
+        if (!cl.hasOption(optName)) return defaultValue;
+        try {
+            return parseTime(cl.getOptionValue(optName));
+        } catch (IllegalArgumentException iae) {
+            usage(opts, "-" + optName + " " + iae.getMessage());
+            return defaultValue;
+        }
+    }
 
-        String out1 = summaryToString(lfp1.getSummary(topHowMany), includeSeconds);
-        String out2 = summaryToString(lfp2.getSummary(topHowMany), includeSeconds);
-        if (out1.equals(out2)) {
-            System.out.println("Both approaches said:\n\n" + out1);
-        } else {
-            System.out.println("NO " + parserClass1 + " said:\n\n" + out1 +
-                    "\nbut " + parserClass2 + " said:\n\n" + out2);
+    /**
+     * Turns seconds since 1/1/70, or an ISO date or date & time (UTC unless
+     * it says otherwise), into seconds since 1/1/70 UTC.
+     *
+     * @throws IllegalArgumentException if it's garbage.
+     */
+    static int parseTime(String str) {
+        str = str.trim();
+        long rv;
+        try {
+            if (str.matches("-?\\d+")) {
+                rv = Long.parseLong(str);
+            } else if (str.indexOf('T') < 0) {
+                rv = LocalDate.parse(str).atStartOfDay(ZoneOffset.UTC).toEpochSecond();
+            } else {
+                TemporalAccessor ta = DateTimeFormatter.ISO_DATE_TIME.parse(str);
+                rv = ta.isSupported(ChronoField.OFFSET_SECONDS) ?
+                        OffsetDateTime.from(ta).toEpochSecond() :
+                        LocalDateTime.from(ta).toEpochSecond(ZoneOffset.UTC);
+            }
+        } catch (DateTimeException | NumberFormatException e) {
+            throw new IllegalArgumentException("should be seconds since 1/1/70 or an ISO date!");
+        }
+        if ((rv < Integer.MIN_VALUE) || (rv > Integer.MAX_VALUE)) {
+            throw new IllegalArgumentException("is out of range (it's 2038 already?)");
+        }
+        return (int)rv;
+    }
+
+    /**
+     * Makes TimeIndexes for the given file, or the files in the given
+     * directory, which don't have up-to-date ones.
+     */
+    private static void indexFiles(File file, LineFormat format) throws IOException {
+        File[] files = file.isDirectory() ? file.listFiles() : new File[] { file };
+        for (File tf : files) {
+            if (TimeIndex.isIndexFile(tf)) continue;
+            TimeIndex index = null;
+            try {
+                index = TimeIndex.read(tf);
+            } catch (IOException ioe) {
+                System.err.println("remaking " + TimeIndex.indexFile(tf) + ": " + ioe.getMessage());
+            }
+            if (index == null) {
+                TimeIndex.build(tf, format, TimeIndex.DEFAULT_LINES_PER_BLOCK).write(tf);
+            }
         }
-        System.out.println(parserClass1 + ": " + elapsed1 + " ms");
-        System.out.println(parserClass2 + ": " + elapsed2 + " ms");
     }
 
     private static int positiveIntOpt(Options opts, CommandLine cl, String optName, int defaultValue) {
+        return intOpt(opts, cl, optName, defaultValue, 1, "positive");
+    }
+
+    private static int nonNegativeIntOpt(Options opts, CommandLine cl, String optName, int defaultValue) {
+        return intOpt(opts, cl, optName, defaultValue, 0, "zero or more");
+    }
+
+    private static int intOpt(Options opts, CommandLine cl, String optName,
+                              int defaultValue, int min, String minDescription) {
         int rv = defaultValue;
         if (cl.hasOption(optName)) {
             try {
@@ -117,11 +517,24 @@ public class LogTop {
             } catch (NumberFormatException nfe) {
                 usage(opts, "-" + optName + " should be a number!");
             }
-            if (rv < 1) usage(opts, "-" + optName + " should be positive!");
+            if (rv < min) usage(opts, "-" + optName + " should be " + minDescription + "!");
         }
         return rv;
     }
 
+    /**
+     * Turns "host:port" or just "port" (meaning localhost) into an address.
+     *
+     * @throws IllegalArgumentException if it's garbage.
+     */
+    static InetSocketAddress parseAddress(String str) {
+        int colon = str.lastIndexOf(':');
+        String host = (colon < 0) ? "localhost" : str.substring(0, colon);
+        //  NumberFormatException is an IllegalArgumentException, and so is
+        //  what InetSocketAddress throws for an out-of-range port.
+        return new InetSocketAddress(host, Integer.parseInt(str.substring(colon + 1)));
+    }
+
     /**
      * Calls System.exit().
      */
@@ -132,6 +545,52 @@ public class LogTop {
         System.exit(1);
     }
 
+    /**
+     * Returns a SummaryWriter which writes to System.out.
+     */
+    private static SummaryWriter newSummaryWriter(int format, boolean includeSeconds) {
+        //  System.out's buffer is just going to get in the way, since we hand
+        //  it 64K at a time; but going through it means nobody has to worry
+        //  about what's already in there.
+        System.out.flush();
+        return new SummaryWriter(Channels.newChannel(System.out), format,
+                includeSeconds);
+    }
+
+    /**
+     * Returns the given parser's summary for each of its thresholds, each
+     * one headed by the threshold if there's more than one; or, if it's
+     * grouping by tenant, all that for each tenant, headed by the tenant.
+     */
+    static String summariesToString(LogFileParser lfp, int topHowMany,
+                                    boolean includeSeconds) {
+        if (lfp.groupByTenant) {
+            StringBuilder rv = new StringBuilder();
+            for (String tenant : lfp.getTenants()) {
+                if (rv.length() > 0) rv.append('\n');
+                rv.append("Tenant: /").append(tenant).append('\n');
+                rv.append(summariesToString(lfp.getTenant(tenant), topHowMany, includeSeconds));
+            }
+            return (rv.length() > 0) ? rv.toString() : "No tenants yet.\n";
+        }
+        int[] thresholds = lfp.getThresholds();
+        if (thresholds.length == 1) {
+            return summaryToString(lfp.getSummary(topHowMany), includeSeconds);
+        }
+        StringBuilder rv = new StringBuilder();
+        for (int ii = 0; ii < thresholds.length; ++ii) {
+            if (ii > 0) rv.append('\n');
+            rv.append("Session threshold: ").append(thresholds[ii]).append(" s\n");
+            String failure = lfp.getThresholdFailure(ii);
+            if (failure != null) {
+                rv.append("Gave up on this one: ").append(failure).append('\n');
+                continue;
+            }
+            rv.append(summaryToString(lfp.getSummary(topHowMany, ii), includeSeconds));
+        }
+        return rv.toString();
+    }
+
     static String summaryToString(Summary summary, boolean includeSeconds) {
         ByteArrayOutputStream os = new ByteArrayOutputStream();
         PrintStream ps = new PrintStream(os);
@@ -152,15 +611,67 @@ public class LogTop {
     public static void printSummary(Summary summary, boolean includeSeconds,
                                     PrintStream out) {
         out.println("Total unique users: " + summary.uniqueUsers);
+        if (summary.sample != null) {
+            Summary.Sample sample = summary.sample;
+            out.println("That's a 1-in-" + sample.oneIn + " sample; for everybody, " +
+                    "95% confidence intervals are:");
+            out.println("    unique users: " + sample.getEstimatedUsers() +
+                    " +/- " + sample.getUsersMargin());
+            out.println("    pages: " + sample.getEstimatedPages() +
+                    " +/- " + sample.getPagesMargin());
+        }
+        boolean percentiles = (summary.sessionLengths != null);
+        if (percentiles) {
+            out.println("Session length p50/p90/p99: " +
+                    formatPercentiles(summary.sessionLengths, true, includeSeconds));
+            out.println("Pages per session p50/p90/p99: " +
+                    formatPercentiles(summary.sessionPages, false, includeSeconds));
+        }
         out.println("Top users:");
-        out.println("id              # pages # sess  longest shortest");
+        if (percentiles) {
+            out.println("id              # pages # sess  longest shortest " +
+                    "length p50/90/99  pages p50/90/99");
+        } else {
+            out.println("id              # pages # sess  longest shortest");
+        }
         for (Summary.User user : summary.top) {
-            out.println(String.format("%-15s %-7d %-7d %-7s %s",
-                    user.id, user.pages, user.sessions,
-                    formatDuration(user.longest, includeSeconds),
-                    formatDuration(user.shortest, includeSeconds)));
+            if (percentiles && (user.lengths != null)) {
+                out.println(String.format("%-15s %-7d %-7d %-7s %-8s %-17s %s",
+                        user.id, user.pages, user.sessions,
+                        formatDuration(user.longest, includeSeconds),
+                        formatDuration(user.shortest, includeSeconds),
+                        formatPercentiles(user.lengths, true, includeSeconds),
+                        formatPercentiles(user.pagesPerSession, false, includeSeconds)));
+            } else {
+                out.println(String.format("%-15s %-7d %-7d %-7s %s",
+                        user.id, user.pages, user.sessions,
+                        formatDuration(user.longest, includeSeconds),
+                        formatDuration(user.shortest, includeSeconds)));
+            }
         }
     }
+
+    /**
+     * Returns "p50/p90/p99" of the given Histogram, as durations if
+     * durations is set.
+     */
+    private static String formatPercentiles(Histogram histogram, boolean durations,
+                                            boolean includeSeconds) {
+        StringBuilder rv = new StringBuilder();
+        for (double pct : PERCENTILES) {
+            if (rv.length() > 0) rv.append('/');
+            int value = histogram.getValueAtPercentile(pct);
+            rv.append(durations ? formatDuration(value, includeSeconds) :
+                                  Integer.toString(value));
+        }
+        return rv.toString();
+    }
+
+    /**
+     * What -P prints (and SummaryWriter writes).
+     */
+    static final double[] PERCENTILES = { 50, 90, 99 };
+
     private static String formatDuration(int seconds, boolean includeSeconds) {
         return includeSeconds ?
                 String.format("%d:%02d", seconds / 60, seconds % 60) :
@@ -0,0 +1,431 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A UserTable which keeps everything in memory-mapped files, so that the
+ * table can be bigger than the heap (the OS pages users we haven't seen in a
+ * while out to disk), and the GC never has to look at any of it.
+ *
+ * <p>There are three files, each mapped a chunk at a time as it grows:
+ *
+ * <ul>
+ *   <li>records: one fixed-width record per user, in the order we met them,
+ *       holding the same ints as a ReorderingFileParser.User (and its
+ *       SessionTrackers), plus the user ID's hash and where its characters
+ *       are.  A user's record never
+ *       moves, so its number is a good handle for a Snapshot.</li>
+ *   <li>ids: the user IDs' characters, one after another.</li>
+ *   <li>index: an open-addressing hash table of record numbers (plus one,
+ *       so that zero means empty), with linear probing.  When it gets half
+ *       full, we build a new one twice the size in a new file.</li>
+ * </ul>
+ *
+ * <p>Only the thread calling update() uses the index.  Snapshots only read
+ * records and IDs; since records are guarded by a handful of striped locks
+ * rather than one per user, a reader and update() only get in each other's
+ * way when they happen to be on the same stripe.
+ *
+ * <p>This doesn't keep the per-user SessionSketches, which would make every
+ * record ten times bigger; don't use it with setPercentiles(true).
+ *
+ * <p>The files are deleted when the table is closed (or when the JVM exits,
+ * if it isn't), but Java gives us no way to unmap them before that, so the
+ * OS hangs on to the space until the JVM is gone.
+ */
+public class MappedUserTable implements UserTable {
+
+    //  record layout
+    private static final int HASH = 0;
+    private static final int ID_LENGTH = 4;
+    private static final int ID_OFFSET = 8;
+    private static final int PAGES = 16;
+    private static final int LAST_REQUEST_S = 20;
+    //  followed by one of these per threshold
+    private static final int TRACKERS = 24;
+    private static final int SESSIONS = 0;
+    private static final int LONGEST = 4;
+    private static final int SHORTEST = 8;
+    private static final int LAST_SESSION_START_S = 12;
+    private static final int SESSION_PAGES = 16;
+    private static final int TRACKER_SIZE = 20;
+
+    private static final int DEFAULT_CHUNK_BITS = 26;  //  64M
+    private static final int DEFAULT_INDEX_SLOTS = 1 << 16;
+
+    /**
+     * @param dir where to put the files; must exist.
+     */
+    public MappedUserTable(File dir) throws IOException {
+        this(dir, 1);
+    }
+
+    /**
+     * @param dir where to put the files; must exist.
+     * @param thresholds how many session thresholds the parser has.
+     */
+    public MappedUserTable(File dir, int thresholds) throws IOException {
+        this(dir, thresholds, DEFAULT_CHUNK_BITS, DEFAULT_INDEX_SLOTS);
+    }
+
+    /**
+     * For testing with silly little chunks.
+     *
+     * @param chunkBits log2 of the size of each mapped chunk.
+     * @param indexSlots initial size of the index; a power of two.
+     */
+    MappedUserTable(File dir, int thresholds, int chunkBits, int indexSlots)
+            throws IOException {
+        this.dir = dir;
+        this.chunkBits = chunkBits;
+        this.thresholds = thresholds;
+        //  rounded up to a power of two, so no record straddles two chunks
+        recordBits = 32 - Integer.numberOfLeadingZeros(TRACKERS + thresholds * TRACKER_SIZE - 1);
+        if (recordBits > chunkBits) throw new IllegalArgumentException("chunks too small");
+        records = new Region(dir, "records", chunkBits);
+        ids = new Region(dir, "ids", chunkBits);
+        index = new Region(dir, "index", chunkBits);
+        indexMask = indexSlots - 1;
+        for (int ii = 0; ii < locks.length; ++ii) locks[ii] = new Object();
+    }
+
+    @Override
+    public void update(String id, LineParser.Context ct, Updater updater) {
+        int hash = hash(id);
+        int record = find(id, hash);
+        if (record < 0) record = insert(id, hash);
+        synchronized (lockFor(record)) {
+            load(record, scratch);
+            scratch.id = id;
+            //  If the updater croaks (see ReorderingFileParser.updateUser()),
+            //  whatever it did before that sticks, same as it does with a
+            //  HeapUserTable, whose Users get changed in place.
+            try {
+                updater.update(scratch, ct);
+            } finally {
+                store(record, scratch);
+            }
+        }
+    }
+
+    @Override
+    public void add(ReorderingFileParser.User user) {
+        int record = insert(user.id, hash(user.id));
+        synchronized (lockFor(record)) {
+            store(record, user);
+        }
+    }
+
+    /**
+     * We don't; see the class comment.
+     */
+    @Override
+    public boolean keepsSketches() {
+        return false;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public Snapshot snapshot() {
+        final int size = count;
+        return new Snapshot() {
+            @Override
+            public int size() {
+                return size;
+            }
+
+            @Override
+            public int pages(int index) {
+                return records.getInt(recordOffset(index) + PAGES);
+            }
+
+            @Override
+            public String id(int index) {
+                return readID(index);
+            }
+
+            @Override
+            public void read(int index, ReorderingFileParser.User into, boolean histograms) {
+                synchronized (lockFor(index)) {
+                    load(index, into);
+                }
+                into.id = readID(index);
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        records.close();
+        ids.close();
+        index.close();
+    }
+
+    /**
+     * Returns the record number of the given user, or -1.
+     */
+    private int find(String id, int hash) {
+        for (int slot = hash & indexMask; ; slot = (slot + 1) & indexMask) {
+            int record = index.getInt(4L * slot) - 1;
+            if (record < 0) return -1;
+            long off = recordOffset(record);
+            if ((records.getInt(off + HASH) == hash) && idEquals(off, id)) return record;
+        }
+    }
+
+    private boolean idEquals(long recordOff, String id) {
+        if (records.getInt(recordOff + ID_LENGTH) != id.length()) return false;
+        long idOff = records.getLong(recordOff + ID_OFFSET);
+        for (int ii = 0; ii < id.length(); ++ii) {
+            if (ids.getChar(idOff + 2L * ii) != id.charAt(ii)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds a new, empty record for the given user, and returns its number.
+     */
+    private int insert(String id, int hash) {
+        if (count == Integer.MAX_VALUE) throw new IllegalStateException("too many users");
+        if (2L * (count + 1) > indexMask + 1) growIndex();
+
+        //  The ID's characters can't straddle two chunks, so if it doesn't
+        //  fit in what's left of this one, skip to the next.
+        long idBytes = 2L * id.length();
+        if (idBytes > (1L << chunkBits)) {
+            throw new IllegalArgumentException("user ID longer than a chunk: " + id.length());
+        }
+        long chunkLeft = (1L << chunkBits) - (idEnd & ((1L << chunkBits) - 1));
+        if (idBytes > chunkLeft) idEnd += chunkLeft;
+        long idOff = idEnd;
+        for (int ii = 0; ii < id.length(); ++ii) ids.putChar(idOff + 2L * ii, id.charAt(ii));
+        idEnd += idBytes;
+
+        int record = count;
+        long off = recordOffset(record);
+        records.clear(off, 1 << recordBits);
+        records.putInt(off + HASH, hash);
+        records.putInt(off + ID_LENGTH, id.length());
+        records.putLong(off + ID_OFFSET, idOff);
+        putInIndex(index, indexMask, hash, record);
+        //  Publishes the record (and its ID) to Snapshots taken after this.
+        count = record + 1;
+        return record;
+    }
+
+    private static void putInIndex(Region index, int mask, int hash, int record) {
+        int slot = hash & mask;
+        while (index.getInt(4L * slot) != 0) slot = (slot + 1) & mask;
+        index.putInt(4L * slot, record + 1);
+    }
+
+    /**
+     * Replaces the index with one twice as big.
+     */
+    private void growIndex() {
+        int newMask = 2 * indexMask + 1;
+        Region newIndex;
+        try {
+            newIndex = new Region(dir, "index", chunkBits);
+        } catch (IOException ioe) {
+            throw new IllegalStateException("couldn't grow user index", ioe);
+        }
+        for (int record = 0; record < count; ++record) {
+            putInIndex(newIndex, newMask, records.getInt(recordOffset(record) + HASH), record);
+        }
+        try {
+            index.close();
+        } catch (IOException ioe) {
+            //  The old one's garbage anyway.
+        }
+        index = newIndex;
+        indexMask = newMask;
+    }
+
+    private String readID(int record) {
+        long off = recordOffset(record);
+        int length = records.getInt(off + ID_LENGTH);
+        long idOff = records.getLong(off + ID_OFFSET);
+        char[] chars = new char[length];
+        for (int ii = 0; ii < length; ++ii) chars[ii] = ids.getChar(idOff + 2L * ii);
+        return new String(chars);
+    }
+
+    private void load(int record, ReorderingFileParser.User into) {
+        long off = recordOffset(record);
+        into.pages = records.getInt(off + PAGES);
+        into.lastRequestS = records.getInt(off + LAST_REQUEST_S);
+        into.setThresholdCount(thresholds);
+        for (int ii = 0; ii < thresholds; ++ii) {
+            ReorderingFileParser.SessionTracker st = into.at(ii);
+            long toff = off + TRACKERS + ii * TRACKER_SIZE;
+            st.sessions = records.getInt(toff + SESSIONS);
+            st.longest = records.getInt(toff + LONGEST);
+            st.shortest = records.getInt(toff + SHORTEST);
+            st.lastSessionStartS = records.getInt(toff + LAST_SESSION_START_S);
+            st.sessionPages = records.getInt(toff + SESSION_PAGES);
+            //  we don't keep these, so don't hand back somebody else's
+            st.sketch = null;
+        }
+    }
+
+    private void store(int record, ReorderingFileParser.User from) {
+        if (from.getThresholdCount() != thresholds) {
+            throw new IllegalStateException("this table is for " + thresholds +
+                    " thresholds, not " + from.getThresholdCount());
+        }
+        long off = recordOffset(record);
+        records.putInt(off + PAGES, from.pages);
+        records.putInt(off + LAST_REQUEST_S, from.lastRequestS);
+        for (int ii = 0; ii < thresholds; ++ii) {
+            ReorderingFileParser.SessionTracker st = from.at(ii);
+            long toff = off + TRACKERS + ii * TRACKER_SIZE;
+            records.putInt(toff + SESSIONS, st.sessions);
+            records.putInt(toff + LONGEST, st.longest);
+            records.putInt(toff + SHORTEST, st.shortest);
+            records.putInt(toff + LAST_SESSION_START_S, st.lastSessionStartS);
+            records.putInt(toff + SESSION_PAGES, st.sessionPages);
+        }
+    }
+
+    private long recordOffset(int record) {
+        return (long)record << recordBits;
+    }
+
+    private Object lockFor(int record) {
+        return locks[record & (locks.length - 1)];
+    }
+
+    /**
+     * String.hashCode(), run through LogFileParser.uidHash()'s mixer, so
+     * that linear probing doesn't pile up on similar IDs.
+     */
+    private static int hash(String id) {
+        return LogFileParser.uidHash(id, 0, id.length());
+    }
+
+    /**
+     * A file we map a chunk at a time, as it grows.  A MappedByteBuffer
+     * can't be bigger than 2G, and mapping one huge one up front would mean
+     * guessing how big to make it.
+     */
+    private static final class Region {
+        Region(File dir, String name, int chunkBits) throws IOException {
+            file = File.createTempFile("logtop-" + name, ".bin", dir);
+            file.deleteOnExit();
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+            this.chunkBits = chunkBits;
+            chunkMask = (1 << chunkBits) - 1;
+        }
+
+        int getInt(long off) {
+            return chunk(off).getInt((int)(off & chunkMask));
+        }
+
+        long getLong(long off) {
+            return chunk(off).getLong((int)(off & chunkMask));
+        }
+
+        char getChar(long off) {
+            return chunk(off).getChar((int)(off & chunkMask));
+        }
+
+        void putInt(long off, int value) {
+            chunkForWriting(off).putInt((int)(off & chunkMask), value);
+        }
+
+        void putLong(long off, long value) {
+            chunkForWriting(off).putLong((int)(off & chunkMask), value);
+        }
+
+        void putChar(long off, char value) {
+            chunkForWriting(off).putChar((int)(off & chunkMask), value);
+        }
+
+        /**
+         * Zeroes len bytes at off.  (New chunks come from the OS zeroed, but
+         * a reused index file wouldn't be, and it's cheap.)
+         */
+        void clear(long off, int len) {
+            MappedByteBuffer mbb = chunkForWriting(off);
+            int pos = (int)(off & chunkMask);
+            for (int ii = 0; ii < len; ii += 8) mbb.putLong(pos + ii, 0L);
+        }
+
+        /**
+         * Reads never go past what's been written, so the chunk is there.
+         * If the offset's past what we've mapped, then it's a read of an
+         * index slot nobody's written, which is zero.
+         */
+        private MappedByteBuffer chunk(long off) {
+            MappedByteBuffer[] tc = chunks;
+            int ci = (int)(off >>> chunkBits);
+            return (ci < tc.length) ? tc[ci] : chunkForWriting(off);
+        }
+
+        private MappedByteBuffer chunkForWriting(long off) {
+            int ci = (int)(off >>> chunkBits);
+            MappedByteBuffer[] tc = chunks;
+            if (ci < tc.length) return tc[ci];
+            synchronized (this) {
+                tc = chunks;
+                if (ci >= tc.length) {
+                    MappedByteBuffer[] grown = Arrays.copyOf(tc, ci + 1);
+                    try {
+                        for (int ii = tc.length; ii <= ci; ++ii) {
+                            grown[ii] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                    (long)ii << chunkBits, 1L << chunkBits);
+                            grown[ii].order(ByteOrder.nativeOrder());
+                        }
+                    } catch (IOException ioe) {
+                        throw new IllegalStateException("couldn't map more of " + file, ioe);
+                    }
+                    chunks = grown;
+                    tc = grown;
+                }
+            }
+            return tc[ci];
+        }
+
+        void close() throws IOException {
+            chunks = new MappedByteBuffer[0];
+            channel.close();
+            raf.close();
+            file.delete();
+        }
+
+        private final File file;
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private final int chunkBits;
+        private final int chunkMask;
+        //  replaced, never changed, so readers can grab it without a lock
+        private volatile MappedByteBuffer[] chunks = new MappedByteBuffer[0];
+    }
+
+    private final File dir;
+    private final int chunkBits;
+    private final int thresholds;
+    //  log2 of the record size
+    private final int recordBits;
+    private final Region records;
+    private final Region ids;
+    //  only touched by the update() thread
+    private Region index;
+    private int indexMask;
+    private long idEnd = 0;
+    private final ReorderingFileParser.User scratch = new ReorderingFileParser.User(null);
+    //  Striped locks guarding records.  A power of two.
+    private final Object[] locks = new Object[64];
+    //  how many records there are; see insert()
+    private volatile int count = 0;
+}
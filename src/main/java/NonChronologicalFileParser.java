@@ -1,13 +1,11 @@
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Collection;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Processes one or more log files and generates a summary of the top n users'
@@ -26,6 +24,16 @@ import java.util.TreeSet;
  * connection is back to the first host, this should correctly interpret those
  * as a single session (although I didn't test that).  Hopefully it's worth the
  * memory which this thing probably hogs!
+ *
+ * <p>Since we've got all those sessions lying around anyway, you can also ask
+ * about them: getSessions() gives you every session for one user, and
+ * getUsersActiveBetween() tells you who was around during some time range
+ * (if you asked for that with setSessionIndex()).
+ *
+ * <p>With several thresholds, we only keep sessions for the smallest one.
+ * A bigger threshold never splits those; it just glues together the ones
+ * which are closer together than it, and we do that when we're asked for a
+ * summary.
  */
 public class NonChronologicalFileParser extends LogFileParser {
 
@@ -33,6 +41,13 @@ public class NonChronologicalFileParser extends LogFileParser {
         super(connectionThresholdS, verbose);
     }
 
+    /**
+     * See LogFileParser(int[], boolean).
+     */
+    public NonChronologicalFileParser(int[] connectionThresholdsS, boolean verbose) {
+        super(connectionThresholdsS, verbose);
+    }
+
     @Override
     public int processEverything(List<String> paths) throws IOException {
         int requestsAtStart = userRequests;
@@ -40,7 +55,7 @@ public class NonChronologicalFileParser extends LogFileParser {
             File tf = new File(path);
             if (tf.isDirectory()) {
                 for (File tf2 : tf.listFiles()) {
-                    processFile(tf2);
+                    if (!TimeIndex.isIndexFile(tf2)) processFile(tf2);
                 }
             } else {
                 processFile(tf);
@@ -52,30 +67,47 @@ public class NonChronologicalFileParser extends LogFileParser {
     /**
      * Parses the given log file.  Probably not real exciting if the given file
      * isn't a log file.
-     *
-     * @return the number of user requests found.
      */
     private void processFile(File file) throws IOException {
-        if (verbose) System.err.println("processFile(\"" + file + "\")");
-        LineParser lp = new LineParser();
+        if (verbose) diagnostics.report(Diagnostics.INFO, null, 0, "processFile(\"" + file + "\")");
+        LineParser lp = newLineParser();
         LineParser.Context ct = new LineParser.Context();
-        ct.verbose = verbose;
+        ct.diagnostics = diagnostics;
         ct.verboseCurrentFile = file.getName();
         ct.verboseCurrentLine = 0;
-        BufferedReader in = new BufferedReader(new FileReader(file));
-        int startingRequests = userRequests;
-        String line;
-        while ((line = in.readLine()) != null) {
+        LineSource in = openLinesInRange(file);
+        CharSequence line;
+        while ((line = in.nextLine()) != null) {
             ++ct.verboseCurrentLine;
             if (lp.parseLine(line, ct)) {
                 handleUserRequest(ct);
             }
         }
         in.close();
+        linesRead += ct.verboseCurrentLine;
     }
 
-    private void handleUserRequest(LineParser.Context ct) {
+    @Override
+    void handleUserRequest(LineParser.Context ct) {
+        if (groupByTenant) {
+            tenantParser(ct).handleUserRequest(ct);
+            return;
+        }
+        if (!inShard(ct.userID)) return;
         User user = getOrCreate(ct.userID);
+        //  Only one thread ever gets in here, but getSummary() may be walking
+        //  this User's sessions on another.
+        synchronized (user) {
+            updateUser(user, ct);
+        }
+    }
+
+    @Override
+    LogFileParser newTenantParser() {
+        return new NonChronologicalFileParser(thresholdsS, false);
+    }
+
+    private void updateUser(User user, LineParser.Context ct) {
         ++user.pages;
 
         //  if you do this instead of reusing the same object across calls, at
@@ -87,30 +119,44 @@ public class NonChronologicalFileParser extends LogFileParser {
         if (before == null) {
             if (after == null) {
                 //  This is our first session for this user!
-                user.sessions.add(new Session(ct.requestS));
+                addSession(user, ct.requestS);
             } else if (ct.requestS + connectionThresholdS >= after.start) {
                 //  This request is part of that session; crank its start back
                 //  to this request time.  We "know" that's not affecting its
                 //  order in the tree.
-                after.start = ct.requestS;
+                moveStart(after, ct.requestS);
+                ++after.pages;
             } else {
                 //  This request is far enough away to be its own session.
-                user.sessions.add(new Session(ct.requestS));
+                addSession(user, ct.requestS);
             }
         } else {
             if (before.end >= ct.requestS) {
                 //  This request is already within the bounds of this session;
-                //  nothing to do!
+                //  nothing to do but count it.
+                ++before.pages;
             } else if (before.end + connectionThresholdS >= ct.requestS) {
                 //  Does this request bridge the gap between the two sessions?
                 if ((after != null) && (ct.requestS + connectionThresholdS >= after.start)) {
                     //  Yep!  Coalesce the two sessions into one.
-                    before.end = after.end;
                     user.sessions.remove(after);
+                    if (sessionIndex != null) {
+                        synchronized (sessionIndex) {
+                            sessionIndex.remove(after);
+                        }
+                    }
+                    before.end = after.end;
+                    before.pages += after.pages;
                 } else {
                     //  No, this request just extends the session.
                     before.end = ct.requestS;
                 }
+                ++before.pages;
+                if (sessionIndex != null) {
+                    synchronized (sessionIndex) {
+                        sessionIndex.endMoved(before);
+                    }
+                }
             } else {
                 //  This request is too far away to be part of the "before"
                 //  session.  Is it part of the "after" session, or is it a new
@@ -119,42 +165,219 @@ public class NonChronologicalFileParser extends LogFileParser {
                     //  It's part of the "after" session.  As above, crank its
                     //  start back to this request time; we "know" that's not
                     //  affecting its order in the tree.
-                    after.start = ct.requestS;
+                    moveStart(after, ct.requestS);
+                    ++after.pages;
                 } else {
                     //  it's its' own request!
-                    user.sessions.add(new Session(ct.requestS));
+                    addSession(user, ct.requestS);
                 }
             }
         }
     }
 
+    private void addSession(User user, int requestS) {
+        Session ts = new Session(user, requestS);
+        ts.pages = 1;
+        user.sessions.add(ts);
+        if (sessionIndex != null) {
+            synchronized (sessionIndex) {
+                sessionIndex.add(ts);
+            }
+        }
+    }
+
+    /**
+     * Moves the given session's start time back.  That doesn't affect its
+     * order in its user's tree, but it sure might in sessionIndex, so we have
+     * to take it out & put it back.
+     */
+    private void moveStart(Session session, int newStart) {
+        if (sessionIndex == null) {
+            session.start = newStart;
+            return;
+        }
+        synchronized (sessionIndex) {
+            sessionIndex.remove(session);
+            session.start = newStart;
+            sessionIndex.add(session);
+        }
+    }
+
+    /**
+     * If true, we keep an index of every session by time, so that
+     * getUsersActiveBetween() can answer without looking at every user.
+     * That's a tree node and some rebalancing for every session, and
+     * nobody needs it for a summary, so the default is false.  Set this
+     * before you give us any files.
+     */
+    public void setSessionIndex(boolean on) {
+        if (!users.isEmpty()) throw new IllegalStateException("too late to change the session index");
+        sessionIndex = on ? new IntervalTree() : null;
+    }
+
     @Override
-    public Summary getSummary(int topHowMany) {
-        Summary rv = new Summary();
-        rv.uniqueUsers = users.size();
-
-        //  This is the crudest possible way to get the top n users, but the
-        //  *code* is easy.  Note to self: have the intern rewrite this bit.
-        ArrayList<User> all = new ArrayList<>(users.values());
-        Collections.sort(all, byPages);
-
-        //  Now copy the top n into the Summary.
-        for (int ii = 0; (ii < topHowMany) && (ii < all.size()); ++ii) {
-            User user = all.get(ii);
-            int shortest = Integer.MAX_VALUE;
-            int longest = 0;
+    public void visitSummary(int topHowMany, int which, Summary.Visitor visitor)
+            throws IOException {
+        //  We're picking the top n out of longs, not Users; see byPagesKey()
+        //  for why.
+        final ArrayList<User> all = new ArrayList<>(users.values());
+        visitor.uniqueUsers(all.size());
+        long[] keys = new long[all.size()];
+        long pages = 0;
+        double pagesSquared = 0;
+        for (int ii = 0; ii < keys.length; ++ii) {
+            int userPages = all.get(ii).pages;
+            keys[ii] = byPagesKey(userPages, ii);
+            pages += userPages;
+            pagesSquared += (double)userPages * userPages;
+        }
+        if (sampleOneIn > 1) {
+            visitor.sample(new Summary.Sample(sampleOneIn, keys.length, pages, pagesSquared));
+        }
+        int[] order = topUsers(keys, topHowMany, new UserIDs() {
+            @Override
+            public String get(int index) {
+                return all.get(index).id;
+            }
+        });
+
+        if (percentiles) {
+            //  We've got every session lying around anyway, so unlike
+            //  ReorderingFileParser, we don't keep these as we go; we just
+            //  count everything now.  (Sessions can get coalesced right up
+            //  until the end, so we couldn't count them as we go anyway.)
+            Histogram lengths = new Histogram();
+            Histogram perSession = new Histogram();
+            for (User user : all) {
+                synchronized (user) {
+                    for (Session ts : sessionsAt(user, which)) {
+                        lengths.record(sessionLength(ts));
+                        perSession.record(ts.pages);
+                    }
+                }
+            }
+            visitor.sessions(lengths, perSession);
+        }
+
+        //  Now copy each of the top n, and hand it over.  (Not while we're
+        //  holding its lock, though; the Visitor may be writing to a slow
+        //  pipe.)
+        for (int index : order) {
+            User user = all.get(index);
+            Summary.User su;
+            synchronized (user) {
+                su = toSummaryUser(user, which);
+            }
+            visitor.user(su);
+        }
+    }
+
+    private Summary.User toSummaryUser(User user, int which) {
+        int shortest = Integer.MAX_VALUE;
+        int longest = 0;
+        //  We could do these exactly, but then we wouldn't agree with
+        //  ReorderingFileParser, which can only afford a SessionSketch.
+        SessionSketch sketch = percentiles ? new SessionSketch() : null;
+        Collection<Session> sessions = sessionsAt(user, which);
+        for (Session ts : sessions) {
+            int elapsed = sessionLength(ts);
+            if (elapsed < shortest) shortest = elapsed;
+            if (elapsed > longest) longest = elapsed;
+            if (percentiles) sketch.record(elapsed, ts.pages);
+        }
+        Summary.User rv = new Summary.User(user.id, user.pages,
+                sessions.size(), longest, shortest);
+        if (percentiles) {
+            rv.lengths = sketch.lengths();
+            rv.pagesPerSession = sketch.pagesPerSession();
+        }
+        return rv;
+    }
+
+    /**
+     * Returns the given user's sessions as they'd be with thresholdsS[which],
+     * in order.  For any but the first, that's a new list of new Sessions
+     * (whose user is null); hold the user's lock while calling this.
+     */
+    private Collection<Session> sessionsAt(User user, int which) {
+        if (which == 0) return user.sessions;
+        int thresholdS = thresholdsS[which];
+        ArrayList<Session> rv = new ArrayList<>();
+        Session last = null;
+        for (Session ts : user.sessions) {
+            if ((last != null) && (last.end + thresholdS >= ts.start)) {
+                last.end = ts.end;
+                last.pages += ts.pages;
+            } else {
+                last = new Session(null, ts.start);
+                last.end = ts.end;
+                last.pages = ts.pages;
+                rv.add(last);
+            }
+        }
+        return rv;
+    }
+
+    private static int sessionLength(Session session) {
+        int elapsed = session.end - session.start;
+        return (elapsed == 0) ? SINGLE_CONNECTION_SESSION_LENGTH : elapsed;
+    }
+
+    /**
+     * Returns all the sessions we've seen for the given user, in chronological
+     * order.
+     *
+     * @return a new list, never null; empty if we've never heard of them.
+     */
+    public List<SessionInfo> getSessions(String userID) {
+        ArrayList<SessionInfo> rv = new ArrayList<>();
+        User user = users.get(userID);
+        if (user == null) return rv;
+        synchronized (user) {
             for (Session ts : user.sessions) {
-                int elapsed = ts.end - ts.start;
-                if (elapsed == 0) elapsed = SINGLE_CONNECTION_SESSION_LENGTH;
-                if (elapsed < shortest) shortest = elapsed;
-                if (elapsed > longest) longest = elapsed;
+                rv.add(new SessionInfo(user.id, ts.start, ts.end));
             }
-            rv.top.add(new Summary.User(user.id, user.pages, user.sessions.size(),
-                    longest, shortest));
         }
         return rv;
     }
 
+    /**
+     * Returns the IDs of users who had a session overlapping the given time
+     * range.  This takes O(log n + k) for n sessions, k of which overlap the
+     * range (see IntervalTree), however long anybody's sessions are.  You
+     * can call it while another thread is feeding us.
+     *
+     * @param fromS the start of the range, in seconds since 1/1/70 UTC.
+     * @param toS the end of the range (inclusive).
+     * @return a new list, sorted, never null.
+     * @throws IllegalStateException if setSessionIndex() wasn't turned on.
+     */
+    public List<String> getUsersActiveBetween(int fromS, int toS) {
+        if (sessionIndex == null) {
+            throw new IllegalStateException("no session index; see setSessionIndex()");
+        }
+        TreeSet<String> rv = new TreeSet<>();
+        synchronized (sessionIndex) {
+            sessionIndex.overlapping(fromS, toS, rv);
+        }
+        return new ArrayList<>(rv);
+    }
+
+    /**
+     * What getSessions() returns.  Times are in seconds since 1/1/70 UTC.
+     */
+    public static class SessionInfo {
+        public final String userID;
+        public final int start;
+        public final int end;
+
+        public SessionInfo(String userID, int start, int end) {
+            this.userID = userID;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
     private static class User {
         public User(String id) {
             this.id = id;
@@ -164,15 +387,21 @@ public class NonChronologicalFileParser extends LogFileParser {
         final TreeSet<Session> sessions = new TreeSet<>(byStartTime);
     }
     private static class Session {
-        public Session(int requestTime) {
+        public Session(User user, int requestTime) {
+            this.user = user;
             start = requestTime;
             end = requestTime;
         }
+        //  null in search keys
+        final User user;
         //  We do modify this value, and we do use it as the sort key in the
         //  sessions TreeSet, but when we modify its value, we should never be
-        //  affecting its order in the tree.
+        //  affecting its order in the tree.  (In sessionIndex, we do; see
+        //  moveStart().)
         int start;
         int end;
+        //  requests in this session
+        int pages;
     }
     private static final Comparator<Session> byStartTime = new Comparator<Session>() {
         @Override
@@ -180,8 +409,177 @@ public class NonChronologicalFileParser extends LogFileParser {
             return s1.start - s2.start;
         }
     };
+    /**
+     * Orders sessions by start time, then user ID (with null users first).
+     * A user can't have two sessions with the same start time, so this is
+     * unique across all users.
+     */
+    private static final Comparator<Session> byStartThenUser = new Comparator<Session>() {
+        @Override
+        public int compare(Session s1, Session s2) {
+            if (s1.start != s2.start) return (s1.start < s2.start) ? -1 : 1;
+            if (s1.user == s2.user) return 0;
+            if (s1.user == null) return -1;
+            if (s2.user == null) return 1;
+            return s1.user.id.compareTo(s2.user.id);
+        }
+    };
+
+    /**
+     * Every session of every user, ordered by start time (then user), where
+     * each node also knows the latest end time under it: an interval tree,
+     * kept balanced as a treap.  Finding the sessions which overlap a range
+     * can skip any subtree whose sessions all end before the range starts,
+     * and everything after a session which starts after the range ends, so
+     * it only looks at O(log n) nodes which aren't answers.
+     *
+     * <p>Sessions only ever get longer: their starts move back (moveStart()
+     * takes them out and puts them back, since that changes their order) and
+     * their ends move forward (endMoved() just bumps the latest-end-under
+     * counts on the way down to them).
+     *
+     * <p>Not thread-safe; synchronize on it.  Queries read each Session's end
+     * without its user's lock; if they get a stale value, well, the request
+     * which changed it came in after they were asked.
+     */
+    private static class IntervalTree {
+        private static class Node {
+            Node(Session session, int priority) {
+                this.session = session;
+                this.priority = priority;
+                maxEnd = session.end;
+            }
+            final Session session;
+            final int priority;
+            Node left;
+            Node right;
+            //  the latest end of any session in this subtree
+            int maxEnd;
+        }
+
+        void add(Session session) {
+            //  xorshift; it just has to be random-ish, not good
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            root = insert(root, new Node(session, seed));
+        }
+
+        /**
+         * Takes out the given session, which has to have the same start it
+         * had when it was add()ed.
+         */
+        void remove(Session session) {
+            root = remove(root, session);
+        }
+
+        /**
+         * Call this after the given session's end has moved later.
+         */
+        void endMoved(Session session) {
+            Node tn = root;
+            while (tn != null) {
+                if (session.end > tn.maxEnd) tn.maxEnd = session.end;
+                int cmp = byStartThenUser.compare(session, tn.session);
+                if (cmp == 0) return;
+                tn = (cmp < 0) ? tn.left : tn.right;
+            }
+        }
+
+        /**
+         * Adds the IDs of the users with sessions overlapping fromS through
+         * toS to the given collection.
+         */
+        void overlapping(int fromS, int toS, Collection<String> into) {
+            overlapping(root, fromS, toS, into);
+        }
+
+        private static void overlapping(Node tn, int fromS, int toS, Collection<String> into) {
+            //  Everything under here ended before the range.
+            if ((tn == null) || (tn.maxEnd < fromS)) return;
+            overlapping(tn.left, fromS, toS, into);
+            //  This, and everything after it, started after the range.
+            if (tn.session.start > toS) return;
+            if (tn.session.end >= fromS) into.add(tn.session.user.id);
+            overlapping(tn.right, fromS, toS, into);
+        }
+
+        private static Node insert(Node tn, Node add) {
+            if (tn == null) return add;
+            if (byStartThenUser.compare(add.session, tn.session) < 0) {
+                tn.left = insert(tn.left, add);
+                if (tn.left.priority > tn.priority) return rotateRight(tn);
+            } else {
+                tn.right = insert(tn.right, add);
+                if (tn.right.priority > tn.priority) return rotateLeft(tn);
+            }
+            update(tn);
+            return tn;
+        }
+
+        private static Node remove(Node tn, Session session) {
+            if (tn == null) return null;
+            int cmp = byStartThenUser.compare(session, tn.session);
+            if (cmp == 0) return merge(tn.left, tn.right);
+            if (cmp < 0) {
+                tn.left = remove(tn.left, session);
+            } else {
+                tn.right = remove(tn.right, session);
+            }
+            update(tn);
+            return tn;
+        }
+
+        /**
+         * Joins two subtrees, everything in the first of which comes before
+         * everything in the second.
+         */
+        private static Node merge(Node before, Node after) {
+            if (before == null) return after;
+            if (after == null) return before;
+            if (before.priority > after.priority) {
+                before.right = merge(before.right, after);
+                update(before);
+                return before;
+            }
+            after.left = merge(before, after.left);
+            update(after);
+            return after;
+        }
+
+        private static Node rotateRight(Node tn) {
+            Node rv = tn.left;
+            tn.left = rv.right;
+            rv.right = tn;
+            update(tn);
+            update(rv);
+            return rv;
+        }
+
+        private static Node rotateLeft(Node tn) {
+            Node rv = tn.right;
+            tn.right = rv.left;
+            rv.left = tn;
+            update(tn);
+            update(rv);
+            return rv;
+        }
+
+        private static void update(Node tn) {
+            int maxEnd = tn.session.end;
+            if ((tn.left != null) && (tn.left.maxEnd > maxEnd)) maxEnd = tn.left.maxEnd;
+            if ((tn.right != null) && (tn.right.maxEnd > maxEnd)) maxEnd = tn.right.maxEnd;
+            tn.maxEnd = maxEnd;
+        }
+
+        private Node root;
+        private int seed = 0x2545f491;
+    }
 
     private User getOrCreate(String id) {
+        //  get() & put() instead of putIfAbsent() because only the ingestion
+        //  thread ever adds users, and this way we don't create a User per
+        //  request.
         User rv = users.get(id);
         if (rv == null) {
             rv = new User(id);
@@ -190,21 +588,17 @@ public class NonChronologicalFileParser extends LogFileParser {
         return rv;
     }
 
-    /**
-     * Orders Users by number of page requests, descending.
-     */
-    private static final Comparator<User> byPages = new Comparator<User>() {
-        @Override
-        public int compare(User u1, User u2) {
-            return u2.pages - u1.pages;
-        }
-    };
-
-    private HashMap<String, User> users = new HashMap<>();
+    //  Concurrent so that getSummary() can run while another thread is in
+    //  processLine(); see LogServer.
+    private ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
     //  We reuse this guy in every call to handleUserRequest(), which is just
     //  one of the reasons processEverything() is non-reentrant.  This is just
     //  to keep from throwing away another object in every call to
     //  handleUserRequest(), an optimization which is almost certainly without
     //  measurable benefit, unless you're measuring how well I sleep at night.
-    private Session searchKey = new Session(0);
+    private Session searchKey = new Session(null, 0);
+
+    //  Every session of every user, for getUsersActiveBetween(); null unless
+    //  setSessionIndex() turned it on.
+    private IntervalTree sessionIndex = null;
 }
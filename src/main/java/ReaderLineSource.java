@@ -0,0 +1,82 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * The LineSource we've always used: a BufferedReader, which decodes the file
+ * in the platform's default charset and hands us a new String for every line.
+ */
+public class ReaderLineSource implements LineSource {
+
+    public ReaderLineSource(File file) throws IOException {
+        in = new BufferedReader(new FileReader(file));
+    }
+
+    /**
+     * Only reads the bytes from offset from up to (but not including) offset
+     * to, which should both be the starts of lines (or the end of the file);
+     * see TimeIndex.
+     */
+    public ReaderLineSource(File file, long from, long to) throws IOException {
+        FileInputStream fis = new FileInputStream(file);
+        fis.getChannel().position(from);
+        in = new BufferedReader(new InputStreamReader(new Limited(fis, to - from)));
+    }
+
+    @Override
+    public CharSequence nextLine() throws IOException {
+        return in.readLine();
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    /**
+     * An InputStream which runs out after so many bytes.
+     */
+    private static class Limited extends FilterInputStream {
+        Limited(InputStream in, long remaining) {
+            super(in);
+            this.remaining = remaining;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int rv = super.read();
+            if (rv >= 0) --remaining;
+            return rv;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int rv = super.read(b, off, (int)Math.min(len, remaining));
+            if (rv > 0) remaining -= rv;
+            return rv;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long rv = super.skip(Math.min(n, remaining));
+            remaining -= rv;
+            return rv;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int)Math.min(super.available(), remaining);
+        }
+
+        private long remaining;
+    }
+
+    private final BufferedReader in;
+}
@@ -0,0 +1,66 @@
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The original log line format, done the original way: with a regular
+ * expression.  TemplateLineFormat.DEFAULT reads the same lines faster, so
+ * this is only still here as the reference for what "the same lines" means
+ * (see LineParserTest), and for "-F regex" if you ever suspect the template
+ * version of lying to you.
+ */
+public class RegexLineFormat implements LineFormat {
+
+    //  yo dawg, I heard you like regular expressions, so I put a... well,
+    //  actually, it's just one moderately nasty RE which captures the date and
+    //  user ID.
+    private static final Pattern USER_REQUEST = Pattern.compile(
+            //  IP address, which we don't care about.
+            "^\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}\\.\\d{1,3}" +
+            //  Other junk which I should probably have looked for
+            //  documentation on.
+            "\\s+-\\s+-\\s+" +
+            //  Finally, the date string!  Horrible: we're just looking for a
+            //  blob of non-space stuff starting with a number, followed by
+            //  space, followed by non-space, which we very much hope is the TZ
+            //  offset.  This blob gets passed on to DATE_FORMAT for parsing.
+            "(\\d\\S+\\s+\\S+)\\s+" +
+            //  Now the actual request!  That last "[ /?]" bit is on there
+            //  because we have some requests which don't have a fourth slash;
+            //  they're just "POST /666/666/666 HTTP/1.0", and we have others
+            //  of the form "POST /666/666/666?667 HTTP/1.0"
+            //  Also, not sure I've seen the PATCH method before, but it's in
+            //  the example logs!
+            //  The two segments before the user ID are the tenant.
+            "\"(?:GET|POST|PUT|PATCH|DELETE)\\s+/([0-9a-f]+/[0-9a-f]+)/([0-9a-f]+)[ /?]");
+    //  and we don't care about anything after the UID.
+
+    //  Not super excited about the log file date format; if sysadmins would
+    //  just learn to read seconds or milliseconds since 1/1/70 UTC, we
+    //  wouldn't have to parse nonsense like "15/Aug/2016:23:59:20 -0500".
+    //
+    //  This used to be a SimpleDateFormat, which meant it couldn't be static,
+    //  because SimpleDateFormat's not thread-safe.
+    static final TimestampPattern DATE_FORMAT =
+            new TimestampPattern("d/MMM/yyyy:HH:mm:ss Z");
+
+    @Override
+    public int parse(CharSequence line, LineParser.Context ct) {
+        Matcher tm = USER_REQUEST.matcher(line);
+        if (!tm.find()) return NOT_A_REQUEST;
+        if ((ct.sampleOneIn > 1) &&
+            !LogFileParser.inSample(line, tm.start(3), tm.end(3), ct.sampleOneIn)) {
+            return NOT_SAMPLED;
+        }
+
+        //  Like SimpleDateFormat.parse(String), this ignores anything left
+        //  in the blob after the date.
+        long requestS = DATE_FORMAT.parse(line, tm.start(1));
+        //  NO_MATCH doesn't fit in an int either; nor does anything past 2038.
+        if (requestS != (int)requestS) return BAD_TIMESTAMP;
+
+        ct.userID = tm.group(3);
+        ct.requestS = (int)requestS;
+        if (ct.tenants != null) ct.tenant = ct.tenants.intern(line, tm.start(2), tm.end(2));
+        return MATCHED;
+    }
+}
@@ -1,12 +1,25 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Processes one or more log files and generates a summary of the top n users'
@@ -18,6 +31,24 @@ import java.util.List;
  * to find a user request, and extract the date of that request; then, once
  * we've figured out the files' chronological order, we go back and parse them
  * completely in that order.
+ *
+ * <p>Because all we keep per user is a handful of ints, it's cheap to save
+ * all of that to a checkpoint file with saveCheckpoint(), and pick up where
+ * we left off later with loadCheckpoint(); that way, a nightly run only has
+ * to parse the new day's logs, and sessions which span midnight still come
+ * out right.
+ *
+ * <p>With several thresholds, each user gets a SessionTracker per threshold,
+ * all fed by the same parse and the same user lookup.  A request which is too
+ * far out of order for one threshold (see updateSessions()) may be fine for
+ * the bigger ones, so then we give up on just that one, and carry on with
+ * the rest; see getThresholdFailure().
+ *
+ * <p>Per-user percentiles are the exception to "a handful of ints": we
+ * can't know who the top users are until the end, so normally everybody
+ * gets a SessionSketch.  If the files are all we're going to see,
+ * setRereading() gets the top users' sketches from another pass over them
+ * instead.
  */
 public class ReorderingFileParser extends LogFileParser {
 
@@ -25,9 +56,19 @@ public class ReorderingFileParser extends LogFileParser {
         super(connectionThresholdS, verbose);
     }
 
+    /**
+     * See LogFileParser(int[], boolean).
+     */
+    public ReorderingFileParser(int[] connectionThresholdsS, boolean verbose) {
+        super(connectionThresholdsS, verbose);
+    }
+
     /**
      * If you call this multiple times, you are responsible for making sure
      * all files in one call have later times than all files in previous calls.
+     * Files which start no later than the latest file from a previous call (or
+     * from a checkpoint we loaded) are assumed to have been processed already,
+     * and are skipped.
      */
     @Override
     public int processEverything(List<String> paths) throws IOException {
@@ -38,7 +79,7 @@ public class ReorderingFileParser extends LogFileParser {
             File tf = new File(path);
             if (tf.isDirectory()) {
                 for (File tf2 : tf.listFiles()) {
-                    files.add(new LogFile(tf2.toString()));
+                    if (!TimeIndex.isIndexFile(tf2)) files.add(new LogFile(tf2.toString()));
                 }
             } else {
                 files.add(new LogFile(path));
@@ -53,8 +94,9 @@ public class ReorderingFileParser extends LogFileParser {
             int start = processFile(lf.path, true);
             if (start == 0) {
                 if (verbose) {
-                    System.err.println("Didn't find any user requests in " +
-                            lf.path + ", ignoring...");
+                    diagnostics.report(Diagnostics.INFO, null, 0,
+                            "Didn't find any user requests in " + lf.path +
+                            ", ignoring...");
                 }
                 files.remove(ii--);  //  careful, ii is screwed up now
             } else {
@@ -72,9 +114,28 @@ public class ReorderingFileParser extends LogFileParser {
 
         //  Now process the files for real!
         int requestsAtStart = userRequests;
+        int latestStartS = processedThroughS;
         for (int ii = 0; ii < files.size(); ++ii) {
-            processFile(files.get(ii).path, false);
+            LogFile lf = files.get(ii);
+            if (lf.startS <= processedThroughS) {
+                if (verbose) {
+                    diagnostics.report(Diagnostics.INFO, null, 0,
+                            "Already processed " + lf.path + ", skipping...");
+                }
+                continue;
+            }
+            processFile(lf.path, false);
+            if (rereading) {
+                //  (reread() may be going on another thread.)  The sketches
+                //  it kept are missing this file.
+                synchronized (this) {
+                    filesRead.add(lf.path);
+                    rereadUsers = null;
+                }
+            }
+            latestStartS = lf.startS;
         }
+        processedThroughS = latestStartS;
         return userRequests - requestsAtStart;
     }
 
@@ -90,18 +151,26 @@ public class ReorderingFileParser extends LogFileParser {
     private int processFile(String fileName, boolean justLookingForStartDate)
             throws IOException {
         if (verbose) {
-            System.err.println("processFile(\"" + fileName +
-                    "\"), justLookingForStartDate " + justLookingForStartDate);
+            diagnostics.report(Diagnostics.INFO, null, 0, "processFile(\"" +
+                    fileName + "\"), justLookingForStartDate " +
+                    justLookingForStartDate);
         }
-        LineParser lp = new LineParser();
+        //  The start date is a whole-file thing, so it ignores the time
+        //  range; otherwise a file with nothing in the range would be read
+        //  all the way through looking for it.
+        LineParser lp = justLookingForStartDate ?
+                new LineParser(lineFormat, sampleOneIn) : newLineParser();
         LineParser.Context ct = new LineParser.Context();
-        ct.verbose = verbose;
+        //  We'll see the lines at the top of the file again when we do it for
+        //  real, so don't count them twice.
+        if (!justLookingForStartDate) ct.diagnostics = diagnostics;
         ct.verboseCurrentFile = fileName;
         ct.verboseCurrentLine = 0;
-        BufferedReader in = new BufferedReader(new FileReader(fileName));
+        LineSource in = justLookingForStartDate ? openLines(new File(fileName)) :
+                openLinesInRange(new File(fileName));
         int startDate = 0;
-        String line;
-        while ((line = in.readLine()) != null) {
+        CharSequence line;
+        while ((line = in.nextLine()) != null) {
             ++ct.verboseCurrentLine;
             if (!lp.parseLine(line, ct)) continue;
             if (justLookingForStartDate) {
@@ -115,18 +184,69 @@ public class ReorderingFileParser extends LogFileParser {
         }
         in.close();
         //  ugh, nice API
-        if (!justLookingForStartDate) userRequests += ct.userRequests;
+        if (!justLookingForStartDate) {
+            userRequests += ct.userRequests;
+            linesRead += ct.verboseCurrentLine;
+        }
         return justLookingForStartDate ? startDate : 0;
     }
 
-    private void handleUserRequest(LineParser.Context ct) {
-        User user = getOrCreate(ct.userID);
+    @Override
+    void handleUserRequest(LineParser.Context ct) {
+        if (groupByTenant) {
+            tenantParser(ct).handleUserRequest(ct);
+            return;
+        }
+        if (!inShard(ct.userID)) return;
+        if ((onlyUsers != null) && !onlyUsers.contains(ct.userID)) return;
+        users.update(ct.userID, ct, updater);
+    }
+
+    @Override
+    LogFileParser newTenantParser() {
+        return new ReorderingFileParser(thresholdsS, false);
+    }
+
+    /**
+     * With one threshold, a request too far out of order to handle throws
+     * a RuntimeException, as it always has.  With several, it only costs us
+     * the threshold it's too far out of order for: we remember why, tell
+     * diagnostics, and stop doing that threshold's sessions.  (The others
+     * are bigger, so their sessions start no later, and may well be fine.)
+     * If that was the last one left, we throw after all.
+     */
+    private void updateUser(User user, LineParser.Context ct) {
         ++user.pages;
+        user.setThresholdCount(thresholdsS.length);
+        for (int ii = 0; ii < thresholdsS.length; ++ii) {
+            if (failures.get(ii) != null) continue;
+            try {
+                updateSessions(user, ii, ct);
+            } catch (RuntimeException re) {
+                if (failed + 1 == thresholdsS.length) throw re;
+                ++failed;
+                failures.set(ii, re.getMessage());
+                diagnostics.report(Diagnostics.DROPPED_REQUEST, ct.verboseCurrentFile,
+                        ct.verboseCurrentLine, "giving up on session threshold " +
+                        thresholdsS[ii] + " s: " + re.getMessage());
+            }
+        }
+        //  Unless it's out of order, this is the latest request we've seen for
+        //  them, whatever the threshold.
+        if (ct.requestS > user.lastRequestS) user.lastRequestS = ct.requestS;
+    }
+
+    /**
+     * Does the user's sessions with thresholdsS[which].  user.lastRequestS is
+     * still the request before this one.
+     */
+    private void updateSessions(User user, int which, LineParser.Context ct) {
+        SessionTracker st = user.at(which);
         if (user.lastRequestS == 0) {
             //  This is the first request we've seen for them, and so also the
             //  start of a new session.
-            user.lastRequestS = ct.requestS;
-            user.lastSessionStartS = ct.requestS;
+            st.lastSessionStartS = ct.requestS;
+            st.sessionPages = 1;
         } else if (ct.requestS < user.lastRequestS) {
             //  Snarl!  The example log files have a couple entries which are
             //  not in chronological order; we don't *actually* care about that
@@ -134,67 +254,423 @@ public class ReorderingFileParser extends LogFileParser {
             //  that they're before the start of the user's current session.
             //  We can't easily recover from that, because it means we might
             //  have incorrectly decided that a previous session ended.
-            if (ct.requestS < user.lastSessionStartS) {
+            if (ct.requestS < st.lastSessionStartS) {
                 //  I wasn't going to use verboseCurrentFile unless verbose was
                 //  set... but then I also wasn't going to croak here.
                 throw new RuntimeException("gackk, " + ct.verboseCurrentFile +
                         " " + ct.verboseCurrentLine + ": got request time " +
                         ct.requestS + " for uid " + user.id +
                         ", which is before last session start time of " +
-                        user.lastSessionStartS);
+                        st.lastSessionStartS);
             }
-            //  Not setting user.lastRequestS here, because we already got a
-            //  request later in this same session.
-        } else if (user.lastRequestS + connectionThresholdS >= ct.requestS) {
+            //  Not moving user.lastRequestS, because we already got a request
+            //  later in this same session.
+            ++st.sessionPages;
+        } else if (user.lastRequestS + thresholdsS[which] >= ct.requestS) {
             //  This request is within their last existing session.
-            user.lastRequestS = ct.requestS;
+            ++st.sessionPages;
         } else {
             //  This request is beyond the end of their last session, so wrap
             //  that one up and start a new session.
-            ++user.sessions;
-            int elapsed = user.lastRequestS - user.lastSessionStartS;
+            ++st.sessions;
+            int elapsed = user.lastRequestS - st.lastSessionStartS;
             if (elapsed == 0) elapsed = SINGLE_CONNECTION_SESSION_LENGTH;
-            if ((elapsed < user.shortest) || (user.shortest == 0)) {
-                user.shortest = elapsed;
+            if ((elapsed < st.shortest) || (st.shortest == 0)) {
+                st.shortest = elapsed;
             }
-            if (elapsed > user.longest) user.longest = elapsed;
-            user.lastRequestS = ct.requestS;
-            user.lastSessionStartS = ct.requestS;
+            if (elapsed > st.longest) st.longest = elapsed;
+            if (percentiles) recordSession(st, which, elapsed);
+            st.lastSessionStartS = ct.requestS;
+            st.sessionPages = 1;
         }
     }
 
+    /**
+     * Counts the session the given user just finished, in their sketch and
+     * in everybody's histograms.
+     */
+    private void recordSession(SessionTracker st, int which, int elapsed) {
+        if (!rereading) {
+            if (st.sketch == null) st.sketch = new SessionSketch();
+            st.sketch.record(elapsed, st.sessionPages);
+        }
+        //  getSummary() copies these on another thread; see sessionLengths.
+        synchronized (sessionLengths) {
+            sessionLengths[which].record(elapsed);
+            sessionPages[which].record(st.sessionPages);
+        }
+    }
+
+    /**
+     * @throws IllegalStateException if our UserTable can't keep the per-user
+     *         SessionSketches (see setUserTable()).
+     */
     @Override
-    public Summary getSummary(int topHowMany) {
-        Summary rv = new Summary();
-        rv.uniqueUsers = users.size();
-
-        //  This is the crudest possible way to get the top n users, but the
-        //  *code* is easy.  Note to self: have the intern rewrite this bit.
-        ArrayList<User> all = new ArrayList<>(users.values());
-        Collections.sort(all, byPages);
-
-        //  Now copy the top n into the Summary.
-        for (int ii = 0; (ii < topHowMany) && (ii < all.size()); ++ii) {
-            User user = all.get(ii);
-            //  "end" the last session they were in the midst of.  This
-            //  duplicates the logic in processLine(), but we don't modify the
-            //  User here, because that keeps someone from being able to call
-            //  processFile(), getSummary(), processFile(), getSummary()...
-            //  without goofing up sessions which span files.
-            int shortest = user.shortest;
-            int longest = user.longest;
-            int elapsed = user.lastRequestS - user.lastSessionStartS;
-            if (elapsed == 0) elapsed = SINGLE_CONNECTION_SESSION_LENGTH;
-            if ((elapsed < shortest) || (shortest == 0)) shortest = elapsed;
-            if (elapsed > longest) longest = elapsed;
+    public void setPercentiles(boolean percentiles) {
+        if (percentiles && !users.keepsSketches()) {
+            throw new IllegalStateException(users.getClass().getName() +
+                    " can't do per-user percentiles");
+        }
+        super.setPercentiles(percentiles);
+    }
+
+    /**
+     * If true, and we're doing percentiles, we don't keep a SessionSketch
+     * for every user; instead, getSummary() reads the files again, following
+     * just the top users, to make theirs.  That's a few hundred bytes less
+     * per user (per threshold), which with millions of them is most of what
+     * we keep, for another pass over the files.  (Only one, though: after
+     * that, we hang on to the top users' sketches, and only read the files
+     * again if we're asked for somebody we haven't got.)  The files had
+     * better not change in between.  The default is false.
+     *
+     * <p>It only works if everything we know came from processEverything(),
+     * so it doesn't go with processLine(), loadCheckpoint(), or
+     * saveCheckpoint().  With setGroupByTenant(), the tenants' parsers keep
+     * sketches as usual.  Set this before you give us any files.
+     */
+    public void setRereading(boolean rereading) {
+        this.rereading = rereading;
+    }
+
+    /**
+     * @throws IllegalStateException if we're doing percentiles by rereading
+     *         (see setRereading()), since we couldn't read this line again.
+     */
+    @Override
+    public boolean processLine(LineParser lp, CharSequence line, LineParser.Context ct) {
+        if (percentiles && rereading) {
+            throw new IllegalStateException("can't reread lines which didn't come from a file");
+        }
+        return super.processLine(lp, line, ct);
+    }
+
+    @Override
+    public String getThresholdFailure(int which) {
+        return failures.get(which);
+    }
+
+    @Override
+    public void visitSummary(int topHowMany, int which, Summary.Visitor visitor)
+            throws IOException {
+        String failure = failures.get(which);
+        if (failure != null) {
+            throw new IllegalStateException("gave up on session threshold " +
+                    thresholdsS[which] + " s: " + failure);
+        }
+        //  We're picking the top n out of longs, not Users; see byPagesKey()
+        //  for why.
+        final UserTable.Snapshot snap = users.snapshot();
+        visitor.uniqueUsers(snap.size());
+        long[] keys = new long[snap.size()];
+        long pages = 0;
+        double pagesSquared = 0;
+        for (int ii = 0; ii < keys.length; ++ii) {
+            int userPages = snap.pages(ii);
+            keys[ii] = byPagesKey(userPages, ii);
+            pages += userPages;
+            pagesSquared += (double)userPages * userPages;
+        }
+        if (sampleOneIn > 1) {
+            visitor.sample(new Summary.Sample(sampleOneIn, keys.length, pages, pagesSquared));
+        }
+        int[] order = topUsers(keys, topHowMany, new UserIDs() {
+            @Override
+            public String get(int index) {
+                return snap.id(index);
+            }
+        });
+        //  The table hands out copies, so we can reuse one User for all of
+        //  them.
+        User scratch = new User(null);
+        Map<String, User> sketches = null;
+        if (percentiles && rereading) {
+            String[] ids = new String[order.length];
+            for (int ii = 0; ii < order.length; ++ii) ids[ii] = snap.id(order[ii]);
+            sketches = reread(ids);
+        }
 
-            //  user.sessions + 1 to include the one we just "ended"
-            rv.top.add(new Summary.User(user.id, user.pages, user.sessions + 1,
-                    longest, shortest));
+        if (percentiles) {
+            //  Everybody's finished sessions are already counted; we just
+            //  have to add the ones they're in the middle of, same as
+            //  toSummaryUser() does.  (If requests are still coming in, a
+            //  session might finish between copying these and getting to
+            //  its user, and get counted twice.  Close enough.)
+            Histogram lengths;
+            Histogram perSession;
+            synchronized (sessionLengths) {
+                lengths = sessionLengths[which].copy();
+                perSession = sessionPages[which].copy();
+            }
+            for (int ii = 0; ii < snap.size(); ++ii) {
+                snap.read(ii, scratch, false);
+                lengths.record(currentSessionLength(scratch, scratch.at(which)));
+                perSession.record(scratch.at(which).sessionPages);
+            }
+            visitor.sessions(lengths, perSession);
+        }
+
+        //  Now copy each of the top n, and hand it over.  (read() does the
+        //  copying under whatever lock the table uses, so we're not holding
+        //  it while the Visitor writes to what may be a slow pipe.)
+        for (int index : order) {
+            snap.read(index, scratch, true);
+            if (sketches != null) {
+                User sketched = sketches.get(scratch.id);
+                SessionSketch sketch = (sketched == null) ? null : sketched.at(which).sketch;
+                scratch.at(which).sketch = (sketch == null) ? null : sketch.copy();
+            }
+            visitor.user(toSummaryUser(scratch, which));
+        }
+    }
+
+    /**
+     * For setRereading(): returns the given users, with their
+     * SessionSketches, by ID, from another pass over the files which only
+     * follows them (or from the last one, if it followed all of them).
+     */
+    private synchronized Map<String, User> reread(String[] ids) throws IOException {
+        if ((rereadUsers != null) && rereadUsers.keySet().containsAll(Arrays.asList(ids))) {
+            return rereadUsers;
+        }
+        //  Same everything as us, but keeping sketches, and only for them.
+        //  Everything it would have to say about the lines, we've already
+        //  said, so its diagnostics go nowhere.
+        ReorderingFileParser rp = new ReorderingFileParser(thresholdsS, false);
+        rp.diagnostics = new Diagnostics(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+        }), false);
+        rp.lineFormat = lineFormat;
+        rp.rawIngestion = rawIngestion;
+        rp.percentiles = true;
+        rp.sampleOneIn = sampleOneIn;
+        rp.sinceS = sinceS;
+        rp.untilS = untilS;
+        rp.shard = shard;
+        rp.shards = shards;
+        rp.onlyUsers = new HashSet<>(Arrays.asList(ids));
+        for (String path : filesRead) rp.processFile(path, false);
+
+        HashMap<String, User> rv = new HashMap<>();
+        UserTable.Snapshot snap = rp.users.snapshot();
+        for (int ii = 0; ii < snap.size(); ++ii) {
+            User user = new User(null);
+            snap.read(ii, user, true);
+            rv.put(user.id, user);
+        }
+        //  Somebody we were asked for with no requests can't happen, but
+        //  if it did, we'd read the files again every time without this.
+        for (String id : ids) {
+            if (!rv.containsKey(id)) rv.put(id, new User(id));
+        }
+        rp.users.close();
+        rereadUsers = rv;
+        return rv;
+    }
+
+    /**
+     * @param user a copy, whose SessionSketches we're free to change.
+     */
+    private Summary.User toSummaryUser(User user, int which) {
+        //  "end" the last session they were in the midst of.  This
+        //  duplicates the logic in processLine(), but we don't modify the
+        //  User here, because that keeps someone from being able to call
+        //  processFile(), getSummary(), processFile(), getSummary()...
+        //  without goofing up sessions which span files.
+        SessionTracker st = user.at(which);
+        int shortest = st.shortest;
+        int longest = st.longest;
+        int elapsed = currentSessionLength(user, st);
+        if ((elapsed < shortest) || (shortest == 0)) shortest = elapsed;
+        if (elapsed > longest) longest = elapsed;
+
+        //  st.sessions + 1 to include the one we just "ended"
+        Summary.User rv = new Summary.User(user.id, user.pages,
+                st.sessions + 1, longest, shortest);
+        if (percentiles) {
+            SessionSketch sketch = (st.sketch == null) ? new SessionSketch() : st.sketch;
+            sketch.record(elapsed, st.sessionPages);
+            rv.lengths = sketch.lengths();
+            rv.pagesPerSession = sketch.pagesPerSession();
         }
         return rv;
     }
 
+    /**
+     * Returns the length of the session the given user is in the middle of
+     * (according to st, one of their SessionTrackers), as if it ended now.
+     */
+    private static int currentSessionLength(User user, SessionTracker st) {
+        int elapsed = user.lastRequestS - st.lastSessionStartS;
+        return (elapsed == 0) ? SINGLE_CONNECTION_SESSION_LENGTH : elapsed;
+    }
+
+    /**
+     * Writes everything we know to the given file, replacing whatever was
+     * there, so that a later run can loadCheckpoint() it and carry on with
+     * newer files.  (We write to a temp file and rename it, so if we croak
+     * halfway through, the old checkpoint is still there.)
+     *
+     * <p>Don't call this while someone's in processLine() on another thread.
+     * Checkpoints don't do tenants (see setGroupByTenant()), or thresholds
+     * we've given up on (see getThresholdFailure()), whose sessions would be
+     * garbage for the next run.  Nor do they go with percentiles by
+     * rereading (see setRereading()), since we haven't got the sketches.
+     */
+    public void saveCheckpoint(File file) throws IOException {
+        if (groupByTenant) throw new IllegalStateException("can't checkpoint tenants");
+        if (percentiles && rereading) {
+            throw new IllegalStateException("can't checkpoint when rereading for percentiles");
+        }
+        if (failed > 0) {
+            throw new IllegalStateException("can't checkpoint after giving up " +
+                    "on a session threshold");
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(tmp), 64 * 1024));
+        try {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeInt(thresholdsS.length);
+            for (int threshold : thresholdsS) out.writeInt(threshold);
+            out.writeInt(sampleOneIn);
+            out.writeInt(shard);
+            out.writeInt(shards);
+            out.writeInt(processedThroughS);
+            out.writeInt(userRequests);
+            out.writeBoolean(percentiles);
+            if (percentiles) {
+                for (int ii = 0; ii < thresholdsS.length; ++ii) {
+                    sessionLengths[ii].write(out);
+                    sessionPages[ii].write(out);
+                }
+            }
+            UserTable.Snapshot snap = users.snapshot();
+            User user = new User(null);
+            out.writeInt(snap.size());
+            for (int ii = 0; ii < snap.size(); ++ii) {
+                snap.read(ii, user, percentiles);
+                out.writeUTF(user.id);
+                out.writeInt(user.pages);
+                out.writeInt(user.lastRequestS);
+                for (int jj = 0; jj < thresholdsS.length; ++jj) {
+                    SessionTracker st = user.at(jj);
+                    out.writeInt(st.sessions);
+                    out.writeInt(st.longest);
+                    out.writeInt(st.shortest);
+                    out.writeInt(st.lastSessionStartS);
+                    out.writeInt(st.sessionPages);
+                    if (percentiles) {
+                        out.writeBoolean(st.sketch != null);
+                        if (st.sketch != null) st.sketch.write(out);
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Reads a file written by saveCheckpoint(), replacing our state with
+     * what's in it.  Call this on a new parser, after setSampling() and
+     * setShard() but before processEverything().
+     *
+     * @throws IOException if the file isn't a checkpoint, or was written with
+     *                     different session thresholds, sampling, or shard
+     *                     than ours (because then the sessions or users in
+     *                     it are wrong for us).
+     * @throws IllegalStateException if we're doing percentiles by rereading
+     *                     (see setRereading()), since we couldn't reread
+     *                     the files the checkpoint came from.
+     */
+    public void loadCheckpoint(File file) throws IOException {
+        if (percentiles && rereading) {
+            throw new IllegalStateException("can't load a checkpoint when rereading for percentiles");
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file), 64 * 1024));
+        try {
+            if ((in.readInt() != CHECKPOINT_MAGIC) ||
+                (in.readInt() != CHECKPOINT_VERSION)) {
+                throw new IOException(file + " isn't a checkpoint file (or " +
+                        "is from a different version)");
+            }
+            int[] thresholds = new int[in.readInt()];
+            for (int ii = 0; ii < thresholds.length; ++ii) thresholds[ii] = in.readInt();
+            if (!Arrays.equals(thresholds, thresholdsS)) {
+                throw new IOException(file + " was written with session " +
+                        "thresholds of " + Arrays.toString(thresholds) +
+                        ", not " + Arrays.toString(thresholdsS));
+            }
+            //  A sample plus everybody (or a different sample) would be
+            //  nonsense.
+            int oneIn = in.readInt();
+            if (oneIn != sampleOneIn) {
+                throw new IOException(file + " was written sampling 1 in " +
+                        oneIn + ", not 1 in " + sampleOneIn);
+            }
+            //  Same goes for shards (see setShard()).
+            int theirShard = in.readInt();
+            int theirShards = in.readInt();
+            if ((theirShard != shard) || (theirShards != shards)) {
+                throw new IOException(file + " was written for shard " +
+                        theirShard + "/" + theirShards + ", not " + shard + "/" + shards);
+            }
+            processedThroughS = in.readInt();
+            userRequests = in.readInt();
+            //  If it has histograms and we don't want them, we still have to
+            //  read past them.  If we want them and it doesn't have them,
+            //  our percentiles will only cover sessions which end from here
+            //  on.
+            boolean hasHistograms = in.readBoolean();
+            if (hasHistograms) {
+                for (int ii = 0; ii < thresholds.length; ++ii) {
+                    Histogram lengths = Histogram.read(in);
+                    Histogram pages = Histogram.read(in);
+                    if (percentiles) {
+                        sessionLengths[ii] = lengths;
+                        sessionPages[ii] = pages;
+                    }
+                }
+            }
+            int count = in.readInt();
+            for (int ii = 0; ii < count; ++ii) {
+                User user = new User(in.readUTF());
+                user.pages = in.readInt();
+                user.lastRequestS = in.readInt();
+                user.setThresholdCount(thresholds.length);
+                for (int jj = 0; jj < thresholds.length; ++jj) {
+                    SessionTracker st = user.at(jj);
+                    st.sessions = in.readInt();
+                    st.longest = in.readInt();
+                    st.shortest = in.readInt();
+                    st.lastSessionStartS = in.readInt();
+                    st.sessionPages = in.readInt();
+                    if (hasHistograms && in.readBoolean()) {
+                        SessionSketch sketch = SessionSketch.read(in);
+                        if (percentiles) st.sketch = sketch;
+                    }
+                }
+                users.add(user);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    //  "LTCK"
+    private static final int CHECKPOINT_MAGIC = 0x4c54434b;
+    //  2 added pages in the current session, and histograms; 3, more than
+    //  one threshold; 4, sampling; 5, SessionSketches instead of per-user
+    //  histograms; 6, the shard
+    private static final int CHECKPOINT_VERSION = 6;
+
     /**
      * We create one of these per alleged log file we're going to process.
      */
@@ -206,37 +682,150 @@ public class ReorderingFileParser extends LogFileParser {
         private int startS = 0;
     }
 
-    private static class User {
-        public User(String id) {
-            this.id = id;
+    /**
+     * What we know about a user's sessions, with one threshold.
+     */
+    static class SessionTracker {
+        /**
+         * Makes this's fields a copy of other's.
+         *
+         * @param histograms if true, this gets a copy of other's
+         *                   SessionSketch; if false, this's is left alone.
+         */
+        void copySessionsFrom(SessionTracker other, boolean histograms) {
+            sessions = other.sessions;
+            longest = other.longest;
+            shortest = other.shortest;
+            lastSessionStartS = other.lastSessionStartS;
+            sessionPages = other.sessionPages;
+            if (histograms) sketch = (other.sketch == null) ? null : other.sketch.copy();
         }
-        final String id;
-        int pages = 0;
+
         int sessions = 0;  //  "completed," not counting current session
         int longest = 0;
         int shortest = 0;
-        int lastRequestS = 0;
         int lastSessionStartS = 0;
+        //  in the current session
+        int sessionPages = 0;
+        //  Completed sessions, only if we're doing percentiles, and null until
+        //  the first one is done.
+        SessionSketch sketch;
     }
 
-    private User getOrCreate(String id) {
-        User rv = users.get(id);
-        if (rv == null) {
-            rv = new User(id);
-            users.put(id, rv);
+    /**
+     * What we know about a user.  These live in a UserTable, which may not
+     * keep them as Users at all; see MappedUserTable.
+     *
+     * <p>A User is its own SessionTracker for the first threshold, so that
+     * the usual case of just one costs no more than it ever did.
+     */
+    static class User extends SessionTracker {
+        public User(String id) {
+            this.id = id;
         }
-        return rv;
+
+        /**
+         * Returns our sessions with thresholdsS[which].
+         */
+        SessionTracker at(int which) {
+            return (which == 0) ? this : more[which - 1];
+        }
+
+        /**
+         * Makes sure we have a SessionTracker for each of count thresholds.
+         */
+        void setThresholdCount(int count) {
+            if ((count > 1) && (more == null)) {
+                more = new SessionTracker[count - 1];
+                for (int ii = 0; ii < more.length; ++ii) more[ii] = new SessionTracker();
+            }
+        }
+
+        /**
+         * Returns how many thresholds we have SessionTrackers for.
+         */
+        int getThresholdCount() {
+            return (more == null) ? 1 : more.length + 1;
+        }
+
+        /**
+         * Makes this a copy of other.
+         *
+         * @param histograms if true, this gets copies of other's
+         *                   SessionSketches; if false, this's are left alone.
+         */
+        void copyFrom(User other, boolean histograms) {
+            id = other.id;
+            pages = other.pages;
+            lastRequestS = other.lastRequestS;
+            setThresholdCount(other.getThresholdCount());
+            for (int ii = 0; ii < other.getThresholdCount(); ++ii) {
+                at(ii).copySessionsFrom(other.at(ii), histograms);
+            }
+        }
+
+        String id;
+        int pages = 0;
+        //  the latest request we've seen from them
+        int lastRequestS = 0;
+        //  for thresholdsS[1] on, or null if there's only one
+        SessionTracker[] more;
     }
 
     /**
-     * Orders Users by number of page requests, descending.
+     * Tells this where to keep its users; call it on a new parser, before
+     * loadCheckpoint() or processEverything().  We close() the table we had,
+     * but closing this one is up to you.
+     *
+     * @throws IllegalStateException if we already have users, or we're
+     *         doing percentiles and the table doesn't keep SessionSketches.
      */
-    private static final Comparator<User> byPages = new Comparator<User>() {
+    public void setUserTable(UserTable table) throws IOException {
+        if (users.size() != 0) {
+            throw new IllegalStateException("too late to change user tables");
+        }
+        if (percentiles && !table.keepsSketches()) {
+            throw new IllegalStateException(table.getClass().getName() +
+                    " can't do per-user percentiles");
+        }
+        users.close();
+        users = table;
+    }
+
+    //  handleUserRequest() hands this to the table for every request, so we
+    //  only make one.
+    private final UserTable.Updater updater = new UserTable.Updater() {
         @Override
-        public int compare(User u1, User u2) {
-            return u2.pages - u1.pages;
+        public void update(User user, LineParser.Context ct) {
+            updateUser(user, ct);
         }
     };
+    private UserTable users = new HeapUserTable();
+    //  see setRereading(); the files processEverything() has read, in the
+    //  order it read them, and the top users' sketches from reread() (both
+    //  under the lock on this)
+    private boolean rereading = false;
+    private final ArrayList<String> filesRead = new ArrayList<>();
+    private Map<String, User> rereadUsers = null;
+    //  for a parser that reread() made: the only users we follow
+    private Set<String> onlyUsers = null;
+    //  why we gave up on each threshold, or null if we haven't, and how many
+    //  we've given up on; see updateUser().  (Only the ingestion thread
+    //  writes these, but getSummary() may read them on another.)
+    private final AtomicReferenceArray<String> failures =
+            new AtomicReferenceArray<>(thresholdsS.length);
+    private int failed = 0;
+    //  The start time of the latest file we've processed; see
+    //  processEverything().
+    private int processedThroughS = 0;
+    //  Everybody's completed sessions, if we're doing percentiles, one per
+    //  threshold.  The lock on sessionLengths covers both.
+    private final Histogram[] sessionLengths = newHistograms(thresholdsS.length);
+    private final Histogram[] sessionPages = newHistograms(thresholdsS.length);
 
-    private HashMap<String, User> users = new HashMap<>();
+    private static Histogram[] newHistograms(int count) {
+        Histogram[] rv = new Histogram[count];
+        for (int ii = 0; ii < count; ++ii) rv[ii] = new Histogram();
+        return rv;
+    }
 }
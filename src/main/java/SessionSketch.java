@@ -0,0 +1,137 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * One user's session lengths and pages per session, for per-user
+ * percentiles, in a fixed amount of memory (a little under 400 bytes).
+ * ReorderingFileParser with setPercentiles(true) keeps one of these for
+ * every user, since it can't know who the top users will be until the end
+ * (unless it can read the files again; see setRereading()); that's why it
+ * isn't a pair of Histograms, which are more accurate but can grow to
+ * several K each.
+ *
+ * <p>The buckets are Histogram's, cut down: values below 8 get a bucket
+ * each, each power of two above that is split into 4 buckets, and
+ * everything from 2^24 up shares the last one.  So a percentile can be off
+ * by up to a quarter (but never more than the biggest value recorded, which
+ * we keep exactly).  The counts are chars; if one would overflow, we halve
+ * all of that kind, which keeps the percentiles about right, but means the
+ * counts are only exact for people with fewer than 65536 sessions.
+ *
+ * <p>NonChronologicalFileParser puts its top users' sessions through one of
+ * these too, so that both parsers come up with the same percentiles.
+ * Everybody's percentiles still come from full Histograms.
+ *
+ * <p>Not thread-safe.
+ */
+public class SessionSketch {
+
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    //  values below this get their own buckets
+    private static final int EXACT = 2 * SUB_BUCKETS;
+    //  values at or above this share the last bucket
+    private static final int CAP = 1 << 24;
+    static final int BUCKETS = bucketFor(CAP - 1) + 1;
+
+    /**
+     * Counts one more session.
+     *
+     * @param length in seconds; must not be negative.
+     * @param pages must not be negative.
+     */
+    public void record(int length, int pages) {
+        if ((length < 0) || (pages < 0)) {
+            throw new IllegalArgumentException("negative session " + length + "/" + pages);
+        }
+        count(bucketFor(Math.min(length, CAP - 1)));
+        count(BUCKETS + bucketFor(Math.min(pages, CAP - 1)));
+        if (length > maxLength) maxLength = length;
+        if (pages > maxPages) maxPages = pages;
+    }
+
+    private void count(int bucket) {
+        if (counts[bucket] == Character.MAX_VALUE) {
+            int from = (bucket < BUCKETS) ? 0 : BUCKETS;
+            for (int ii = from; ii < from + BUCKETS; ++ii) {
+                counts[ii] = (char)((counts[ii] + 1) / 2);
+            }
+        }
+        ++counts[bucket];
+    }
+
+    /**
+     * Returns the session lengths, as a Histogram with each bucket's count
+     * at the highest value in it (or our biggest value, if that's smaller).
+     */
+    public Histogram lengths() {
+        return toHistogram(0, maxLength);
+    }
+
+    /**
+     * Like lengths(), for pages per session.
+     */
+    public Histogram pagesPerSession() {
+        return toHistogram(BUCKETS, maxPages);
+    }
+
+    private Histogram toHistogram(int from, int max) {
+        Histogram rv = new Histogram();
+        for (int ii = 0; ii < BUCKETS; ++ii) {
+            if (counts[from + ii] > 0) {
+                rv.record((int)Math.min(highestValueIn(ii), max), counts[from + ii]);
+            }
+        }
+        return rv;
+    }
+
+    /**
+     * Returns a new SessionSketch with the same counts as this one.
+     */
+    public SessionSketch copy() {
+        SessionSketch rv = new SessionSketch();
+        System.arraycopy(counts, 0, rv.counts, 0, counts.length);
+        rv.maxLength = maxLength;
+        rv.maxPages = maxPages;
+        return rv;
+    }
+
+    /**
+     * Writes this to the given stream, for read() to read back.
+     */
+    public void write(DataOutput out) throws IOException {
+        for (char count : counts) out.writeChar(count);
+        out.writeInt(maxLength);
+        out.writeInt(maxPages);
+    }
+
+    /**
+     * Reads what write() wrote.
+     */
+    public static SessionSketch read(DataInput in) throws IOException {
+        SessionSketch rv = new SessionSketch();
+        for (int ii = 0; ii < rv.counts.length; ++ii) rv.counts[ii] = in.readChar();
+        rv.maxLength = in.readInt();
+        rv.maxPages = in.readInt();
+        return rv;
+    }
+
+    static int bucketFor(int value) {
+        if (value < EXACT) return value;
+        int shift = (31 - Integer.numberOfLeadingZeros(value)) - SUB_BITS;
+        return (shift << SUB_BITS) + (value >>> shift);
+    }
+
+    static long highestValueIn(int bucket) {
+        if (bucket < EXACT) return bucket;
+        int shift = (bucket >> SUB_BITS) - 1;
+        long top = (bucket & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    //  lengths' buckets, then pages'
+    private final char[] counts = new char[2 * BUCKETS];
+    private int maxLength = 0;
+    private int maxPages = 0;
+}
@@ -1,4 +1,7 @@
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 
 /**
@@ -12,6 +15,162 @@ public class Summary {
      * Top users by page view, sorted highest first.
      */
     public List<User> top = new ArrayList<>();
+    /**
+     * The lengths (in seconds) of everybody's sessions, and the number of
+     * pages in each, if you asked the parser for percentiles; otherwise
+     * null.  See LogFileParser.setPercentiles().
+     */
+    public Histogram sessionLengths;
+    public Histogram sessionPages;
+    /**
+     * If the parser was only keeping a sample of the users (see
+     * LogFileParser.setSampling()), what that says about everybody;
+     * otherwise null.
+     */
+    public Sample sample;
+
+    /**
+     * Combines the summaries from several parsers which were each given a
+     * different shard of the users (see LogFileParser.setShard()) into the
+     * summary you'd have gotten from a single parser.  Because no user is in
+     * more than one shard, that's just adding up the unique users and taking
+     * the top n of everybody's top users--as long as each part has at least
+     * topHowMany users in it (or all of its users, if it has fewer).
+     *
+     * @param parts must not be null; the Summaries in it aren't modified.
+     */
+    public static Summary merge(List<Summary> parts, int topHowMany) {
+        Summary rv = new Summary();
+        ArrayList<User> all = new ArrayList<>();
+        for (Summary part : parts) {
+            rv.uniqueUsers += part.uniqueUsers;
+            all.addAll(part.top);
+            if (part.sample != null) {
+                rv.sample = (rv.sample == null) ? part.sample : new Sample(
+                        part.sample.oneIn, rv.sample.users + part.sample.users,
+                        rv.sample.pages + part.sample.pages,
+                        rv.sample.pagesSquared + part.sample.pagesSquared);
+            }
+            if (part.sessionLengths != null) {
+                if (rv.sessionLengths == null) {
+                    rv.sessionLengths = new Histogram();
+                    rv.sessionPages = new Histogram();
+                }
+                rv.sessionLengths.add(part.sessionLengths);
+                rv.sessionPages.add(part.sessionPages);
+            }
+        }
+        //  ties by ID, same as LogFileParser.topUsers()
+        Collections.sort(all, new Comparator<User>() {
+            @Override
+            public int compare(User u1, User u2) {
+                if (u1.pages != u2.pages) return Integer.compare(u2.pages, u1.pages);
+                return u1.id.compareTo(u2.id);
+            }
+        });
+        for (int ii = 0; (ii < topHowMany) && (ii < all.size()); ++ii) {
+            rv.top.add(all.get(ii));
+        }
+        return rv;
+    }
+
+    /**
+     * Hands this Summary to the given Visitor, the same way
+     * LogFileParser.visitSummary() would have.
+     */
+    public void visit(Visitor visitor) throws IOException {
+        visitor.uniqueUsers(uniqueUsers);
+        if (sample != null) visitor.sample(sample);
+        if (sessionLengths != null) visitor.sessions(sessionLengths, sessionPages);
+        for (User user : top) visitor.user(user);
+    }
+
+    /**
+     * For when you want to write the users out as they're found, instead of
+     * collecting them into a Summary first; see
+     * LogFileParser.visitSummary().
+     */
+    public interface Visitor {
+        /**
+         * Called once, before any calls to user().
+         */
+        void uniqueUsers(int count) throws IOException;
+
+        /**
+         * Called after uniqueUsers(), but only if the parser was sampling.
+         */
+        void sample(Sample sample) throws IOException;
+
+        /**
+         * Called after uniqueUsers(), with everybody's session lengths and
+         * pages per session, but only if the parser was asked for
+         * percentiles.
+         */
+        void sessions(Histogram lengths, Histogram pages) throws IOException;
+
+        /**
+         * Called for each top user, highest first.
+         */
+        void user(User user) throws IOException;
+    }
+
+    /**
+     * What a sampling parser saw of the users it kept, and what that says
+     * about everybody.
+     *
+     * <p>Each user is in the sample (or not) independently, with probability
+     * p = 1/oneIn, so the number of sampled users n is binomial, and n /
+     * p estimates the total N, with variance N (1 - p) / p, or N (oneIn -
+     * 1).  Likewise, the sampled pages over p estimate all the pages, with
+     * variance (1 - p) / p times the sum over everybody of their pages
+     * squared, which we estimate from the sample the same way.  The
+     * intervals are the usual estimate +/- 1.96 standard deviations, which
+     * is fair enough once there are more than a few dozen users in the
+     * sample.
+     */
+    public static class Sample {
+        /**
+         * @param oneIn see LogFileParser.setSampling().
+         * @param users how many users are in the sample.
+         * @param pages their total requests.
+         * @param pagesSquared the sum of the squares of their requests.
+         */
+        public Sample(int oneIn, int users, long pages, double pagesSquared) {
+            this.oneIn = oneIn;
+            this.users = users;
+            this.pages = pages;
+            this.pagesSquared = pagesSquared;
+        }
+
+        public long getEstimatedUsers() {
+            return (long)users * oneIn;
+        }
+
+        /**
+         * Returns how far off getEstimatedUsers() may be, 95% of the time.
+         */
+        public long getUsersMargin() {
+            return Math.round(Z_95 * Math.sqrt((double)getEstimatedUsers() * (oneIn - 1)));
+        }
+
+        public long getEstimatedPages() {
+            return pages * oneIn;
+        }
+
+        /**
+         * Returns how far off getEstimatedPages() may be, 95% of the time.
+         */
+        public long getPagesMargin() {
+            return Math.round(Z_95 * Math.sqrt((double)oneIn * (oneIn - 1) * pagesSquared));
+        }
+
+        public final int oneIn;
+        public final int users;
+        public final long pages;
+        public final double pagesSquared;
+
+        private static final double Z_95 = 1.96;
+    }
 
     public static class User {
         public String id;
@@ -31,6 +190,12 @@ public class Summary {
          * The length of their shortest session, in seconds.
          */
         public int shortest;
+        /**
+         * Their session lengths and pages per session, if you asked the
+         * parser for percentiles; otherwise null.
+         */
+        public Histogram lengths;
+        public Histogram pagesPerSession;
 
         //  Here's the part where I actually wish I'd used Kotlin.  It's funny;
         //  someone fixes all the stuff I complain about in Java, and I realize
@@ -0,0 +1,84 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+
+/**
+ * Reads & writes Summaries in a plain-text format meant for machines, not
+ * people: this is how LogTop -shard hands its partial results to LogTop
+ * -merge.  It looks like this:
+ *
+ * <pre>
+ * logtop-summary 1
+ * uniqueUsers 666
+ * sally-bob	123	3	113	1
+ * leroy	12	4	1203	1
+ * </pre>
+ *
+ * <p>...where each user line is tab-separated id, pages, sessions, longest,
+ * and shortest, with times in seconds.
+ */
+public class SummaryFile {
+
+    private static final String HEADER = "logtop-summary 1";
+    private static final String UNIQUE_USERS = "uniqueUsers ";
+
+    /**
+     * Writes the given Summary to the given stream.
+     *
+     * @param summary must not be null.
+     * @param out must not be null.
+     */
+    public static void write(Summary summary, PrintStream out) {
+        out.println(HEADER);
+        out.println(UNIQUE_USERS + summary.uniqueUsers);
+        for (Summary.User user : summary.top) {
+            out.println(user.id + '\t' + user.pages + '\t' + user.sessions +
+                    '\t' + user.longest + '\t' + user.shortest);
+        }
+    }
+
+    /**
+     * Reads a Summary written by write().
+     *
+     * @throws IOException if it can't be read, or doesn't look like something
+     *                     write() wrote.
+     */
+    public static Summary read(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        try {
+            Summary rv = new Summary();
+            if (!HEADER.equals(in.readLine())) {
+                throw new IOException(file + " doesn't look like a summary file");
+            }
+            String line = in.readLine();
+            int lineNum = 2;
+            try {
+                if ((line == null) || !line.startsWith(UNIQUE_USERS)) {
+                    throw new IOException(file + " " + lineNum + ": expected " +
+                            UNIQUE_USERS);
+                }
+                rv.uniqueUsers = Integer.parseInt(line.substring(UNIQUE_USERS.length()));
+                while ((line = in.readLine()) != null) {
+                    ++lineNum;
+                    String[] fields = line.split("\t");
+                    if (fields.length != 5) {
+                        throw new IOException(file + " " + lineNum +
+                                ": expected 5 fields, got " + fields.length);
+                    }
+                    rv.top.add(new Summary.User(fields[0],
+                            Integer.parseInt(fields[1]),
+                            Integer.parseInt(fields[2]),
+                            Integer.parseInt(fields[3]),
+                            Integer.parseInt(fields[4])));
+                }
+            } catch (NumberFormatException nfe) {
+                throw new IOException(file + " " + lineNum + ": " + nfe.getMessage());
+            }
+            return rv;
+        } finally {
+            in.close();
+        }
+    }
+}
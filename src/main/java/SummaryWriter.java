@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes a summary as CSV or as JSON lines, for feeding to other programs.
+ * This is a Summary.Visitor, so you can hand it to
+ * LogFileParser.visitSummary() and the users go straight out as they're
+ * found, without anybody building a List of them (or a String of all of
+ * them, like LogTop.summaryToString() does).
+ *
+ * <p>It's also why this doesn't use String.format() or a PrintStream: with a
+ * million users, formatting the output took longer than parsing the logs.
+ * Everything is put into a ByteBuffer by hand, and the buffer is written to
+ * the channel whenever it fills up.  Call close() when you're done, to write
+ * what's left.
+ *
+ * <p>CSV looks like this (there's nowhere to put the number of unique users,
+ * so use JSON if you want that):
+ *
+ * <pre>
+ * id,pages,sessions,longest,shortest
+ * sally-bob,123,3,1,0
+ * </pre>
+ *
+ * <p>...and JSON lines like this:
+ *
+ * <pre>
+ * {"uniqueUsers":666}
+ * {"id":"sally-bob","pages":123,"sessions":3,"longest":1,"shortest":0}
+ * </pre>
+ *
+ * <p>Session lengths are whole minutes (rounded down), or "minutes:seconds"
+ * strings if includeSeconds is set, same as LogTop.printSummary().  If the
+ * parser was doing percentiles, there are also lengthP50, lengthP90,
+ * lengthP99, pagesP50, pagesP90, and pagesP99 columns (or keys, which also
+ * go on the first JSON line, for everybody).  If the parser was sampling,
+ * the first JSON line also has sampleOneIn, estimatedUsers, and
+ * estimatedPages, each estimate with a ...Margin for its 95% confidence
+ * interval.
+ */
+public class SummaryWriter implements Summary.Visitor {
+
+    public static final int CSV = 0;
+    public static final int JSON_LINES = 1;
+
+    /**
+     * @param out where to write; we don't close it.
+     * @param format CSV or JSON_LINES.
+     * @param includeSeconds see the class comment.
+     */
+    public SummaryWriter(WritableByteChannel out, int format, boolean includeSeconds) {
+        if ((format != CSV) && (format != JSON_LINES)) {
+            throw new IllegalArgumentException("bad format " + format);
+        }
+        this.out = out;
+        this.json = (format == JSON_LINES);
+        this.includeSeconds = includeSeconds;
+    }
+
+    /**
+     * Turns "csv" or "json" into CSV or JSON_LINES.
+     *
+     * @return -1 if it's neither.
+     */
+    public static int formatForName(String name) {
+        if ("csv".equals(name)) return CSV;
+        if ("json".equals(name)) return JSON_LINES;
+        return -1;
+    }
+
+    @Override
+    public void uniqueUsers(int count) throws IOException {
+        uniqueUsers = count;
+    }
+
+    @Override
+    public void sample(Summary.Sample sample) throws IOException {
+        this.sample = sample;
+    }
+
+    @Override
+    public void sessions(Histogram lengths, Histogram pages) throws IOException {
+        sessionLengths = lengths;
+        sessionPages = pages;
+    }
+
+    /**
+     * Writes the CSV header, or the JSON line for everybody.  We don't do
+     * this until the first user (or close()), because we don't know whether
+     * there are percentiles until then.
+     */
+    private void header() throws IOException {
+        started = true;
+        if (json) {
+            ascii("{\"uniqueUsers\":");
+            number(uniqueUsers);
+            if (sample != null) {
+                ascii(",\"sampleOneIn\":");
+                number(sample.oneIn);
+                ascii(",\"estimatedUsers\":" + sample.getEstimatedUsers());
+                ascii(",\"estimatedUsersMargin\":" + sample.getUsersMargin());
+                ascii(",\"estimatedPages\":" + sample.getEstimatedPages());
+                ascii(",\"estimatedPagesMargin\":" + sample.getPagesMargin());
+            }
+            if (sessionLengths != null) percentiles(sessionLengths, sessionPages);
+            ascii("}\n");
+        } else {
+            ascii("id,pages,sessions,longest,shortest");
+            if (sessionLengths != null) {
+                for (String ts : new String[] { "length", "pages" }) {
+                    for (double pct : LogTop.PERCENTILES) {
+                        put(',');
+                        ascii(ts + "P" + (int)pct);
+                    }
+                }
+            }
+            put('\n');
+        }
+    }
+
+    private void percentiles(Histogram lengths, Histogram pages) throws IOException {
+        for (int ii = 0; ii < 2; ++ii) {
+            for (double pct : LogTop.PERCENTILES) {
+                if (json) {
+                    ascii((ii == 0) ? ",\"lengthP" : ",\"pagesP");
+                    number((int)pct);
+                    ascii("\":");
+                } else {
+                    put(',');
+                }
+                if (ii == 0) {
+                    duration(lengths.getValueAtPercentile(pct));
+                } else {
+                    number(pages.getValueAtPercentile(pct));
+                }
+            }
+        }
+    }
+
+    @Override
+    public void user(Summary.User user) throws IOException {
+        if (!started) header();
+        boolean withPercentiles = (sessionLengths != null) && (user.lengths != null);
+        if (json) {
+            ascii("{\"id\":");
+            jsonString(user.id);
+            ascii(",\"pages\":");
+            number(user.pages);
+            ascii(",\"sessions\":");
+            number(user.sessions);
+            ascii(",\"longest\":");
+            duration(user.longest);
+            ascii(",\"shortest\":");
+            duration(user.shortest);
+            if (withPercentiles) percentiles(user.lengths, user.pagesPerSession);
+            ascii("}\n");
+        } else {
+            csvString(user.id);
+            put(',');
+            number(user.pages);
+            put(',');
+            number(user.sessions);
+            put(',');
+            duration(user.longest);
+            put(',');
+            duration(user.shortest);
+            if (withPercentiles) percentiles(user.lengths, user.pagesPerSession);
+            put('\n');
+        }
+    }
+
+    /**
+     * Writes whatever's still in our buffer.  (Doesn't close the channel.)
+     */
+    public void close() throws IOException {
+        if (!started) header();
+        flush();
+    }
+
+    private void duration(int seconds) throws IOException {
+        if (!includeSeconds) {
+            number(seconds / 60);
+            return;
+        }
+        if (json) put('"');
+        number(seconds / 60);
+        put(':');
+        int ss = seconds % 60;
+        put((char)('0' + ss / 10));
+        put((char)('0' + ss % 10));
+        if (json) put('"');
+    }
+
+    /**
+     * Integer.toString(), without the String.
+     */
+    private void number(int value) throws IOException {
+        if (value < 0) {
+            if (value == Integer.MIN_VALUE) {
+                ascii(Integer.toString(value));
+                return;
+            }
+            put('-');
+            value = -value;
+        }
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte)('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        ensure(digits.length - pos);
+        buf.put(digits, pos, digits.length - pos);
+    }
+
+    private void csvString(String str) throws IOException {
+        boolean quote = false;
+        for (int ii = 0; ii < str.length(); ++ii) {
+            char ch = str.charAt(ii);
+            if ((ch == ',') || (ch == '"') || (ch == '\n') || (ch == '\r')) {
+                quote = true;
+                break;
+            }
+        }
+        if (!quote) {
+            text(str);
+            return;
+        }
+        put('"');
+        text(str.replace("\"", "\"\""));
+        put('"');
+    }
+
+    private void jsonString(String str) throws IOException {
+        put('"');
+        int from = 0;
+        for (int ii = 0; ii < str.length(); ++ii) {
+            char ch = str.charAt(ii);
+            if ((ch >= ' ') && (ch != '"') && (ch != '\\')) continue;
+            text(str.substring(from, ii));
+            if ((ch == '"') || (ch == '\\')) {
+                put('\\');
+                put(ch);
+            } else {
+                ascii("\\u00");
+                put(HEX[ch >> 4]);
+                put(HEX[ch & 0xf]);
+            }
+            from = ii + 1;
+        }
+        text(str.substring(from));
+        put('"');
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /**
+     * Writes the given String as UTF-8.  User IDs are almost always ASCII, so
+     * that's the fast path.
+     */
+    private void text(String str) throws IOException {
+        for (int ii = 0; ii < str.length(); ++ii) {
+            if (str.charAt(ii) >= 0x80) {
+                byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+                ensure(bytes.length);
+                buf.put(bytes);
+                return;
+            }
+        }
+        ascii(str);
+    }
+
+    /**
+     * Only for Strings we know are ASCII.
+     */
+    private void ascii(String str) throws IOException {
+        ensure(str.length());
+        for (int ii = 0; ii < str.length(); ++ii) buf.put((byte)str.charAt(ii));
+    }
+
+    private void put(char ch) throws IOException {
+        ensure(1);
+        buf.put((byte)ch);
+    }
+
+    /**
+     * Makes room for at least n more bytes.
+     */
+    private void ensure(int n) throws IOException {
+        if (buf.remaining() >= n) return;
+        flush();
+        if (buf.capacity() < n) buf = ByteBuffer.allocate(n);
+    }
+
+    private void flush() throws IOException {
+        buf.flip();
+        while (buf.hasRemaining()) out.write(buf);
+        buf.clear();
+    }
+
+    private final WritableByteChannel out;
+    private final boolean json;
+    private final boolean includeSeconds;
+    private int uniqueUsers = 0;
+    private Summary.Sample sample;
+    //  null unless sessions() was called
+    private Histogram sessionLengths;
+    private Histogram sessionPages;
+    private boolean started = false;
+    private ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+    //  big enough for any int
+    private final byte[] digits = new byte[11];
+}
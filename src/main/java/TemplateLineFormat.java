@@ -0,0 +1,350 @@
+import java.util.ArrayList;
+
+/**
+ * A LineFormat described by a template, instead of by a hand-written regular
+ * expression: the template is compiled (once) into a list of steps, and each
+ * line is scanned by walking those steps left to right, one character at a
+ * time, with no backtracking and no allocation except for the user ID String
+ * at the end.  That makes every format cost about the same per line, no
+ * matter how it's described.
+ *
+ * <p>A template is literal text with placeholders in curly braces:
+ *
+ * <ul>
+ *     <li><code>{skip}</code>: anything, up to the next character the
+ *         template expects.</li>
+ *     <li><code>{ip}</code>: a dotted-quad IPv4 address.</li>
+ *     <li><code>{method}</code>: GET, POST, PUT, PATCH, or DELETE; lines with
+ *         any other method (like HEAD) aren't user requests.</li>
+ *     <li><code>{time:<i>pattern</i>}</code>: the request time; see
+ *         TimestampPattern for what the pattern can contain.</li>
+ *     <li><code>{path:<i>n</i>}</code> or <code>{path:<i>n</i>:hex}</code>:
+ *         the request path, whose <i>n</i>th segment is the user ID.  It has
+ *         to have at least <i>n</i> non-empty segments, and the <i>n</i>th
+ *         has to be followed by '/', '?', or the end of the path.  With
+ *         ":hex", the first <i>n</i> segments have to be lowercase hex.
+ *         The segments before the user ID are the tenant (see
+ *         LogFileParser.setGroupByTenant()).</li>
+ * </ul>
+ *
+ * <p>A space in the template matches any run of whitespace; any other literal
+ * character has to be there exactly.  <code>{{</code> is a literal '{'.
+ * Anything after the end of the template is ignored.  Every template needs
+ * exactly one time and one path.
+ */
+public class TemplateLineFormat implements LineFormat {
+
+    /**
+     * The original log format (see RegexLineFormat):
+     * <pre>
+     * 10.10.6.90 - - 15/Aug/2016:23:59:20 -0500 "GET /ecf8427e/b443dc7f/71f28176/... HTTP/1.0" ...
+     * </pre>
+     */
+    public static final String DEFAULT_TEMPLATE =
+            "{ip} - - {time:d/MMM/yyyy:HH:mm:ss Z} \"{method} {path:3:hex}";
+
+    /**
+     * nginx's "combined" format, assuming the same path layout as ours:
+     * <pre>
+     * 10.10.6.90 - bob [15/Aug/2016:23:59:20 -0500] "GET /ecf8427e/b443dc7f/71f28176/... HTTP/1.1" ...
+     * </pre>
+     */
+    public static final String NGINX_TEMPLATE =
+            "{skip} - {skip} [{time:d/MMM/yyyy:HH:mm:ss Z}] \"{method} {path:3}";
+
+    public static final TemplateLineFormat DEFAULT =
+            new TemplateLineFormat(DEFAULT_TEMPLATE);
+
+    /**
+     * Returns the LineFormat for the given name or template: "default",
+     * "nginx", "regex" (the old RegexLineFormat), or a template.
+     *
+     * @throws IllegalArgumentException if it's none of those.
+     */
+    public static LineFormat forName(String spec) {
+        if (spec.equals("default")) return DEFAULT;
+        if (spec.equals("nginx")) return new TemplateLineFormat(NGINX_TEMPLATE);
+        if (spec.equals("regex")) return new RegexLineFormat();
+        if (spec.indexOf('{') < 0) {
+            throw new IllegalArgumentException("unknown log format \"" + spec + "\"");
+        }
+        return new TemplateLineFormat(spec);
+    }
+
+    private static final int LITERAL = 0;
+    private static final int SPACE = 1;
+    private static final int SKIP = 2;
+    private static final int IP = 3;
+    private static final int METHOD = 4;
+    private static final int TIME = 5;
+    private static final int PATH = 6;
+
+    //  Values of stop[] which aren't characters
+    private static final int STOP_SPACE = -1;
+    private static final int STOP_EOL = -2;
+
+    private static final String[] METHODS = {
+            "GET", "POST", "PUT", "PATCH", "DELETE" };
+
+    /**
+     * @throws IllegalArgumentException if the template is no good.
+     */
+    public TemplateLineFormat(String template) {
+        this.template = template;
+        ArrayList<Integer> kinds = new ArrayList<>();
+        ArrayList<String> lits = new ArrayList<>();
+        TimestampPattern tp = null;
+        int uidSeg = 0;
+        boolean hex = false;
+        StringBuilder lit = new StringBuilder();
+        for (int ii = 0; ii < template.length(); ) {
+            char tc = template.charAt(ii);
+            if ((tc == '{') && (ii + 1 < template.length()) &&
+                (template.charAt(ii + 1) == '{')) {
+                lit.append('{');
+                ii += 2;
+                continue;
+            }
+            if ((tc != '{') && (tc != ' ')) {
+                lit.append(tc);
+                ++ii;
+                continue;
+            }
+            //  Whatever literal we were building up is done.
+            if (lit.length() > 0) {
+                kinds.add(LITERAL);
+                lits.add(lit.toString());
+                lit.setLength(0);
+            }
+            if (tc == ' ') {
+                while ((ii < template.length()) && (template.charAt(ii) == ' ')) ++ii;
+                kinds.add(SPACE);
+                lits.add(null);
+                continue;
+            }
+            int close = template.indexOf('}', ii);
+            if (close < 0) throw bad("unclosed {");
+            String field = template.substring(ii + 1, close);
+            ii = close + 1;
+            if (field.equals("skip")) {
+                kinds.add(SKIP);
+            } else if (field.equals("ip")) {
+                kinds.add(IP);
+            } else if (field.equals("method")) {
+                kinds.add(METHOD);
+            } else if (field.startsWith("time:")) {
+                if (tp != null) throw bad("more than one {time}");
+                tp = new TimestampPattern(field.substring(5));
+                kinds.add(TIME);
+            } else if (field.startsWith("path:")) {
+                if (uidSeg != 0) throw bad("more than one {path}");
+                String[] parts = field.split(":");
+                try {
+                    uidSeg = Integer.parseInt(parts[1]);
+                } catch (NumberFormatException nfe) {
+                    throw bad("{path:n} needs a number");
+                }
+                if (uidSeg < 1) throw bad("{path:n} needs a positive number");
+                if (parts.length > 3) throw bad("what's {" + field + "}?");
+                if (parts.length == 3) {
+                    if (!parts[2].equals("hex")) throw bad("what's {" + field + "}?");
+                    hex = true;
+                }
+                kinds.add(PATH);
+            } else {
+                throw bad("what's {" + field + "}?");
+            }
+            lits.add(null);
+        }
+        if (lit.length() > 0) {
+            kinds.add(LITERAL);
+            lits.add(lit.toString());
+        }
+        if (tp == null) throw bad("no {time:...}");
+        if (uidSeg == 0) throw bad("no {path:n}");
+
+        int count = kinds.size();
+        this.kinds = new int[count];
+        this.lits = lits.toArray(new String[count]);
+        this.stop = new int[count];
+        for (int ii = 0; ii < count; ++ii) {
+            this.kinds[ii] = kinds.get(ii);
+            //  Fields which run "up to the next thing" need to know what
+            //  that next thing starts with.
+            if (ii + 1 == count) {
+                stop[ii] = STOP_EOL;
+            } else if (kinds.get(ii + 1) == SPACE) {
+                stop[ii] = STOP_SPACE;
+            } else if (kinds.get(ii + 1) == LITERAL) {
+                stop[ii] = lits.get(ii + 1).charAt(0);
+            } else if ((kinds.get(ii) == SKIP) || (kinds.get(ii) == PATH)) {
+                throw bad("{skip} and {path} have to be followed by something " +
+                        "literal");
+            }
+        }
+        this.timePattern = tp;
+        this.uidSegment = uidSeg;
+        this.hex = hex;
+    }
+
+    private IllegalArgumentException bad(String why) {
+        return new IllegalArgumentException("bad log format template \"" +
+                template + "\": " + why);
+    }
+
+    @Override
+    public int parse(CharSequence line, LineParser.Context ct) {
+        int len = line.length();
+        int pos = 0;
+        int timeStart = -1;
+        int uidStart = -1;
+        int uidEnd = -1;
+        int tenantStart = -1;
+        for (int step = 0; step < kinds.length; ++step) {
+            switch (kinds[step]) {
+                case LITERAL: {
+                    String tl = lits[step];
+                    int tlen = tl.length();
+                    if (pos + tlen > len) return NOT_A_REQUEST;
+                    for (int ii = 0; ii < tlen; ++ii) {
+                        if (line.charAt(pos + ii) != tl.charAt(ii)) return NOT_A_REQUEST;
+                    }
+                    pos += tlen;
+                    break;
+                }
+                case SPACE:
+                    if ((pos >= len) || !TimestampPattern.isSpace(line.charAt(pos))) {
+                        return NOT_A_REQUEST;
+                    }
+                    while ((pos < len) && TimestampPattern.isSpace(line.charAt(pos))) ++pos;
+                    break;
+                case SKIP:
+                    if (stop[step] == STOP_EOL) {
+                        return finish(line, ct, timeStart, tenantStart, uidStart, uidEnd);
+                    }
+                    while ((pos < len) && !isStop(line.charAt(pos), stop[step])) ++pos;
+                    break;
+                case IP:
+                    for (int group = 0; group < 4; ++group) {
+                        if (group > 0) {
+                            if ((pos >= len) || (line.charAt(pos) != '.')) return NOT_A_REQUEST;
+                            ++pos;
+                        }
+                        int start = pos;
+                        while ((pos < len) && (pos - start < 3) && isDigit(line.charAt(pos))) ++pos;
+                        if (pos == start) return NOT_A_REQUEST;
+                    }
+                    break;
+                case METHOD: {
+                    int found = 0;
+                    for (int mm = 0; (mm < METHODS.length) && (found == 0); ++mm) {
+                        String method = METHODS[mm];
+                        if (regionMatches(line, pos, method)) found = method.length();
+                    }
+                    if (found == 0) return NOT_A_REQUEST;
+                    pos += found;
+                    break;
+                }
+                case TIME:
+                    //  Just find the end of it for now; we don't pay for
+                    //  working out what time it is until we know the line's
+                    //  a user request.
+                    timeStart = pos;
+                    pos = timePattern.end(line, pos);
+                    if (pos < 0) return BAD_TIMESTAMP;
+                    break;
+                case PATH: {
+                    int stopAt = (stop[step] == STOP_EOL) ? STOP_SPACE : stop[step];
+                    if ((pos >= len) || (line.charAt(pos) != '/')) return NOT_A_REQUEST;
+                    tenantStart = pos + 1;
+                    for (int seg = 1; seg <= uidSegment; ++seg) {
+                        ++pos;  //  the '/'
+                        int start = pos;
+                        while (pos < len) {
+                            char tc = line.charAt(pos);
+                            if ((tc == '/') || (tc == '?') || isStop(tc, stopAt)) break;
+                            if (hex && !isHex(tc)) return NOT_A_REQUEST;
+                            ++pos;
+                        }
+                        if (pos == start) return NOT_A_REQUEST;
+                        if (seg < uidSegment) {
+                            if ((pos >= len) || (line.charAt(pos) != '/')) return NOT_A_REQUEST;
+                        } else {
+                            uidStart = start;
+                            uidEnd = pos;
+                            //  If we're sampling, this is as soon as we can
+                            //  tell whether we care about this line: before
+                            //  the time is worked out, and before there's a
+                            //  String.
+                            if ((ct.sampleOneIn > 1) &&
+                                !LogFileParser.inSample(line, start, pos, ct.sampleOneIn)) {
+                                return NOT_SAMPLED;
+                            }
+                        }
+                    }
+                    //  There has to be *something* after the user ID.
+                    if (pos >= len) return NOT_A_REQUEST;
+                    while ((pos < len) && !isStop(line.charAt(pos), stopAt)) ++pos;
+                    break;
+                }
+            }
+        }
+        return finish(line, ct, timeStart, tenantStart, uidStart, uidEnd);
+    }
+
+    /**
+     * Called once we've found everything we need in the line.
+     */
+    private int finish(CharSequence line, LineParser.Context ct,
+                       int timeStart, int tenantStart, int uidStart, int uidEnd) {
+        //  If the template ended in {skip} before we got to the time or path,
+        //  we never got to see them.
+        if ((timeStart < 0) || (uidStart < 0)) return NOT_A_REQUEST;
+        long requestS = timePattern.parse(line, timeStart);
+        //  NO_MATCH doesn't fit in an int either; nor does anything past 2038.
+        if (requestS != (int)requestS) return BAD_TIMESTAMP;
+        ct.userID = line.subSequence(uidStart, uidEnd).toString();
+        ct.requestS = (int)requestS;
+        if (ct.tenants != null) {
+            //  everything between the first '/' and the one before the ID
+            //  (which is nothing, with {path:1})
+            ct.tenant = ct.tenants.intern(line, tenantStart, Math.max(tenantStart, uidStart - 1));
+        }
+        return MATCHED;
+    }
+
+    private static boolean isStop(char tc, int stop) {
+        return (stop == STOP_SPACE) ? TimestampPattern.isSpace(tc) : (tc == stop);
+    }
+
+    private static boolean isDigit(char tc) {
+        return (tc >= '0') && (tc <= '9');
+    }
+
+    private static boolean isHex(char tc) {
+        return ((tc >= '0') && (tc <= '9')) || ((tc >= 'a') && (tc <= 'f'));
+    }
+
+    private static boolean regionMatches(CharSequence line, int pos, String str) {
+        if (pos + str.length() > line.length()) return false;
+        for (int ii = 0; ii < str.length(); ++ii) {
+            if (line.charAt(pos + ii) != str.charAt(ii)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+
+    private final String template;
+    //  One entry per step in each of these
+    private final int[] kinds;
+    private final String[] lits;
+    private final int[] stop;
+
+    private final TimestampPattern timePattern;
+    private final int uidSegment;
+    private final boolean hex;
+}
@@ -0,0 +1,354 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * A sparse index of where the times are in a log file, so that we can read
+ * just the part of it between two times (see LogFileParser.setTimeRange())
+ * instead of the whole thing.  It lives next to the log, in a file with
+ * SUFFIX tacked on the end, and looks like this (big-endian, as
+ * DataOutputStream does it):
+ *
+ * <pre>
+ * int magic, int version
+ * long log file length, long log file last-modified time
+ * int lines per block, int number of blocks
+ * per block: long byte offset, int earliest request time, int latest request time
+ * </pre>
+ *
+ * <p>Every block starts at the beginning of a line, and is every
+ * lines-per-block'th line of the file.  If the log's length or modification
+ * time don't match the index's, the log has changed since we made the index,
+ * and we pretend there isn't one.
+ *
+ * <p>Why the earliest and latest times, instead of just the time of the
+ * first line in each block?  The logs aren't quite in order (see
+ * ReorderingFileParser.updateSessions()), and with both we can find the
+ * byte range which is certain to have every request in a time range, even
+ * if a few of them are in the wrong place: everything before a block whose
+ * latest-so-far time is before the range starts is before the range, and
+ * everything after a block whose earliest-from-here-on time is after the
+ * range ends is after it.
+ *
+ * <p>Without an index, bisect() does the obvious binary search on the file
+ * instead, which has to assume the file's in order.
+ */
+public class TimeIndex {
+
+    public static final String SUFFIX = ".tidx";
+    public static final int DEFAULT_LINES_PER_BLOCK = 4096;
+
+    private static final int MAGIC = 0x74696478;  //  "tidx"
+    private static final int VERSION = 1;
+
+    /**
+     * Without an index, we start reading this many bytes before where
+     * bisect() thinks the range starts (and stop this many after where it
+     * thinks it ends), in case the lines around there are out of order.
+     */
+    static final int BISECT_SLOP = 64 * 1024;
+
+    /**
+     * Returns the file the given log's index lives in.
+     */
+    public static File indexFile(File log) {
+        return new File(log.getPath() + SUFFIX);
+    }
+
+    /**
+     * Returns true if the given file looks like one of our indexes, rather
+     * than a log; we skip those when we're reading a directory of logs.
+     */
+    public static boolean isIndexFile(File file) {
+        return file.getName().endsWith(SUFFIX);
+    }
+
+    /**
+     * Reads the given log's index, if it has one which is up to date.
+     *
+     * @return null if there's no index file, or the log has changed since it
+     *         was written.
+     * @throws IOException if the index file is there, but garbage (or cut
+     *                     short).
+     */
+    public static TimeIndex read(File log) throws IOException {
+        File indexFile = indexFile(log);
+        if (!indexFile.isFile()) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(indexFile + " isn't a time index");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(indexFile + " is version " + version +
+                        "; I only know " + VERSION);
+            }
+            long length = in.readLong();
+            long lastModified = in.readLong();
+            if ((length != log.length()) || (lastModified != log.lastModified())) {
+                return null;
+            }
+            TimeIndex rv = new TimeIndex(length, in.readInt());
+            rv.lastModified = lastModified;
+            int blocks = in.readInt();
+            long lastOffset = 0;
+            for (int ii = 0; ii < blocks; ++ii) {
+                long offset = in.readLong();
+                if ((offset < lastOffset) || (offset > length)) {
+                    throw new IOException(indexFile + " is corrupt: block " + ii +
+                            " starts at " + offset);
+                }
+                lastOffset = offset;
+                rv.addBlock(offset);
+                rv.earliestS[ii] = in.readInt();
+                rv.latestS[ii] = in.readInt();
+            }
+            rv.finish();
+            return rv;
+        } catch (EOFException eofe) {
+            throw new IOException(indexFile + " is cut short");
+        }
+    }
+
+    /**
+     * Reads through the given log, making an index of it.
+     *
+     * @param format how to find the times in its lines.
+     * @param linesPerBlock how many lines to put in each block of the index.
+     */
+    public static TimeIndex build(File log, LineFormat format, int linesPerBlock)
+            throws IOException {
+        if (linesPerBlock < 1) throw new IllegalArgumentException("bad linesPerBlock " + linesPerBlock);
+        //  Get these before we start, so that if it changes while we're
+        //  reading, the index will look out of date.
+        TimeIndex rv = new TimeIndex(log.length(), linesPerBlock);
+        rv.lastModified = log.lastModified();
+        //  Not newLineParser(): we want everybody's times, not just the ones
+        //  in a sample or a time range.
+        LineParser lp = new LineParser(format);
+        LineParser.Context ct = new LineParser.Context();
+        ByteLineSource in = new ByteLineSource(log, 0, rv.length);
+        try {
+            int lines = 0;
+            int block = -1;
+            CharSequence line;
+            while ((line = in.nextLine()) != null) {
+                if (lines++ % linesPerBlock == 0) block = rv.addBlock(in.getLineOffset());
+                if (!lp.parseLine(line, ct)) continue;
+                if (ct.requestS < rv.earliestS[block]) rv.earliestS[block] = ct.requestS;
+                if (ct.requestS > rv.latestS[block]) rv.latestS[block] = ct.requestS;
+            }
+        } finally {
+            in.close();
+        }
+        rv.finish();
+        return rv;
+    }
+
+    /**
+     * Writes this next to the given log, which should be the one we're an
+     * index of.
+     */
+    public void write(File log) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(indexFile(log))))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(length);
+            out.writeLong(lastModified);
+            out.writeInt(linesPerBlock);
+            out.writeInt(blocks);
+            for (int ii = 0; ii < blocks; ++ii) {
+                out.writeLong(offsets[ii]);
+                out.writeInt(earliestS[ii]);
+                out.writeInt(latestS[ii]);
+            }
+        }
+    }
+
+    /**
+     * Returns the byte range, { from, to }, which has all the requests from
+     * sinceS through untilS (inclusive) in it.  Both are line starts (or the
+     * end of the file).  There'll be some requests outside the range in it,
+     * too, so you still have to check each one.
+     */
+    public long[] range(int sinceS, int untilS) {
+        //  the first block which might have something at or after sinceS...
+        int first = firstBlockAfter(latestSoFarS, 0, sinceS);
+        //  ...and the first one after that which only has things after
+        //  untilS, from there on
+        int last = firstBlockAfter(earliestFromHereS, first, untilS + 1L);
+        return new long[] { offset(first), offset(last) };
+    }
+
+    /**
+     * Returns the first block at or after from whose time in the given
+     * (never-decreasing) array is at least atLeastS.
+     */
+    private int firstBlockAfter(int[] times, int from, long atLeastS) {
+        int lo = from;
+        int hi = blocks;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < atLeastS) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private long offset(int block) {
+        return (block < blocks) ? offsets[block] : length;
+    }
+
+    /**
+     * Returns how many blocks we have.
+     */
+    public int getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Without an index, finds the byte range of the given log which has the
+     * requests from sinceS through untilS (inclusive) in it, in about
+     * log2(file length) little reads, assuming the log is in order (give or
+     * take BISECT_SLOP bytes).  Returns the same kind of thing as range().
+     */
+    public static long[] bisect(File log, LineFormat format, int sinceS, int untilS)
+            throws IOException {
+        LineParser lp = new LineParser(format);
+        long length = log.length();
+        long from = 0;
+        if (sinceS > Integer.MIN_VALUE) {
+            from = firstLineAfter(log, lp, Math.max(0, bisect(log, lp, sinceS) - BISECT_SLOP))[0];
+        }
+        long to = length;
+        if (untilS < Integer.MAX_VALUE) {
+            to = firstLineAfter(log, lp, Math.min(length, bisect(log, lp, untilS + 1) + BISECT_SLOP))[0];
+        }
+        return new long[] { from, Math.max(from, to) };
+    }
+
+    /**
+     * Returns the start of the first line whose first request (counting the
+     * lines after it, if it isn't one) is at or after atLeastS.
+     */
+    private static long bisect(File log, LineParser lp, int atLeastS) throws IOException {
+        //  Invariant: the first request after lo is before atLeastS (or lo is
+        //  0), and the first one after hi isn't.
+        long lo = 0;
+        long hi = log.length();
+        long[] first = firstLineAfter(log, lp, 0);
+        if (first[1] >= atLeastS) return 0;
+        while (hi - lo > 1) {
+            long mid = (lo + hi) >>> 1;
+            if (firstLineAfter(log, lp, mid)[1] < atLeastS) {
+                lo = mid;
+            } else {
+                hi = mid;
+            }
+        }
+        return firstLineAfter(log, lp, hi)[0];
+    }
+
+    /**
+     * Returns { where the first line starting at or after offset is, the
+     * time of the first request there or after it }.  If there's no such
+     * line, that's { the log's length, Integer.MAX_VALUE }; if no request,
+     * the time's Integer.MAX_VALUE.
+     */
+    private static long[] firstLineAfter(File log, LineParser lp, long offset)
+            throws IOException {
+        long length = log.length();
+        //  Start a byte early, so that if offset is the start of a line, the
+        //  (partial) line we throw away is just the '\n' before it.
+        long from = Math.max(0, offset - 1);
+        ByteLineSource in = new ByteLineSource(log, from, length, 8 * 1024);
+        LineParser.Context ct = new LineParser.Context();
+        long[] rv = { length, Integer.MAX_VALUE };
+        try {
+            if ((offset > 0) && (in.nextLine() == null)) return rv;
+            CharSequence line;
+            boolean firstLine = true;
+            while ((line = in.nextLine()) != null) {
+                if (firstLine) {
+                    rv[0] = in.getLineOffset();
+                    firstLine = false;
+                }
+                if (lp.parseLine(line, ct)) {
+                    rv[1] = ct.requestS;
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return rv;
+    }
+
+    private TimeIndex(long length, int linesPerBlock) {
+        this.length = length;
+        this.linesPerBlock = linesPerBlock;
+    }
+
+    /**
+     * Adds a block with no requests (yet) which starts at the given offset,
+     * and returns its number.
+     */
+    private int addBlock(long offset) {
+        if (blocks == offsets.length) {
+            int newSize = Math.max(16, blocks * 2);
+            offsets = Arrays.copyOf(offsets, newSize);
+            earliestS = Arrays.copyOf(earliestS, newSize);
+            latestS = Arrays.copyOf(latestS, newSize);
+        }
+        offsets[blocks] = offset;
+        earliestS[blocks] = Integer.MAX_VALUE;
+        latestS[blocks] = Integer.MIN_VALUE;
+        return blocks++;
+    }
+
+    /**
+     * Works out latestSoFarS and earliestFromHereS, which are what range()
+     * actually searches.
+     */
+    private void finish() {
+        latestSoFarS = new int[blocks];
+        earliestFromHereS = new int[blocks];
+        int latest = Integer.MIN_VALUE;
+        for (int ii = 0; ii < blocks; ++ii) {
+            latest = Math.max(latest, latestS[ii]);
+            latestSoFarS[ii] = latest;
+        }
+        int earliest = Integer.MAX_VALUE;
+        for (int ii = blocks - 1; ii >= 0; --ii) {
+            earliest = Math.min(earliest, earliestS[ii]);
+            earliestFromHereS[ii] = earliest;
+        }
+    }
+
+    //  the log file's, when we made the index
+    private final long length;
+    private long lastModified;
+    private final int linesPerBlock;
+
+    private int blocks = 0;
+    private long[] offsets = new long[0];
+    //  the earliest & latest request times in each block; MAX_VALUE & MIN_VALUE
+    //  if there weren't any
+    private int[] earliestS = new int[0];
+    private int[] latestS = new int[0];
+    //  see finish()
+    private int[] latestSoFarS;
+    private int[] earliestFromHereS;
+}
@@ -0,0 +1,344 @@
+import java.util.Arrays;
+
+/**
+ * A compiled timestamp format, something like SimpleDateFormat, except that
+ * it parses straight out of a CharSequence, without creating a Date (or a
+ * String, or a ParsePosition, or...) for every line, and without a
+ * Calendar's worth of mutable state, so one instance can be shared by
+ * everybody.
+ *
+ * <p>It only understands the handful of pattern letters that show up in access
+ * logs:
+ *
+ * <ul>
+ *     <li><code>yyyy</code>: four-digit year</li>
+ *     <li><code>M</code>, <code>MM</code>: month number (1-2 digits, or
+ *         exactly 2)</li>
+ *     <li><code>MMM</code>: English three-letter month name, any case</li>
+ *     <li><code>d</code>, <code>dd</code>: day of month</li>
+ *     <li><code>HH</code>, <code>mm</code>, <code>ss</code>: two-digit hour,
+ *         minute, second</li>
+ *     <li><code>S...</code>: fraction of a second; any number of digits,
+ *         which are ignored</li>
+ *     <li><code>Z</code>: offset like <code>-0500</code></li>
+ *     <li><code>X</code>, <code>XX</code>, <code>XXX</code>: offset like
+ *         <code>-05</code>, <code>-0500</code>, <code>-05:00</code>, or
+ *         <code>Z</code></li>
+ *     <li>a space, which matches any run of whitespace</li>
+ *     <li>anything in single quotes, or any other non-letter, which has to
+ *         be there as-is</li>
+ * </ul>
+ *
+ * <p>The pattern "epoch" is special: it means seconds since 1/1/70 UTC,
+ * possibly with a fraction after a '.'.
+ *
+ * <p>Like a lenient SimpleDateFormat, out-of-range values roll over (the 32nd
+ * of August is the 1st of September).  Fields which aren't in the pattern
+ * default to the start of 1/1/1970 UTC.
+ */
+public class TimestampPattern {
+
+    /**
+     * Returned by parse() when the text doesn't match.
+     */
+    public static final long NO_MATCH = Long.MIN_VALUE;
+
+    private static final int LITERAL = 0;
+    private static final int SPACE = 1;
+    private static final int YEAR = 2;
+    private static final int MONTH = 3;
+    private static final int MONTH_NAME = 4;
+    private static final int DAY = 5;
+    private static final int HOUR = 6;
+    private static final int MINUTE = 7;
+    private static final int SECOND = 8;
+    private static final int FRACTION = 9;
+    private static final int OFFSET = 10;  //  Z
+    private static final int ISO_OFFSET = 11;  //  X, XX, XXX
+    private static final int EPOCH = 12;
+
+    private static final String[] MONTHS = {
+            "jan", "feb", "mar", "apr", "may", "jun",
+            "jul", "aug", "sep", "oct", "nov", "dec" };
+
+    /**
+     * @throws IllegalArgumentException if we don't understand the pattern.
+     */
+    public TimestampPattern(String pattern) {
+        this.pattern = pattern;
+        //  Worst case, one token per character.
+        int[] kinds = new int[pattern.length() + 1];
+        int[] minDigits = new int[kinds.length];
+        int[] maxDigits = new int[kinds.length];
+        char[] lits = new char[kinds.length];
+        int count = 0;
+        if (pattern.equals("epoch")) {
+            kinds[count] = EPOCH;
+            minDigits[count] = 1;
+            //  Anything longer is too big for an int anyway; see walk().
+            maxDigits[count++] = 10;
+        } else {
+            for (int ii = 0; ii < pattern.length(); ) {
+                char tc = pattern.charAt(ii);
+                int run = 1;
+                while ((ii + run < pattern.length()) &&
+                       (pattern.charAt(ii + run) == tc)) ++run;
+                if (tc == '\'') {
+                    //  quoted literal; '' is a literal quote
+                    int close = pattern.indexOf('\'', ii + 1);
+                    if (close < 0) {
+                        throw new IllegalArgumentException("unclosed quote in \"" +
+                                pattern + "\"");
+                    }
+                    if (close == ii + 1) {
+                        kinds[count] = LITERAL;
+                        lits[count++] = '\'';
+                    } else {
+                        for (int jj = ii + 1; jj < close; ++jj) {
+                            kinds[count] = LITERAL;
+                            lits[count++] = pattern.charAt(jj);
+                        }
+                    }
+                    ii = close + 1;
+                    continue;
+                }
+                int kind;
+                int min = run;
+                int max = run;
+                switch (tc) {
+                    case 'y':
+                        if (run != 4) throw unsupported(tc, run);
+                        kind = YEAR;
+                        break;
+                    case 'M':
+                        if (run > 3) throw unsupported(tc, run);
+                        kind = (run == 3) ? MONTH_NAME : MONTH;
+                        max = 2;
+                        break;
+                    case 'd':
+                        if (run > 2) throw unsupported(tc, run);
+                        kind = DAY;
+                        max = 2;
+                        break;
+                    case 'H':
+                    case 'm':
+                    case 's':
+                        if (run != 2) throw unsupported(tc, run);
+                        kind = (tc == 'H') ? HOUR : (tc == 'm') ? MINUTE : SECOND;
+                        break;
+                    case 'S':
+                        kind = FRACTION;
+                        min = 1;
+                        max = Integer.MAX_VALUE;
+                        break;
+                    case 'Z':
+                        if (run != 1) throw unsupported(tc, run);
+                        kind = OFFSET;
+                        break;
+                    case 'X':
+                        if (run > 3) throw unsupported(tc, run);
+                        kind = ISO_OFFSET;
+                        break;
+                    case ' ':
+                        kind = SPACE;
+                        break;
+                    default:
+                        if (Character.isLetter(tc)) throw unsupported(tc, run);
+                        kind = LITERAL;
+                        run = 1;
+                        break;
+                }
+                kinds[count] = kind;
+                minDigits[count] = min;
+                maxDigits[count] = max;
+                lits[count++] = tc;
+                ii += run;
+            }
+        }
+        this.kinds = Arrays.copyOf(kinds, count);
+        this.minDigits = Arrays.copyOf(minDigits, count);
+        this.maxDigits = Arrays.copyOf(maxDigits, count);
+        this.lits = Arrays.copyOf(lits, count);
+        isEpoch = pattern.equals("epoch");
+    }
+
+    private IllegalArgumentException unsupported(char tc, int run) {
+        StringBuilder sb = new StringBuilder();
+        for (int ii = 0; ii < run; ++ii) sb.append(tc);
+        return new IllegalArgumentException("don't know what to do with \"" +
+                sb + "\" in timestamp pattern \"" + pattern + "\"");
+    }
+
+    /**
+     * Figures out where a timestamp starting at the given position ends,
+     * without bothering to work out what time it is.
+     *
+     * @return the index just past the end of the timestamp, or -1 if the text
+     *         there doesn't match.
+     */
+    public int end(CharSequence s, int pos) {
+        return (int)walk(s, pos, false);
+    }
+
+    /**
+     * Parses the timestamp starting at the given position.
+     *
+     * @return seconds since 1/1/70 UTC, or NO_MATCH.
+     */
+    public long parse(CharSequence s, int pos) {
+        return walk(s, pos, true);
+    }
+
+    /**
+     * Does the work for end() & parse(): returns the end position (or -1) if
+     * decode is false, the time (or NO_MATCH) if it's true.
+     */
+    private long walk(CharSequence s, int pos, boolean decode) {
+        long fail = decode ? NO_MATCH : -1;
+        int len = s.length();
+        long year = 1970;
+        long month = 1;
+        long day = 1;
+        long hour = 0;
+        long minute = 0;
+        long second = 0;
+        long offsetS = 0;
+        long epoch = 0;
+        for (int tt = 0; tt < kinds.length; ++tt) {
+            int kind = kinds[tt];
+            if (kind == LITERAL) {
+                if ((pos >= len) || (s.charAt(pos) != lits[tt])) return fail;
+                ++pos;
+            } else if (kind == SPACE) {
+                if ((pos >= len) || !isSpace(s.charAt(pos))) return fail;
+                while ((pos < len) && isSpace(s.charAt(pos))) ++pos;
+            } else if (kind == MONTH_NAME) {
+                if (pos + 3 > len) return fail;
+                int found = -1;
+                for (int mm = 0; (mm < 12) && (found < 0); ++mm) {
+                    String name = MONTHS[mm];
+                    if ((Character.toLowerCase(s.charAt(pos)) == name.charAt(0)) &&
+                        (Character.toLowerCase(s.charAt(pos + 1)) == name.charAt(1)) &&
+                        (Character.toLowerCase(s.charAt(pos + 2)) == name.charAt(2))) {
+                        found = mm;
+                    }
+                }
+                if (found < 0) return fail;
+                month = found + 1;
+                pos += 3;
+            } else if ((kind == OFFSET) || (kind == ISO_OFFSET)) {
+                if (pos >= len) return fail;
+                char sign = s.charAt(pos);
+                if ((kind == ISO_OFFSET) && (sign == 'Z')) {
+                    ++pos;
+                    continue;
+                }
+                if ((sign != '+') && (sign != '-')) return fail;
+                int hh = digits(s, pos + 1, 2);
+                if (hh < 0) return fail;
+                pos += 3;
+                int mm = 0;
+                if ((kind == ISO_OFFSET) && (pos < len) && (s.charAt(pos) == ':')) ++pos;
+                if ((kind == OFFSET) || ((pos < len) && isDigit(s.charAt(pos)))) {
+                    mm = digits(s, pos, 2);
+                    if (mm < 0) return fail;
+                    pos += 2;
+                }
+                offsetS = (hh * 3600L + mm * 60L) * ((sign == '-') ? -1 : 1);
+            } else {
+                //  Everything else is a run of digits.
+                int start = pos;
+                long value = 0;
+                while ((pos < len) && (pos - start < maxDigits[tt]) &&
+                       isDigit(s.charAt(pos))) {
+                    value = value * 10 + (s.charAt(pos++) - '0');
+                }
+                if (pos - start < minDigits[tt]) return fail;
+                switch (kind) {
+                    case YEAR: year = value; break;
+                    case MONTH: month = value; break;
+                    case DAY: day = value; break;
+                    case HOUR: hour = value; break;
+                    case MINUTE: minute = value; break;
+                    case SECOND: second = value; break;
+                    case EPOCH:
+                        //  Past 10 digits, the value could overflow even a
+                        //  long, so skip the rest and make it one nobody
+                        //  could mistake for a real time.
+                        while ((pos < len) && isDigit(s.charAt(pos))) {
+                            ++pos;
+                            value = Long.MAX_VALUE;
+                        }
+                        epoch = value;
+                        //  skip any fraction
+                        if ((pos + 1 < len) && (s.charAt(pos) == '.') &&
+                            isDigit(s.charAt(pos + 1))) {
+                            ++pos;
+                            while ((pos < len) && isDigit(s.charAt(pos))) ++pos;
+                        }
+                        break;
+                    default: break;  //  FRACTION
+                }
+            }
+        }
+        if (!decode) return pos;
+        if (isEpoch) return epoch;
+        return daysFromCivil(year, month, day) * 86400L +
+               hour * 3600L + minute * 60L + second - offsetS;
+    }
+
+    private static boolean isDigit(char tc) {
+        return (tc >= '0') && (tc <= '9');
+    }
+
+    /**
+     * Same as what \s means to java.util.regex.
+     */
+    static boolean isSpace(char tc) {
+        return (tc == ' ') || (tc == '\t') || (tc == '\n') ||
+               (tc == 0x0b) || (tc == '\f') || (tc == '\r');
+    }
+
+    /**
+     * Reads exactly count digits at pos, or returns -1.
+     */
+    private static int digits(CharSequence s, int pos, int count) {
+        if (pos + count > s.length()) return -1;
+        int rv = 0;
+        for (int ii = pos; ii < pos + count; ++ii) {
+            char tc = s.charAt(ii);
+            if (!isDigit(tc)) return -1;
+            rv = rv * 10 + (tc - '0');
+        }
+        return rv;
+    }
+
+    /**
+     * Returns days since 1/1/70 for the given proleptic Gregorian date.
+     * Months and days outside their usual ranges roll over, like a lenient
+     * Calendar.  (This is Howard Hinnant's days_from_civil().)
+     */
+    static long daysFromCivil(long year, long month, long day) {
+        //  Roll months into years first, so the rest only sees 1-12.
+        year += Math.floorDiv(month - 1, 12);
+        month = Math.floorMod(month - 1, 12) + 1;
+        year -= (month <= 2) ? 1 : 0;
+        long era = Math.floorDiv(year, 400);
+        long yoe = year - era * 400;
+        long doy = (153 * (month + ((month > 2) ? -3 : 9)) + 2) / 5 + day - 1;
+        long doe = yoe * 365 + yoe / 4 - yoe / 100 + doy;
+        return era * 146097 + doe - 719468;
+    }
+
+    @Override
+    public String toString() {
+        return pattern;
+    }
+
+    private final String pattern;
+    private final int[] kinds;
+    private final int[] minDigits;
+    private final int[] maxDigits;
+    private final char[] lits;
+    private final boolean isEpoch;
+}
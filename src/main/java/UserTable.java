@@ -0,0 +1,84 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Where ReorderingFileParser keeps its per-user state.  HeapUserTable is
+ * the obvious map of Users; MappedUserTable keeps the same fields in
+ * memory-mapped files instead, for when there are more users than will fit
+ * in the heap.
+ *
+ * <p>The parser never hangs on to a User it got from one of these: it
+ * changes users with update(), which takes care of whatever locking is
+ * needed for someone else to be reading the table at the same time, and it
+ * reads them through a Snapshot, which hands out copies.  Only one thread
+ * may call update() or add().
+ */
+public interface UserTable extends Closeable {
+
+    /**
+     * What update() does to the user.
+     */
+    interface Updater {
+        void update(ReorderingFileParser.User user, LineParser.Context ct);
+    }
+
+    /**
+     * Finds the user with the given ID (making a new one if there isn't one)
+     * and passes it to the updater, along with ct.  Whatever the updater
+     * does to the User sticks.
+     */
+    void update(String id, LineParser.Context ct, Updater updater);
+
+    /**
+     * Adds a user we got from somewhere else, like a checkpoint.  There must
+     * not already be a user with that ID.
+     */
+    void add(ReorderingFileParser.User user);
+
+    /**
+     * Returns how many users there are.
+     */
+    int size();
+
+    /**
+     * Returns false if this doesn't keep the Users' SessionSketches, and so
+     * can't be used for per-user percentiles (see
+     * LogFileParser.setPercentiles()).
+     */
+    boolean keepsSketches();
+
+    /**
+     * Returns a view of the users we have right now; ones added later aren't
+     * in it, but changes to the ones which are will show up.
+     */
+    Snapshot snapshot();
+
+    /**
+     * Users numbered 0 to size() - 1, in no particular order.
+     */
+    interface Snapshot {
+        int size();
+
+        /**
+         * Returns the user's page count, which may be stale by the time you
+         * get it.
+         */
+        int pages(int index);
+
+        String id(int index);
+
+        /**
+         * Copies the given user into the given User, all at once.
+         *
+         * @param histograms if false, the User's SessionSketches are left
+         *                   alone.
+         */
+        void read(int index, ReorderingFileParser.User into, boolean histograms);
+    }
+
+    /**
+     * Lets go of whatever this is holding on to (like files).
+     */
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,34 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BenchTest {
+
+    @Test
+    public void testBench() throws IOException {
+        List<String> files = Arrays.asList("src/test/resources/log1.txt",
+                                           "src/test/resources/dir1",
+                                           "src/test/resources/log4.txt");
+        Bench.Result result = new Bench(1, 3).run("test", new Bench.ParserFactory() {
+            @Override
+            public LogFileParser newParser() {
+                return new NonChronologicalFileParser(600, false);
+            }
+        }, files, 5, false);
+
+        LogFileParser lfp = new ReorderingFileParser(600, false);
+        lfp.processEverything(files);
+        assertEquals(LogTop.summaryToString(lfp.getSummary(5), false),
+                     result.getSummary());
+        //  every line of every file, on each measured run
+        assertEquals(40, lfp.getLinesRead());
+        assertEquals(3 * 40, result.lines);
+        assertTrue(result.getMedianMs() > 0);
+        assertTrue(result.getMedianMs() <= result.getP95Ms());
+    }
+}
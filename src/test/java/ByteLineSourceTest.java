@@ -0,0 +1,88 @@
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class ByteLineSourceTest {
+
+    @Test
+    public void testLines() throws IOException {
+        //  Our test logs should come out the same as they do from a
+        //  BufferedReader, with a buffer so small
+        //  that it has to be grown and refilled a lot.
+        for (String file : new String[] { "src/test/resources/log1.txt",
+                "src/test/resources/log4.txt", "src/test/resources/dir1/log2.txt",
+                "src/test/resources/dir1/log3.txt" }) {
+            List<String> expect = new ArrayList<>();
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            String tl;
+            while ((tl = in.readLine()) != null) expect.add(tl);
+            in.close();
+            for (int bufferSize : new int[] { 16, 100, 1024 * 1024 }) {
+                assertEquals(expect, read(new File(file), bufferSize));
+            }
+        }
+
+        //  \r\n, empty lines, and no newline at the end
+        File tf = File.createTempFile("logtop", ".txt");
+        tf.deleteOnExit();
+        FileOutputStream out = new FileOutputStream(tf);
+        out.write("one\r\n\ntwo\r\n\r\nthree is a longer line than that\nfour".getBytes(StandardCharsets.US_ASCII));
+        out.close();
+        List<String> expect = new ArrayList<>();
+        for (String ts : new String[] { "one", "", "two", "", "three is a longer line than that", "four" }) {
+            expect.add(ts);
+        }
+        assertEquals(expect, read(tf, 16));
+    }
+
+    /**
+     * getLineOffset() should say where each line starts, and reading from
+     * one of those to another should get just the lines in between, with
+     * ReaderLineSource too.
+     */
+    @Test
+    public void testRanges() throws IOException {
+        File file = new File("src/test/resources/log1.txt");
+        List<String> all = read(file, 16);
+        List<Long> offsets = new ArrayList<>();
+        ByteLineSource in = new ByteLineSource(file, 16);
+        while (in.nextLine() != null) offsets.add(in.getLineOffset());
+        in.close();
+        assertEquals(all.size(), offsets.size());
+        assertEquals(Long.valueOf(0), offsets.get(0));
+        offsets.add(file.length());
+
+        Random rand = new Random(666);
+        for (int trial = 0; trial < 100; ++trial) {
+            int from = rand.nextInt(offsets.size());
+            int to = from + rand.nextInt(offsets.size() - from);
+            List<String> expect = all.subList(from, to);
+            assertEquals(expect, read(new ByteLineSource(
+                    file, offsets.get(from), offsets.get(to), 16)));
+            assertEquals(expect, read(new ReaderLineSource(
+                    file, offsets.get(from), offsets.get(to))));
+        }
+    }
+
+    private List<String> read(File file, int bufferSize) throws IOException {
+        return read(new ByteLineSource(file, bufferSize));
+    }
+
+    private List<String> read(LineSource in) throws IOException {
+        List<String> rv = new ArrayList<>();
+        CharSequence line;
+        while ((line = in.nextLine()) != null) rv.add(line.toString());
+        in.close();
+        return rv;
+    }
+}
@@ -0,0 +1,88 @@
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DiagnosticsTest {
+
+    @Test
+    public void testCountsAndSamples() {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        Diagnostics diag = new Diagnostics(new PrintStream(bout), false, 2, 16);
+        LineParser lp = new LineParser();
+        LineParser.Context ct = new LineParser.Context();
+        ct.diagnostics = diag;
+        ct.verboseCurrentFile = "test";
+        for (String tl : new String[] { "garbage", LineParserTest.line[0],
+                LineParserTest.line[2], "more garbage", "yet more garbage",
+                "10.10.6.90 - - 15/Aug/2016:23:59:20 -0500 \"GET /ecf8427e/b443dc7f/71f28176",
+                "10.10.6.90 - - 15/Fug/2016:23:59:20 -0500 \"GET /ecf8427e/b443dc7f/71f28176" }) {
+            ++ct.verboseCurrentLine;
+            lp.parseLine(tl, ct);
+        }
+        assertEquals(5, diag.getCount(Diagnostics.NOT_A_REQUEST));
+        assertEquals(1, diag.getCount(Diagnostics.BAD_TIMESTAMP));
+        assertEquals(0, diag.getCount(Diagnostics.DROPPED_REQUEST));
+        assertEquals(Arrays.asList("test 1: ignoring garbage",
+                "test 3: ignoring " + LineParserTest.line[2]),
+                diag.getSamples(Diagnostics.NOT_A_REQUEST));
+        assertEquals(1, diag.getSamples(Diagnostics.BAD_TIMESTAMP).size());
+
+        //  The text is usually a buffer which is about to be reused; the
+        //  sample has to be what it said at the time.
+        StringBuilder buffer = new StringBuilder("first");
+        diag.report(Diagnostics.DROPPED_REQUEST, "test", 8, buffer);
+        buffer.setLength(0);
+        buffer.append("second");
+        assertEquals(Arrays.asList("test 8: dropped first"),
+                diag.getSamples(Diagnostics.DROPPED_REQUEST));
+
+        //  not verbose, so nothing printed
+        assertFalse(diag.isVerbose());
+        diag.close();
+        assertEquals(0, bout.size());
+    }
+
+    /**
+     * If the writer can't keep up, report() shouldn't wait for it; it should
+     * drop messages and count them.
+     */
+    @Test
+    public void testOverflow() throws InterruptedException {
+        final CountDownLatch unstuck = new CountDownLatch(1);
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        OutputStream stuck = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    unstuck.await();
+                } catch (InterruptedException ie) {
+                    throw new IOException(ie);
+                }
+                bout.write(b);
+            }
+        };
+        Diagnostics diag = new Diagnostics(new PrintStream(stuck), true, 1, 4);
+        for (int ii = 1; ii <= 100; ++ii) {
+            diag.report(Diagnostics.NOT_A_REQUEST, "test", ii, "line " + ii);
+        }
+        //  At most one message is being written, and four are queued.
+        assertTrue(diag.getDropped() >= 95);
+        assertEquals(100, diag.getCount(Diagnostics.NOT_A_REQUEST));
+        unstuck.countDown();
+        diag.close();
+
+        String out = bout.toString();
+        assertTrue(out.startsWith("test 1: ignoring line 1"));
+        assertTrue(out.contains("100 x ignoring, for example:\n    test 1: ignoring line 1\n"));
+        assertTrue(out.contains(diag.getDropped() + " messages not printed"));
+    }
+}
@@ -0,0 +1,157 @@
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HistogramTest {
+
+    /**
+     * Every value has to land in a bucket whose range contains it, the
+     * buckets have to be in order with no gaps, and none can be wider than
+     * 1/32 of the values in it.
+     */
+    @Test
+    public void testBuckets() {
+        long lastHighest = -1;
+        int lastBucket = -1;
+        for (long value = 0; value <= Integer.MAX_VALUE;
+             value += (value < 5000) ? 1 : value / 1000) {
+            int bucket = Histogram.bucketFor((int)value);
+            assertTrue(bucket >= lastBucket);
+            if (bucket != lastBucket) {
+                //  new bucket; it starts right after the last one ended
+                assertEquals(lastHighest + 1, (lastBucket < 0) ? 0 :
+                        Histogram.highestValueIn(lastBucket) + 1);
+                lastBucket = bucket;
+                lastHighest = Histogram.highestValueIn(bucket);
+            }
+            assertTrue(value <= lastHighest);
+            assertTrue(lastHighest - value <= value / 32);
+        }
+        assertEquals(Integer.MAX_VALUE, Histogram.highestValueIn(
+                Histogram.bucketFor(Integer.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentiles() throws IOException {
+        Histogram hh = new Histogram();
+        assertEquals(0, hh.getValueAtPercentile(50));
+        for (int ii = 1; ii <= 100; ++ii) hh.record(ii);
+        assertEquals(100, hh.getCount());
+        assertEquals(50, hh.getValueAtPercentile(50));
+        //  90 is in a bucket with 91
+        assertEquals(91, hh.getValueAtPercentile(90));
+        assertEquals(99, hh.getValueAtPercentile(99));
+        assertEquals(100, hh.getValueAtPercentile(100));
+        assertEquals(1, hh.getValueAtPercentile(0));
+
+        //  Compared with sorting a bunch of random values, we should never be
+        //  more than 1/32 high, or low at all.
+        Random rand = new Random(666);
+        int[] values = new int[10000];
+        Histogram hh2 = new Histogram();
+        for (int ii = 0; ii < values.length; ++ii) {
+            values[ii] = (int)Math.exp(rand.nextDouble() * 12);
+            hh2.record(values[ii]);
+        }
+        Arrays.sort(values);
+        for (double pct : new double[] { 1, 10, 50, 90, 99, 99.9 }) {
+            int expect = values[(int)Math.ceil(pct / 100 * values.length) - 1];
+            int got = hh2.getValueAtPercentile(pct);
+            assertTrue(got >= expect);
+            assertTrue(got - expect <= expect / 32);
+        }
+
+        //  adding them up is the same as recording everything in one
+        Histogram sum = hh.copy();
+        sum.add(hh2);
+        Histogram both = new Histogram();
+        for (int ii = 1; ii <= 100; ++ii) both.record(ii);
+        for (int value : values) both.record(value);
+        assertEquals(both.getCount(), sum.getCount());
+        assertEquals(both.getMax(), sum.getMax());
+        for (double pct : new double[] { 1, 10, 50, 90, 99, 99.9 }) {
+            assertEquals(both.getValueAtPercentile(pct), sum.getValueAtPercentile(pct));
+        }
+
+        //  and it survives a round trip
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        sum.write(new DataOutputStream(bout));
+        Histogram back = Histogram.read(new DataInputStream(
+                new ByteArrayInputStream(bout.toByteArray())));
+        assertEquals(sum.getCount(), back.getCount());
+        assertEquals(sum.getMax(), back.getMax());
+        for (double pct : new double[] { 1, 10, 50, 90, 99, 99.9 }) {
+            assertEquals(sum.getValueAtPercentile(pct), back.getValueAtPercentile(pct));
+        }
+    }
+
+    /**
+     * A SessionSketch is coarser than a Histogram, but should still never be
+     * low, or more than about a quarter high; and it has to stay that way
+     * through a round trip and through its counts overflowing.
+     */
+    @Test
+    public void testSessionSketch() throws IOException {
+        SessionSketch sketch = new SessionSketch();
+        assertEquals(0, sketch.lengths().getValueAtPercentile(50));
+        Random rand = new Random(667);
+        int[] lengths = new int[70000];
+        int[] pages = new int[lengths.length];
+        for (int ii = 0; ii < lengths.length; ++ii) {
+            lengths[ii] = (int)Math.exp(rand.nextDouble() * 10);
+            pages[ii] = 1 + rand.nextInt(40);
+            sketch.record(lengths[ii], pages[ii]);
+        }
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        sketch.write(new DataOutputStream(bout));
+        SessionSketch back = SessionSketch.read(new DataInputStream(
+                new ByteArrayInputStream(bout.toByteArray())));
+        Arrays.sort(lengths);
+        Arrays.sort(pages);
+        for (SessionSketch tss : new SessionSketch[] { sketch, back, sketch.copy() }) {
+            Histogram hl = tss.lengths();
+            Histogram hp = tss.pagesPerSession();
+            assertEquals(lengths[lengths.length - 1], hl.getMax());
+            assertEquals(40, hp.getMax());
+            for (double pct : new double[] { 1, 10, 50, 90, 99 }) {
+                int expect = lengths[(int)Math.ceil(pct / 100 * lengths.length) - 1];
+                int got = hl.getValueAtPercentile(pct);
+                assertTrue(got >= expect);
+                assertTrue(got - expect <= 1 + expect * 3 / 10);
+                expect = pages[(int)Math.ceil(pct / 100 * pages.length) - 1];
+                got = hp.getValueAtPercentile(pct);
+                assertTrue(got >= expect);
+                assertTrue(got - expect <= 1 + expect * 3 / 10);
+            }
+        }
+
+        //  small values are exact, and so is the biggest one
+        sketch = new SessionSketch();
+        sketch.record(1, 1);
+        sketch.record(970, 10);
+        assertEquals(2, sketch.lengths().getCount());
+        assertEquals(1, sketch.lengths().getValueAtPercentile(50));
+        assertEquals(970, sketch.lengths().getValueAtPercentile(90));
+        assertEquals(10, sketch.pagesPerSession().getValueAtPercentile(99));
+
+        //  more than a char's worth in a bucket
+        sketch = new SessionSketch();
+        for (int ii = 0; ii < 100000; ++ii) {
+            sketch.record(5, 3);
+            sketch.record(100, 20);
+        }
+        assertEquals(5, sketch.lengths().getValueAtPercentile(40));
+        assertEquals(100, sketch.lengths().getValueAtPercentile(60));
+        assertEquals(3, sketch.pagesPerSession().getValueAtPercentile(40));
+        assertEquals(20, sketch.pagesPerSession().getValueAtPercentile(60));
+    }
+}
@@ -1,8 +1,17 @@
 import org.junit.Test;
 
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class LineParserTest {
     static final String[] line = new String[]{
@@ -31,6 +40,213 @@ public class LineParserTest {
         check(lp, ct, line[6], "489f3e87", 1471325838, 6);
     }
 
+    /**
+     * TemplateLineFormat.DEFAULT is supposed to accept the same lines as
+     * RegexLineFormat, and get the same stuff out of them.
+     */
+    @Test
+    public void testDefaultTemplateMatchesRegex() throws IOException {
+        List<String> lines = new ArrayList<>(Arrays.asList(line));
+        for (String file : new String[] { "src/test/resources/log1.txt",
+                "src/test/resources/log4.txt", "src/test/resources/dir1/log2.txt",
+                "src/test/resources/dir1/log3.txt" }) {
+            BufferedReader in = new BufferedReader(new FileReader(file));
+            String tl;
+            while ((tl = in.readLine()) != null) lines.add(tl);
+            in.close();
+        }
+        lines.addAll(Arrays.asList(
+                "",
+                "garbage",
+                "10.10.6.90",
+                "10.10.6.9000 - - 15/Aug/2016:23:59:20 -0500 \"GET /ecf8427e/b443dc7f/71f28176/174ef735 HTTP/1.0\"",
+                "10.10.6.90 - - 15/Aug/2016:23:59:20 -0500 \"HEAD /ecf8427e/b443dc7f/71f28176/174ef735 HTTP/1.0\"",
+                "10.10.6.90 - - 15/Aug/2016:23:59:20 -0500 \"GET /ecf8427e/b443dc7f/71F28176/174ef735 HTTP/1.0\"",
+                "10.10.6.90 - - 15/Aug/2016:23:59:20 -0500 \"GET /ecf8427e/b443dc7f/71f28176",
+                "10.10.6.90 - - 15/Aug/2016:23:59:20 -0500 \"GET /ecf8427e/b443dc7f/71f28176?x",
+                "10.10.6.90 - - 15/Aug/2016:23:59:20 -0500 \"GET /ecf8427e/b443dc7f/ HTTP/1.0\"",
+                "10.10.6.90 - - 15/Aug/2016:23:59:20 -0500 \"GET /ecf8427e//71f28176 HTTP/1.0\"",
+                "10.10.6.90 - - 15/Aug/2016:23:59:20 -0500 \"GET /ecf8427e/b443dc7f/71f28176 HTTP/1.0\"",
+                "10.10.6.90\t-  -\t15/Aug/2016:23:59:20   -0500 \"DELETE\t/ecf8427e/b443dc7f/71f28176/x HTTP/1.0\"",
+                "10.10.6.90 - - 15/Aug/2016:23:59:20 -0500 \"GETX /ecf8427e/b443dc7f/71f28176/174ef735 HTTP/1.0\"",
+                "10.10.6.90 - - 15/Bug/2016:23:59:20 -0500 \"GET /ecf8427e/b443dc7f/71f28176/174ef735 HTTP/1.0\"",
+                "10.10.6.90 - - 32/aug/2016:23:59:20 -0500 \"GET /ecf8427e/b443dc7f/71f28176/174ef735 HTTP/1.0\""));
+
+        LineFormat regex = new RegexLineFormat();
+        LineFormat template = TemplateLineFormat.DEFAULT;
+        LineParser.Context rct = new LineParser.Context();
+        LineParser.Context tct = new LineParser.Context();
+        int matched = 0;
+        for (String tl : lines) {
+            rct.userID = tct.userID = null;
+            rct.requestS = tct.requestS = 0;
+            boolean rm = regex.parse(tl, rct) == LineFormat.MATCHED;
+            boolean tm = template.parse(tl, tct) == LineFormat.MATCHED;
+            assertEquals(tl, rm, tm);
+            assertEquals(tl, rct.userID, tct.userID);
+            assertEquals(tl, rct.requestS, tct.requestS);
+            if (rm) ++matched;
+        }
+        //  make sure we actually tested something
+        assertTrue(matched > 20);
+    }
+
+    @Test
+    public void testOtherFormats() {
+        LineParser.Context ct = new LineParser.Context();
+
+        LineParser lp = new LineParser(TemplateLineFormat.forName("nginx"));
+        check(lp, ct, "10.10.6.90 - bob [15/Aug/2016:23:59:20 -0500] \"GET /ecf8427e/b443dc7f/71f28176/174ef735?x=1 HTTP/1.1\" 200 612 \"-\" \"curl/7.47.0\"",
+                "71f28176", 1471323560, 1);
+        assertFalse(lp.parseLine("10.10.6.90 - - [15/Aug/2016:23:59:20 -0500] \"GET / HTTP/1.1\" 200 612 \"-\" \"ELB-HealthChecker/1.0\"", ct));
+
+        //  JSON lines, with the keys always in the same order
+        lp = new LineParser(new TemplateLineFormat(
+                "{{\"ts\":\"{time:yyyy-MM-dd'T'HH:mm:ss.SSSXXX}\",\"ip\":\"{skip}\",\"method\":\"{method}\",\"path\":\"{path:3}\""));
+        check(lp, ct, "{\"ts\":\"2016-08-16T04:59:20.123Z\",\"ip\":\"10.10.6.90\",\"method\":\"POST\",\"path\":\"/ecf8427e/b443dc7f/b3a60c78\",\"status\":200}",
+                "b3a60c78", 1471323560, 2);
+        check(lp, ct, "{\"ts\":\"2016-08-15T23:59:21.5-05:00\",\"ip\":\"10.10.6.90\",\"method\":\"GET\",\"path\":\"/ecf8427e/b443dc7f/b3a60c78/x\",\"status\":200}",
+                "b3a60c78", 1471323561, 3);
+
+        //  Epoch seconds, space-separated
+        LineFormat epoch = new TemplateLineFormat("{time:epoch} {skip} {method} {path:1}");
+        lp = new LineParser(epoch);
+        check(lp, ct, "1471323560.25 10.10.6.90 PATCH /489f3e87?q 204", "489f3e87", 1471323560, 4);
+        assertFalse(lp.parseLine("1471323560.25 10.10.6.90 PATCH /489f3e87", ct));
+        //  Times that don't fit in an int are bad timestamps, not wrapped.
+        assertEquals(LineFormat.BAD_TIMESTAMP,
+                epoch.parse("2147483648 10.10.6.90 PATCH /489f3e87?q 204", ct));
+        assertEquals(LineFormat.BAD_TIMESTAMP,
+                epoch.parse("18446744073709551617 10.10.6.90 PATCH /489f3e87?q 204", ct));
+        check(lp, ct, "2147483647 10.10.6.90 PATCH /489f3e87?q 204", "489f3e87", Integer.MAX_VALUE, 5);
+        LineFormat iso = new TemplateLineFormat("{time:yyyy-MM-dd} {method} {path:1}");
+        assertEquals(LineFormat.MATCHED, iso.parse("2038-01-18 GET /489f3e87 200", ct));
+        assertEquals(LineFormat.BAD_TIMESTAMP, iso.parse("2038-01-20 GET /489f3e87 200", ct));
+
+        try {
+            TemplateLineFormat.forName("{skip} {method} {path:3}");
+            fail("accepted a template with no time");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /**
+     * When sampling, users who aren't in the sample get turned away as soon
+     * as we have their ID, in both formats; users who are get parsed as
+     * usual.
+     */
+    @Test
+    public void testSampling() {
+        LineFormat[] formats = { TemplateLineFormat.DEFAULT, new RegexLineFormat() };
+        int in = 0;
+        for (int uid = 0; uid < 1000; ++uid) {
+            String id = String.format("%08x", uid * 0x9e3779b1);
+            boolean sampled = LogFileParser.inSample(id, 0, id.length(), 16);
+            String good = "10.10.6.90 - - 15/Aug/2016:23:59:20 -0500 \"GET /ecf8427e/b443dc7f/" +
+                    id + "/174ef735 HTTP/1.0\" 200 - \"-\" \"-\" 7 \"10.10.1.231, 10.10.6.90\" -";
+            for (LineFormat format : formats) {
+                LineParser.Context ct = new LineParser.Context();
+                ct.sampleOneIn = 16;
+                assertEquals(sampled ? LineFormat.MATCHED : LineFormat.NOT_SAMPLED,
+                        format.parse(good, ct));
+                assertEquals(sampled ? id : null, ct.userID);
+            }
+            //  The template doesn't even look at what comes after the ID.
+            LineParser.Context ct = new LineParser.Context();
+            ct.sampleOneIn = 16;
+            String cutOff = good.substring(0, good.indexOf(id) + id.length());
+            assertEquals(sampled ? LineFormat.NOT_A_REQUEST : LineFormat.NOT_SAMPLED,
+                    TemplateLineFormat.DEFAULT.parse(cutOff, ct));
+            if (sampled) ++in;
+        }
+        assertTrue((in > 40) && (in < 90));
+
+        //  and LineParser doesn't complain about the ones it turns away
+        Diagnostics diagnostics = new Diagnostics(System.err, false);
+        LineParser lp = new LineParser(TemplateLineFormat.DEFAULT, 1000000);
+        LineParser.Context ct = new LineParser.Context();
+        ct.diagnostics = diagnostics;
+        int matched = 0;
+        for (String tl : line) if (lp.parseLine(tl, ct)) ++matched;
+        assertEquals(0, matched);
+        assertEquals(1, diagnostics.getCount(Diagnostics.NOT_A_REQUEST));
+    }
+
+    /**
+     * Both formats should find the same tenant, and the same LineParser
+     * should hand out the same String for it every time.
+     */
+    @Test
+    public void testTenants() {
+        for (LineFormat format : new LineFormat[] {
+                TemplateLineFormat.DEFAULT, new RegexLineFormat() }) {
+            LineParser lp = new LineParser(format, 1, Integer.MIN_VALUE,
+                    Integer.MAX_VALUE, true);
+            LineParser.Context ct = new LineParser.Context();
+            String first = null;
+            for (String tl : line) {
+                if (!lp.parseLine(tl, ct)) continue;
+                assertEquals("ecf8427e/b443dc7f", ct.tenant);
+                if (first == null) first = ct.tenant;
+                assertTrue(first == ct.tenant);
+            }
+            assertTrue(lp.parseLine(line[0].replace("/b443dc7f/", "/b443dc70/"), ct));
+            assertEquals("ecf8427e/b443dc70", ct.tenant);
+
+            //  and nobody looks for them if you don't ask
+            lp = new LineParser(format);
+            ct = new LineParser.Context();
+            assertTrue(lp.parseLine(line[0], ct));
+            assertEquals(null, ct.tenant);
+        }
+
+        //  With the user ID first, there's no tenant to speak of.
+        LineParser lp = new LineParser(new TemplateLineFormat(
+                "{ip} - - {time:d/MMM/yyyy:HH:mm:ss Z} \"{method} {path:1}"),
+                1, Integer.MIN_VALUE, Integer.MAX_VALUE, true);
+        LineParser.Context ct = new LineParser.Context();
+        assertTrue(lp.parseLine(line[0], ct));
+        assertEquals("ecf8427e", ct.userID);
+        assertEquals("", ct.tenant);
+    }
+
+    @Test
+    public void testInterner() {
+        Interner interner = new Interner();
+        String text = "xxabcabcabd";
+        String abc = interner.intern(text, 2, 5);
+        assertEquals("abc", abc);
+        assertTrue(abc == interner.intern(text, 5, 8));
+        assertEquals("abd", interner.intern(text, 8, 11));
+        assertEquals("", interner.intern(text, 3, 3));
+        //  enough to make it grow a few times
+        List<String> all = new ArrayList<>();
+        for (int ii = 0; ii < 1000; ++ii) all.add(interner.intern("t" + ii, 0, ("t" + ii).length()));
+        for (int ii = 0; ii < 1000; ++ii) assertTrue(all.get(ii) == interner.intern("t" + ii, 0, ("t" + ii).length()));
+        assertTrue(abc == interner.intern(text, 5, 8));
+        assertEquals(1003, interner.size());
+    }
+
+    /**
+     * TimestampPattern should agree with a (lenient) SimpleDateFormat.
+     */
+    @Test
+    public void testTimestampPattern() throws Exception {
+        String pattern = "d/MMM/yyyy:HH:mm:ss Z";
+        TimestampPattern tp = new TimestampPattern(pattern);
+        SimpleDateFormat sdf = new SimpleDateFormat(pattern, java.util.Locale.US);
+        for (String str : new String[] {
+                "15/Aug/2016:23:59:20 -0500", "1/Jan/1970:00:00:00 +0000",
+                "29/Feb/2016:12:00:00 +0130", "31/Dec/1999:23:59:59 -1200",
+                "32/Aug/2016:23:59:20 -0500", "1/Mar/2100:00:00:00 +0000",
+                "15/aug/2016:23:59:20 -0500" }) {
+            assertEquals(str, sdf.parse(str).getTime() / 1000L, tp.parse(str, 0));
+            assertEquals(str, str.length(), tp.end(str, 0));
+        }
+        assertEquals(TimestampPattern.NO_MATCH, tp.parse("15/Aug/16:23:59:20 -0500", 0));
+        assertEquals(-1, tp.end("15/Aug/2016:23:59:20 0500", 0));
+    }
+
     /**
      * Confirms that the given parser parses the given line and puts the
      * expected stuff into the given context.
@@ -1,9 +1,26 @@
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class LogFileParserTest {
 
@@ -31,6 +48,730 @@ public class LogFileParserTest {
         });
     }
 
+    @Test
+    public void testRawIngestion() throws IOException {
+        testCommonStuff(new ParserFactory() {
+            @Override
+            public LogFileParser newParser() {
+                LogFileParser rv = new ReorderingFileParser(600, false);
+                rv.setRawIngestion(true);
+                return rv;
+            }
+        });
+        testCommonStuff(new ParserFactory() {
+            @Override
+            public LogFileParser newParser() {
+                LogFileParser rv = new NonChronologicalFileParser(600, false);
+                rv.setRawIngestion(true);
+                return rv;
+            }
+        });
+    }
+
+    @Test
+    public void testMappedUserTable() throws IOException {
+        testCommonStuff(new ParserFactory() {
+            @Override
+            public LogFileParser newParser() {
+                ReorderingFileParser rv = new ReorderingFileParser(600, false);
+                try {
+                    rv.setUserTable(new MappedUserTable(tempDir(), 1, 12, 4));
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+                return rv;
+            }
+        });
+    }
+
+    /**
+     * A MappedUserTable with tiny chunks and index has to grow a lot to hold
+     * a bunch of users, and the top users (ties and all) should still come
+     * out the same as on the heap.
+     */
+    @Test
+    public void testMappedUserTableGrowth() throws IOException {
+        ReorderingFileParser heap = new ReorderingFileParser(600, false);
+        ReorderingFileParser mapped = new ReorderingFileParser(600, false);
+        MappedUserTable table = new MappedUserTable(tempDir(), 1, 12, 4);
+        mapped.setUserTable(table);
+        LineParser lp = heap.newLineParser();
+        LineParser.Context ct = new LineParser.Context();
+        Random rand = new Random(666);
+        int when = 1471320000;
+        for (int ii = 0; ii < 200000; ++ii) {
+            when += rand.nextInt(30);
+            String line = syntheticLine(rand.nextInt(50000), when);
+            assertEquals(true, heap.processLine(lp, line, ct));
+            assertEquals(true, mapped.processLine(lp, line, ct));
+        }
+        assertEquals(heap.getSummary(50).uniqueUsers, mapped.getSummary(50).uniqueUsers);
+        assertEquals(LogTop.summaryToString(heap.getSummary(50), true),
+                     LogTop.summaryToString(mapped.getSummary(50), true));
+
+        //  and through a checkpoint
+        File cf = File.createTempFile("logtop", ".ckpt");
+        cf.deleteOnExit();
+        mapped.saveCheckpoint(cf);
+        ReorderingFileParser back = new ReorderingFileParser(600, false);
+        back.setUserTable(new MappedUserTable(tempDir(), 1, 12, 4));
+        back.loadCheckpoint(cf);
+        assertEquals(LogTop.summaryToString(heap.getSummary(50), true),
+                     LogTop.summaryToString(back.getSummary(50), true));
+        table.close();
+    }
+
+    /**
+     * Running every threshold at once should get the same sessions as
+     * running each one by itself, with either parser, with either kind of
+     * UserTable, and through a checkpoint.
+     */
+    @Test
+    public void testMultipleThresholds() throws IOException {
+        int[] thresholds = { 60, 600, 1800 };
+        ReorderingFileParser reordering = new ReorderingFileParser(thresholds, false);
+        reordering.setPercentiles(true);
+        NonChronologicalFileParser nonChrono = new NonChronologicalFileParser(thresholds, false);
+        nonChrono.setPercentiles(true);
+        ReorderingFileParser mapped = new ReorderingFileParser(thresholds, false);
+        MappedUserTable table = new MappedUserTable(tempDir(), thresholds.length, 12, 4);
+        mapped.setUserTable(table);
+        LogFileParser[] singles = new LogFileParser[thresholds.length];
+        for (int ii = 0; ii < thresholds.length; ++ii) {
+            singles[ii] = new ReorderingFileParser(thresholds[ii], false);
+            singles[ii].setPercentiles(true);
+        }
+
+        LineParser lp = reordering.newLineParser();
+        LineParser.Context ct = new LineParser.Context();
+        Random rand = new Random(666);
+        int when = 1471320000;
+        for (int ii = 0; ii < 30000; ++ii) {
+            //  about 15 minutes between a user's requests, on average, so
+            //  each threshold cuts sessions up differently
+            when += rand.nextInt(10);
+            String line = syntheticLine(rand.nextInt(200), when);
+            reordering.processLine(lp, line, ct);
+            nonChrono.processLine(lp, line, ct);
+            mapped.processLine(lp, line, ct);
+            for (LogFileParser single : singles) single.processLine(lp, line, ct);
+        }
+
+        File cf = File.createTempFile("logtop", ".ckpt");
+        cf.deleteOnExit();
+        reordering.saveCheckpoint(cf);
+        ReorderingFileParser back = new ReorderingFileParser(thresholds, false);
+        back.setPercentiles(true);
+        back.loadCheckpoint(cf);
+
+        for (int ii = 0; ii < thresholds.length; ++ii) {
+            String expect = LogTop.summaryToString(singles[ii].getSummary(20), true);
+            assertEquals(expect, LogTop.summaryToString(reordering.getSummary(20, ii), true));
+            assertEquals(expect, LogTop.summaryToString(nonChrono.getSummary(20, ii), true));
+            assertEquals(expect, LogTop.summaryToString(back.getSummary(20, ii), true));
+            assertEquals(LogTop.summaryToString(withoutPercentiles(singles[ii].getSummary(20)), true),
+                         LogTop.summaryToString(mapped.getSummary(20, ii), true));
+        }
+        //  (and they really are different)
+        assertEquals(false, reordering.getSummary(20, 0).top.get(0).sessions ==
+                            reordering.getSummary(20, 2).top.get(0).sessions);
+        table.close();
+
+        //  Different thresholds should be refused.
+        try {
+            new ReorderingFileParser(new int[] { 60, 600 }, false).loadCheckpoint(cf);
+            fail("loaded a checkpoint with the wrong thresholds");
+        } catch (IOException expected) {
+        }
+        //  So should a different shard, or a shard of what was everybody.
+        ReorderingFileParser sharded = new ReorderingFileParser(thresholds, false);
+        sharded.setShard(0, 2);
+        try {
+            sharded.loadCheckpoint(cf);
+            fail("loaded a checkpoint of everybody into a shard");
+        } catch (IOException expected) {
+        }
+        sharded.processLine(lp, syntheticLine(1, when), ct);
+        sharded.saveCheckpoint(cf);
+        for (int[] kn : new int[][] { { 1, 2 }, { 0, 3 }, { 0, 1 } }) {
+            ReorderingFileParser other = new ReorderingFileParser(thresholds, false);
+            other.setShard(kn[0], kn[1]);
+            try {
+                other.loadCheckpoint(cf);
+                fail("loaded a checkpoint of shard 0/2 as " + kn[0] + "/" + kn[1]);
+            } catch (IOException expected) {
+            }
+        }
+        ReorderingFileParser same = new ReorderingFileParser(thresholds, false);
+        same.setShard(0, 2);
+        same.loadCheckpoint(cf);
+        assertEquals(LogTop.summaryToString(sharded.getSummary(20), true),
+                     LogTop.summaryToString(same.getSummary(20), true));
+    }
+
+    /**
+     * A sample should have exactly the same numbers for the users it keeps
+     * as looking at everybody does, and its estimates should be in the
+     * right ballpark.
+     */
+    @Test
+    public void testSampling() throws IOException {
+        LogFileParser everybody = new ReorderingFileParser(600, false);
+        LogFileParser[] samplers = { new ReorderingFileParser(600, false),
+                                     new NonChronologicalFileParser(600, false) };
+        for (LogFileParser sampler : samplers) sampler.setSampling(16);
+        LineParser lp = everybody.newLineParser();
+        LineParser[] samplerLPs = { samplers[0].newLineParser(), samplers[1].newLineParser() };
+        LineParser.Context ct = new LineParser.Context();
+        Random rand = new Random(666);
+        int when = 1471320000;
+        for (int ii = 0; ii < 200000; ++ii) {
+            when += rand.nextInt(3);
+            //  some users are a lot busier than others
+            String line = syntheticLine((int)(20000 * Math.pow(rand.nextDouble(), 2)), when);
+            everybody.processLine(lp, line, ct);
+            for (int jj = 0; jj < samplers.length; ++jj) {
+                samplers[jj].processLine(samplerLPs[jj], line, ct);
+            }
+        }
+
+        Summary all = everybody.getSummary(Integer.MAX_VALUE);
+        HashMap<String, Summary.User> byID = new HashMap<>();
+        long allPages = 0;
+        int inSample = 0;
+        int[] inShard = new int[4];
+        for (Summary.User user : all.top) {
+            byID.put(user.id, user);
+            allPages += user.pages;
+            if (LogFileParser.inSample(user.id, 0, user.id.length(), 16)) {
+                ++inSample;
+                ++inShard[(LogFileParser.uidHash(user.id, 0, user.id.length()) & 0x7fffffff) % 4];
+            }
+        }
+        //  Which users are sampled has nothing to do with which shard
+        //  they're in.
+        for (int count : inShard) assertTrue(Math.abs(count - inSample / 4) < inSample / 10);
+
+        for (LogFileParser sampler : samplers) {
+            Summary some = sampler.getSummary(Integer.MAX_VALUE);
+            assertEquals(inSample, some.uniqueUsers);
+            assertEquals(inSample, some.top.size());
+            for (Summary.User user : some.top) {
+                Summary.User expect = byID.get(user.id);
+                assertEquals(expect.pages, user.pages);
+                assertEquals(expect.sessions, user.sessions);
+                assertEquals(expect.longest, user.longest);
+                assertEquals(expect.shortest, user.shortest);
+            }
+            assertEquals(16, some.sample.oneIn);
+            assertTrue(Math.abs(some.sample.getEstimatedUsers() - all.uniqueUsers) <=
+                       some.sample.getUsersMargin());
+            assertTrue(Math.abs(some.sample.getEstimatedPages() - allPages) <=
+                       some.sample.getPagesMargin());
+        }
+    }
+
+    /**
+     * Reading just the part of a file between two times, with or without a
+     * TimeIndex, should get the same answer as looking at only those
+     * requests, even with a few of them out of order.
+     */
+    @Test
+    public void testTimeRange() throws IOException {
+        File log = new File(tempDir(), "log.txt");
+        log.deleteOnExit();
+        PrintStream out = new PrintStream(new FileOutputStream(log));
+        List<String> lines = new ArrayList<>();
+        List<Integer> times = new ArrayList<>();
+        Random rand = new Random(666);
+        int when = 1471320000;
+        for (int ii = 0; ii < 20000; ++ii) {
+            when += rand.nextInt(3);
+            //  now & then, one from a little while ago
+            int tw = (ii % 97 == 0) ? when - 30 : when;
+            String line = syntheticLine(rand.nextInt(50), tw);
+            out.println(line);
+            lines.add(line);
+            times.add(tw);
+            if (ii % 1000 == 0) out.println("not a request");
+        }
+        out.close();
+        int sinceS = times.get(5000);
+        int untilS = times.get(12000);
+
+        LogFileParser expect = new ReorderingFileParser(600, false);
+        LineParser lp = expect.newLineParser();
+        LineParser.Context ct = new LineParser.Context();
+        for (int ii = 0; ii < lines.size(); ++ii) {
+            if ((times.get(ii) >= sinceS) && (times.get(ii) <= untilS)) {
+                expect.processLine(lp, lines.get(ii), ct);
+            }
+        }
+        String expected = LogTop.summaryToString(expect.getSummary(5), true);
+
+        for (boolean indexed : new boolean[] { false, true }) {
+            if (indexed) {
+                TimeIndex index = TimeIndex.build(log, TemplateLineFormat.DEFAULT, 50);
+                assertEquals(401, index.getBlocks());
+                index.write(log);
+                TimeIndex.indexFile(log).deleteOnExit();
+                long[] range = TimeIndex.read(log).range(sinceS, untilS);
+                assertTrue((range[0] > 0) && (range[1] < log.length()));
+            }
+            for (boolean raw : new boolean[] { false, true }) {
+                for (LogFileParser lfp : new LogFileParser[] {
+                        new ReorderingFileParser(600, false),
+                        new NonChronologicalFileParser(600, false) }) {
+                    lfp.setRawIngestion(raw);
+                    lfp.setTimeRange(sinceS, untilS);
+                    //  the directory, so that the index file is in it
+                    lfp.processEverything(Arrays.asList(log.getParent()));
+                    assertEquals(expected, LogTop.summaryToString(lfp.getSummary(5), true));
+                    //  we didn't read the whole thing
+                    assertTrue(lfp.getLinesRead() < lines.size());
+                }
+            }
+        }
+
+        //  An index we can't read is the same as none; and without a time
+        //  range, we don't even look.
+        File indexFile = TimeIndex.indexFile(log);
+        byte[] good = Files.readAllBytes(indexFile.toPath());
+        for (byte[] bad : new byte[][] { "garbage".getBytes("UTF-8"),
+                                         Arrays.copyOf(good, good.length / 2) }) {
+            Files.write(indexFile.toPath(), bad);
+            LogFileParser lfp = new ReorderingFileParser(600, false);
+            lfp.processEverything(Arrays.asList(log.getPath()));
+            assertEquals(lines.size() + 20, lfp.getLinesRead());
+            assertEquals(0, lfp.getDiagnostics().getCount(Diagnostics.INFO));
+            for (LogFileParser tlfp : new LogFileParser[] {
+                    new ReorderingFileParser(600, false),
+                    new NonChronologicalFileParser(600, false) }) {
+                //  not verbose, but we still hear about it
+                ByteArrayOutputStream bout = new ByteArrayOutputStream();
+                tlfp.diagnostics = new Diagnostics(new PrintStream(bout, true), false);
+                tlfp.setTimeRange(sinceS, untilS);
+                tlfp.processEverything(Arrays.asList(log.getPath()));
+                assertEquals(expected, LogTop.summaryToString(tlfp.getSummary(5), true));
+                assertEquals(1, tlfp.getDiagnostics().getCount(Diagnostics.INFO));
+                assertTrue(bout.toString().startsWith("ignoring time index: " + indexFile + " is"));
+            }
+        }
+        //  and -index makes a new one
+        LogFileParser lfp = new ReorderingFileParser(600, false);
+        lfp.diagnostics = new Diagnostics(new PrintStream(new ByteArrayOutputStream()), false);
+        lfp.setTimeRange(sinceS, untilS);
+        lfp.setTimeIndexing(true);
+        lfp.processEverything(Arrays.asList(log.getPath()));
+        assertEquals(expected, LogTop.summaryToString(lfp.getSummary(5), true));
+        assertTrue(TimeIndex.read(log) != null);
+
+        //  Once the log changes, the index doesn't count.
+        out = new PrintStream(new FileOutputStream(log, true));
+        out.println(syntheticLine(1, when));
+        out.close();
+        assertEquals(null, TimeIndex.read(log));
+    }
+
+    /**
+     * Grouping by tenant should get each tenant the same summary as reading
+     * only that tenant's lines, with users who show up under more than one
+     * tenant counted separately in each.
+     */
+    @Test
+    public void testGroupByTenant() throws IOException {
+        String[] tenants = { "ecf8427e/b443dc7f", "ecf8427e/0000beef", "abc/def" };
+        LogFileParser[] grouped = { new ReorderingFileParser(new int[] { 300, 600 }, false),
+                                    new NonChronologicalFileParser(new int[] { 300, 600 }, false) };
+        LogFileParser[] singles = new LogFileParser[tenants.length];
+        for (int ii = 0; ii < tenants.length; ++ii) {
+            singles[ii] = new ReorderingFileParser(new int[] { 300, 600 }, false);
+        }
+        LineParser[] lps = new LineParser[grouped.length];
+        for (int ii = 0; ii < grouped.length; ++ii) {
+            grouped[ii].setGroupByTenant(true);
+            grouped[ii].setPercentiles(true);
+            lps[ii] = grouped[ii].newLineParser();
+        }
+        for (LogFileParser single : singles) single.setPercentiles(true);
+        LineParser lp = singles[0].newLineParser();
+        LineParser.Context ct = new LineParser.Context();
+        Random rand = new Random(666);
+        int when = 1471320000;
+        for (int ii = 0; ii < 50000; ++ii) {
+            when += rand.nextInt(10);
+            //  the first tenant is the busy one
+            int tenant = Math.max(0, rand.nextInt(tenants.length + 2) - 2);
+            String line = syntheticLine(tenants[tenant], rand.nextInt(300), when);
+            for (int jj = 0; jj < grouped.length; ++jj) {
+                assertTrue(grouped[jj].processLine(lps[jj], line, ct));
+            }
+            singles[tenant].processLine(lp, line, ct);
+        }
+
+        List<String> sorted = new ArrayList<>(Arrays.asList(tenants));
+        Collections.sort(sorted);
+        for (LogFileParser lfp : grouped) {
+            assertEquals(sorted, lfp.getTenants());
+            assertEquals(0, lfp.getSummary(5).uniqueUsers);
+            assertEquals(50000, lfp.getLinesRead());
+            for (int ii = 0; ii < tenants.length; ++ii) {
+                LogFileParser tenant = lfp.getTenant(tenants[ii]);
+                assertEquals(300, tenant.getSummary(5).uniqueUsers);
+                for (int which = 0; which < 2; ++which) {
+                    assertEquals(LogTop.summaryToString(singles[ii].getSummary(5, which), true),
+                                 LogTop.summaryToString(tenant.getSummary(5, which), true));
+                }
+            }
+            assertEquals(null, lfp.getTenant("nobody"));
+            assertTrue(LogTop.summariesToString(lfp, 5, true)
+                    .startsWith("Tenant: /abc/def\nSession threshold: 300 s\n"));
+        }
+
+        //  and checkpoints don't know what to do with them
+        try {
+            ((ReorderingFileParser)grouped[0]).saveCheckpoint(new File(tempDir(), "checkpoint"));
+            fail("saved tenants");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private static Summary withoutPercentiles(Summary summary) {
+        summary.sessionLengths = null;
+        summary.sessionPages = null;
+        for (Summary.User user : summary.top) {
+            user.lengths = null;
+            user.pagesPerSession = null;
+        }
+        return summary;
+    }
+
+    /**
+     * Returns a log line for the given user at the given time.  Users' IDs
+     * are different lengths, so that MappedUserTable has to skip to the next
+     * chunk now and then.
+     */
+    private static String syntheticLine(int uid, int when) {
+        return syntheticLine("ecf8427e/b443dc7f", uid, when);
+    }
+
+    private static String syntheticLine(String tenant, int uid, int when) {
+        String id = Integer.toHexString((uid * 0x9e3779b1) | 0x10000000)
+                .substring(0, 4 + uid % 5);
+        return "10.10.6.90 - - " + TIME.format(Instant.ofEpochSecond(when)) +
+                " \"GET /" + tenant + "/" + id + "/174ef735/1dd4d421 " +
+                "HTTP/1.0\" 200 - \"-\" \"-\" 7 \"10.10.1.231, 10.10.6.90\" -";
+    }
+
+    private static final DateTimeFormatter TIME = DateTimeFormatter
+            .ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US)
+            .withZone(ZoneOffset.ofHours(-5));
+
+    private static File tempDir() throws IOException {
+        File rv = File.createTempFile("logtop", ".users");
+        rv.delete();
+        rv.mkdir();
+        rv.deleteOnExit();
+        return rv;
+    }
+
+    @Test
+    public void testShards() throws IOException {
+        testShards(new ParserFactory() {
+            @Override
+            public LogFileParser newParser() {
+                return new ReorderingFileParser(600, false);
+            }
+        });
+        testShards(new ParserFactory() {
+            @Override
+            public LogFileParser newParser() {
+                return new NonChronologicalFileParser(600, false);
+            }
+        });
+    }
+
+    /**
+     * Runs each of several shards through a SummaryFile, merges them, and
+     * checks that we got the same thing as without sharding.
+     */
+    private void testShards(ParserFactory pf) throws IOException {
+        List<String> files = Arrays.asList("src/test/resources/log4.txt",
+                                           "src/test/resources/log1.txt",
+                                           "src/test/resources/dir1");
+        for (int shards = 1; shards <= 4; ++shards) {
+            ArrayList<Summary> parts = new ArrayList<>();
+            int partUsers = 0;
+            for (int shard = 0; shard < shards; ++shard) {
+                LogFileParser fp = pf.newParser();
+                fp.setShard(shard, shards);
+                fp.processEverything(files);
+                File tf = File.createTempFile("logtop", ".part");
+                tf.deleteOnExit();
+                PrintStream out = new PrintStream(new FileOutputStream(tf));
+                SummaryFile.write(fp.getSummary(5), out);
+                out.close();
+                Summary part = SummaryFile.read(tf);
+                partUsers += part.top.size();
+                parts.add(part);
+            }
+            assertEquals(3, partUsers);
+            check(Summary.merge(parts, 5), 3,
+                    new Summary.User("489f3e87", 11, 2,  970,    1),
+                    new Summary.User("71f28176",  6, 1, 1091, 1091),
+                    new Summary.User("b3a60c78",  2, 1,    1,    1));
+            check(Summary.merge(parts, 1), 3,
+                    new Summary.User("489f3e87", 11, 2,  970,    1));
+        }
+    }
+
+    @Test
+    public void testCheckpoint() throws IOException {
+        File cf = File.createTempFile("logtop", ".ckpt");
+        cf.deleteOnExit();
+
+        ReorderingFileParser fp = new ReorderingFileParser(600, false);
+        fp.processEverything(Arrays.asList("src/test/resources/dir1",
+                                           "src/test/resources/log1.txt"));
+        fp.saveCheckpoint(cf);
+
+        //  Pick up where that left off, passing all the files again; we should
+        //  only process log4.txt, and the sessions which span the files
+        //  should come out the same as if we'd done it all in one go.
+        fp = new ReorderingFileParser(600, false);
+        fp.loadCheckpoint(cf);
+        fp.processEverything(Arrays.asList("src/test/resources/log4.txt",
+                                           "src/test/resources/log1.txt",
+                                           "src/test/resources/dir1"));
+        check(fp.getSummary(5), 3,
+                new Summary.User("489f3e87", 11, 2,  970,    1),
+                new Summary.User("71f28176",  6, 1, 1091, 1091),
+                new Summary.User("b3a60c78",  2, 1,    1,    1));
+
+        //  A different threshold should be refused.
+        fp = new ReorderingFileParser(300, false);
+        try {
+            fp.loadCheckpoint(cf);
+            fail("loaded a checkpoint with the wrong threshold");
+        } catch (IOException expected) {
+        }
+    }
+
+    /**
+     * Both parsers should come up with the same histograms, whatever order
+     * they're given the files in, and ReorderingFileParser's should survive
+     * a checkpoint.
+     */
+    @Test
+    public void testPercentiles() throws IOException {
+        List<List<String>> orders = Arrays.asList(
+                Arrays.asList("src/test/resources/log1.txt",
+                              "src/test/resources/dir1",
+                              "src/test/resources/log4.txt"),
+                Arrays.asList("src/test/resources/log4.txt",
+                              "src/test/resources/dir1",
+                              "src/test/resources/log1.txt"));
+        for (List<String> files : orders) {
+            for (LogFileParser fp : new LogFileParser[] {
+                    new ReorderingFileParser(600, false),
+                    new NonChronologicalFileParser(600, false) }) {
+                fp.setPercentiles(true);
+                fp.processEverything(files);
+                checkPercentiles(fp.getSummary(5));
+            }
+        }
+
+        File cf = File.createTempFile("logtop", ".ckpt");
+        cf.deleteOnExit();
+        ReorderingFileParser fp = new ReorderingFileParser(600, false);
+        fp.setPercentiles(true);
+        fp.processEverything(Arrays.asList("src/test/resources/dir1",
+                                           "src/test/resources/log1.txt"));
+        fp.saveCheckpoint(cf);
+        fp = new ReorderingFileParser(600, false);
+        fp.setPercentiles(true);
+        fp.loadCheckpoint(cf);
+        fp.processEverything(Arrays.asList("src/test/resources/log4.txt"));
+        checkPercentiles(fp.getSummary(5));
+
+        //  and without percentiles, there aren't any
+        fp = new ReorderingFileParser(600, false);
+        fp.loadCheckpoint(cf);
+        Summary summary = fp.getSummary(5);
+        assertEquals(null, summary.sessionLengths);
+        assertEquals(null, summary.top.get(0).lengths);
+    }
+
+    /**
+     * Reading the files again for the top users' sketches should come up
+     * with the same percentiles as keeping everybody's, for every threshold,
+     * whether or not the last reread had everybody we ask for, and after
+     * more files come in.
+     */
+    @Test
+    public void testRereading() throws IOException {
+        File dir = tempDir();
+        File[] logs = new File[3];
+        Random rand = new Random(666);
+        int when = 1471320000;
+        for (int ff = 0; ff < logs.length; ++ff) {
+            logs[ff] = new File(dir, "log" + ff + ".txt");
+            logs[ff].deleteOnExit();
+            PrintStream out = new PrintStream(new FileOutputStream(logs[ff]));
+            for (int ii = 0; ii < 10000; ++ii) {
+                when += rand.nextInt(10);
+                out.println(syntheticLine(rand.nextInt(200), when));
+            }
+            out.close();
+        }
+
+        int[] thresholds = { 60, 600, 1800 };
+        ReorderingFileParser keeping = new ReorderingFileParser(thresholds, false);
+        keeping.setPercentiles(true);
+        ReorderingFileParser rereading = new ReorderingFileParser(thresholds, false);
+        rereading.setPercentiles(true);
+        rereading.setRereading(true);
+        for (int upTo : new int[] { 2, 3 }) {
+            List<String> files = new ArrayList<>();
+            for (int ff = 0; ff < upTo; ++ff) files.add(logs[ff].getPath());
+            keeping.processEverything(files);
+            rereading.processEverything(files);
+            for (int top : new int[] { 5, 20, 10 }) {
+                for (int ii = 0; ii < thresholds.length; ++ii) {
+                    Summary expect = keeping.getSummary(top, ii);
+                    assertTrue(expect.top.get(0).lengths.getCount() > 1);
+                    assertEquals(LogTop.summaryToString(expect, true),
+                                 LogTop.summaryToString(rereading.getSummary(top, ii), true));
+                }
+            }
+        }
+
+        //  What it couldn't read again, it won't take.
+        File cf = File.createTempFile("logtop", ".ckpt");
+        cf.deleteOnExit();
+        keeping.saveCheckpoint(cf);
+        try {
+            rereading.saveCheckpoint(cf);
+            fail("saved a checkpoint without the sketches");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            rereading.loadCheckpoint(cf);
+            fail("loaded a checkpoint it couldn't reread");
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            rereading.processLine(rereading.newLineParser(), syntheticLine(1, when),
+                                  new LineParser.Context());
+            fail("took a line it couldn't reread");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    private void checkPercentiles(Summary summary) {
+        //  Sessions are 1s/1 page and 970s/10 pages for 489f3e87, 1091s/6
+        //  pages for 71f28176, and 1s/2 pages for b3a60c78.
+        checkPercentiles(summary.sessionLengths, 4, 1, 1091, 1091);
+        checkPercentiles(summary.sessionPages, 4, 2, 10, 10);
+        Summary.User user = summary.top.get(0);
+        assertEquals("489f3e87", user.id);
+        checkPercentiles(user.lengths, 2, 1, 970, 970);
+        checkPercentiles(user.pagesPerSession, 2, 1, 10, 10);
+        user = summary.top.get(1);
+        assertEquals("71f28176", user.id);
+        checkPercentiles(user.lengths, 1, 1091, 1091, 1091);
+        checkPercentiles(user.pagesPerSession, 1, 6, 6, 6);
+    }
+
+    private void checkPercentiles(Histogram hh, long count, int p50, int p90, int p99) {
+        assertEquals(count, hh.getCount());
+        assertEquals(p50, hh.getValueAtPercentile(50));
+        assertEquals(p90, hh.getValueAtPercentile(90));
+        assertEquals(p99, hh.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testNonChronologicalQueries() throws IOException {
+        //  Backwards, so that some sessions have their start times moved
+        NonChronologicalFileParser fp = new NonChronologicalFileParser(600, false);
+        fp.setSessionIndex(true);
+        fp.processEverything(Arrays.asList("src/test/resources/log4.txt",
+                                           "src/test/resources/dir1",
+                                           "src/test/resources/log1.txt"));
+
+        List<NonChronologicalFileParser.SessionInfo> sessions =
+                fp.getSessions("489f3e87");
+        assertEquals(2, sessions.size());
+        assertEquals(1471323569, sessions.get(0).start);
+        assertEquals(1471323569, sessions.get(0).end);
+        assertEquals(1471324220, sessions.get(1).start);
+        assertEquals(1471325190, sessions.get(1).end);
+        sessions = fp.getSessions("71f28176");
+        assertEquals(1, sessions.size());
+        assertEquals(1471323560, sessions.get(0).start);
+        assertEquals(1471324651, sessions.get(0).end);
+        assertEquals(0, fp.getSessions("nobody").size());
+
+        assertEquals(Arrays.asList("489f3e87", "71f28176", "b3a60c78"),
+                fp.getUsersActiveBetween(1471323500, 1471323600));
+        assertEquals(Arrays.asList("71f28176", "b3a60c78"),
+                fp.getUsersActiveBetween(1471323561, 1471323561));
+        //  between 489f3e87's sessions; 71f28176's started way before this
+        assertEquals(Arrays.asList("71f28176"),
+                fp.getUsersActiveBetween(1471323570, 1471324219));
+        assertEquals(Arrays.asList("489f3e87"),
+                fp.getUsersActiveBetween(1471325000, 1471326000));
+        assertEquals(0, fp.getUsersActiveBetween(1471325191, 1471399999).size());
+
+        //  Without the index, you can't ask.
+        fp = new NonChronologicalFileParser(600, false);
+        fp.processEverything(Arrays.asList("src/test/resources/log1.txt"));
+        try {
+            fp.getUsersActiveBetween(1471323500, 1471323600);
+            fail("no index");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    /**
+     * The session index should agree with looking at every session, with
+     * requests out of order (so that sessions get their starts moved and
+     * get glued together) and one user who never goes away.
+     */
+    @Test
+    public void testSessionIndex() {
+        NonChronologicalFileParser fp = new NonChronologicalFileParser(600, false);
+        fp.setSessionIndex(true);
+        LineParser lp = fp.newLineParser();
+        LineParser.Context ct = new LineParser.Context();
+        Random rand = new Random(666);
+        int start = 1471320000;
+        for (int ii = 0; ii < 20000; ++ii) {
+            fp.processLine(lp, syntheticLine(rand.nextInt(300), start + rand.nextInt(100000)), ct);
+            if (ii % 20 == 0) fp.processLine(lp, syntheticLine(300, start + ii * 5), ct);
+        }
+        List<String> ids = new ArrayList<>();
+        for (int uid = 0; uid <= 300; ++uid) {
+            assertTrue(lp.parseLine(syntheticLine(uid, start), ct));
+            ids.add(ct.userID);
+        }
+        for (int trial = 0; trial < 200; ++trial) {
+            int fromS = start - 1000 + rand.nextInt(102000);
+            int toS = fromS + rand.nextInt(2000);
+            List<String> expect = new ArrayList<>();
+            for (String id : ids) {
+                for (NonChronologicalFileParser.SessionInfo si : fp.getSessions(id)) {
+                    if ((si.start <= toS) && (si.end >= fromS)) {
+                        expect.add(id);
+                        break;
+                    }
+                }
+            }
+            Collections.sort(expect);
+            assertEquals(expect, fp.getUsersActiveBetween(fromS, toS));
+        }
+    }
+
     private void testCommonStuff(ParserFactory pf) throws IOException {
 
         //  Call processEverything() on a single file, check results
@@ -124,4 +865,192 @@ public class LogFileParserTest {
         assertEquals(msg, expected.longest, got.longest);
         assertEquals(msg, expected.shortest, got.shortest);
     }
+
+    /**
+     * topKeys() picks by heap for a few out of many, and by sorting
+     * otherwise; both had better be the same as sorting.
+     */
+    @Test
+    public void testTopKeys() {
+        Random rand = new Random(666);
+        for (int size : new int[] { 0, 1, 7, 100, 5000 }) {
+            long[] keys = new long[size];
+            for (int ii = 0; ii < size; ++ii) {
+                //  lots of ties in pages, like real logs
+                keys[ii] = LogFileParser.byPagesKey(rand.nextInt(20), ii);
+            }
+            long[] sorted = keys.clone();
+            Arrays.sort(sorted);
+            for (int top : new int[] { 0, 1, 2, 5, 99, 600, size, size + 1 }) {
+                long[] got = LogFileParser.topKeys(keys.clone(), top);
+                assertEquals(Math.min(top, size), got.length);
+                for (int ii = 0; ii < got.length; ++ii) assertEquals(sorted[ii], got[ii]);
+            }
+        }
+    }
+
+    /**
+     * topUsers() should come up with the same order as sorting everybody by
+     * pages and then ID, while only asking for the IDs it needs to.
+     */
+    @Test
+    public void testTopUsers() {
+        Random rand = new Random(667);
+        final String[] ids = new String[3000];
+        final int[] pages = new int[ids.length];
+        for (int ii = 0; ii < ids.length; ++ii) {
+            ids[ii] = Integer.toHexString(rand.nextInt());
+            pages[ii] = rand.nextInt(30);
+        }
+        final int[] lookups = new int[1];
+        LogFileParser.UserIDs userIDs = new LogFileParser.UserIDs() {
+            @Override
+            public String get(int index) {
+                ++lookups[0];
+                return ids[index];
+            }
+        };
+        List<Integer> everybody = new ArrayList<>();
+        for (int ii = 0; ii < ids.length; ++ii) everybody.add(ii);
+        Collections.sort(everybody, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer i1, Integer i2) {
+                if (pages[i1] != pages[i2]) return pages[i2] - pages[i1];
+                return ids[i1].compareTo(ids[i2]);
+            }
+        });
+        long[] keys = new long[ids.length];
+        for (int top : new int[] { 1, 10, 250, ids.length }) {
+            for (int ii = 0; ii < keys.length; ++ii) keys[ii] = LogFileParser.byPagesKey(pages[ii], ii);
+            int[] got = LogFileParser.topUsers(keys, top, userIDs);
+            assertEquals(top, got.length);
+            for (int ii = 0; ii < top; ++ii) assertEquals((int)everybody.get(ii), got[ii]);
+        }
+
+        //  With no ties, the only ID it needs is the last one's (which it
+        //  can't know isn't tied until it looks).
+        for (int ii = 0; ii < keys.length; ++ii) keys[ii] = LogFileParser.byPagesKey(ii, ii);
+        lookups[0] = 0;
+        int[] got = LogFileParser.topUsers(keys, 1000, userIDs);
+        assertEquals(ids.length - 1, got[0]);
+        assertEquals(1, lookups[0]);
+    }
+
+    /**
+     * A request which is too far out of order for one threshold shouldn't
+     * take the others down with it, unless it's too far out of order for all
+     * of them.
+     */
+    @Test
+    public void testThresholdFailure() throws IOException {
+        int t0 = 1471320000;
+        String[] lines = {
+                syntheticLine(1, t0), syntheticLine(1, t0 + 100),
+                syntheticLine(2, t0 + 10),
+                //  before user 1's current session starts, with 60 s; not
+                //  with 3600
+                syntheticLine(1, t0 + 50),
+                syntheticLine(1, t0 + 200), syntheticLine(2, t0 + 300) };
+        ReorderingFileParser both = new ReorderingFileParser(new int[] { 60, 3600 }, false);
+        ReorderingFileParser big = new ReorderingFileParser(3600, false);
+        LineParser lp = both.newLineParser();
+        LineParser.Context ct = new LineParser.Context();
+        for (String line : lines) {
+            both.processLine(lp, line, ct);
+            big.processLine(lp, line, ct);
+        }
+        assertTrue(both.getThresholdFailure(0).startsWith("gackk"));
+        assertEquals(null, both.getThresholdFailure(1));
+        assertEquals(1, both.getDiagnostics().getCount(Diagnostics.DROPPED_REQUEST));
+        assertEquals(LogTop.summaryToString(big.getSummary(5), false),
+                     LogTop.summaryToString(both.getSummary(5, 1), false));
+        String out = LogTop.summariesToString(both, 5, false);
+        assertTrue(out.startsWith("Session threshold: 60 s\nGave up on this one: gackk"));
+        assertTrue(out.contains("Session threshold: 3600 s\n" +
+                LogTop.summaryToString(big.getSummary(5), false)));
+        try {
+            both.getSummary(5, 0);
+            fail("summarized a threshold we gave up on");
+        } catch (IllegalStateException ise) {
+            //  good
+        }
+        try {
+            File cf = File.createTempFile("logtop", ".ckpt");
+            cf.deleteOnExit();
+            both.saveCheckpoint(cf);
+            fail("saved a threshold we gave up on");
+        } catch (IllegalStateException ise) {
+            //  good
+        }
+
+        //  too far out of order for every threshold (or the only one) is
+        //  still fatal
+        for (int[] thresholds : new int[][] { { 60 }, { 60, 90 } }) {
+            ReorderingFileParser fp = new ReorderingFileParser(thresholds, false);
+            try {
+                for (String line : lines) fp.processLine(lp, line, ct);
+                fail("didn't give up on " + Arrays.toString(thresholds));
+            } catch (RuntimeException re) {
+                assertTrue(re.getMessage().startsWith("gackk"));
+            }
+        }
+    }
+
+    /**
+     * A request which makes the parser croak should leave the same thing
+     * behind whichever UserTable it's using; and a MappedUserTable can't do
+     * per-user percentiles, so it shouldn't let you try.
+     */
+    @Test
+    public void testMappedTableAfterCroaking() throws IOException {
+        ReorderingFileParser heap = new ReorderingFileParser(60, false);
+        ReorderingFileParser mapped = new ReorderingFileParser(60, false);
+        MappedUserTable table = new MappedUserTable(tempDir(), 1, 12, 4);
+        mapped.setUserTable(table);
+        int t0 = 1471320000;
+        String[] lines = {
+                syntheticLine(1, t0), syntheticLine(1, t0 + 100),
+                syntheticLine(1, t0 + 50),  //  croaks, after counting the page
+                syntheticLine(1, t0 + 200), syntheticLine(2, t0 + 300) };
+        LineParser lp = heap.newLineParser();
+        LineParser.Context ct = new LineParser.Context();
+        for (ReorderingFileParser fp : new ReorderingFileParser[] { heap, mapped }) {
+            int croaked = 0;
+            for (String line : lines) {
+                try {
+                    fp.processLine(lp, line, ct);
+                } catch (RuntimeException re) {
+                    ++croaked;
+                }
+            }
+            assertEquals(1, croaked);
+        }
+        assertEquals(LogTop.summaryToString(heap.getSummary(5), true),
+                     LogTop.summaryToString(mapped.getSummary(5), true));
+        assertEquals(4, mapped.getSummary(5).top.get(0).pages);
+
+        //  reading a user clears out whatever sketch was in the User before
+        ReorderingFileParser.User user = new ReorderingFileParser.User("x");
+        user.sketch = new SessionSketch();
+        table.snapshot().read(0, user, true);
+        assertEquals(null, user.sketch);
+
+        try {
+            mapped.setPercentiles(true);
+            fail("did percentiles with a MappedUserTable");
+        } catch (IllegalStateException ise) {
+            //  good
+        }
+        ReorderingFileParser withPercentiles = new ReorderingFileParser(60, false);
+        withPercentiles.setPercentiles(true);
+        MappedUserTable table2 = new MappedUserTable(tempDir(), 1, 12, 4);
+        try {
+            withPercentiles.setUserTable(table2);
+            fail("took a MappedUserTable with percentiles");
+        } catch (IllegalStateException ise) {
+            //  good
+        }
+        table.close();
+        table2.close();
+    }
 }
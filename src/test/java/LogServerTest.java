@@ -0,0 +1,155 @@
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class LogServerTest {
+
+    @Test
+    public void testServer() throws Exception {
+        final LogServer server = new LogServer(
+                new ReorderingFileParser(600, false), 5, false, false);
+        InetSocketAddress address = server.bind(new InetSocketAddress("localhost", 0));
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+            }
+        });
+        serverThread.start();
+        try {
+            //  Nothing yet
+            Socket query = new Socket(address.getHostName(), address.getPort());
+            OutputStream queryOut = query.getOutputStream();
+            BufferedReader queryIn = new BufferedReader(new InputStreamReader(
+                    query.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals(expected(), ask(queryOut, queryIn, "top\n"));
+
+            //  Send the same lines as log1.txt & log4.txt on another
+            //  connection, and then ask on that connection, so that we know
+            //  they've all been read by the time we get the answer.
+            Socket feed = new Socket(address.getHostName(), address.getPort());
+            OutputStream feedOut = feed.getOutputStream();
+            BufferedReader feedIn = new BufferedReader(new InputStreamReader(
+                    feed.getInputStream(), StandardCharsets.UTF_8));
+            send(feedOut, "src/test/resources/log1.txt");
+            send(feedOut, "src/test/resources/log4.txt");
+            String expect = expected("src/test/resources/log1.txt",
+                                     "src/test/resources/log4.txt");
+            assertEquals(expect, ask(feedOut, feedIn, "top 5\n"));
+
+            //  The first connection should see the same thing now.
+            assertEquals(expect, ask(queryOut, queryIn, "top 5\n"));
+
+            //  quit should close the connection.
+            queryOut.write("quit\n".getBytes(StandardCharsets.UTF_8));
+            queryOut.flush();
+            assertEquals(null, queryIn.readLine());
+            query.close();
+            feed.close();
+        } finally {
+            server.close();
+            serverThread.join();
+        }
+    }
+
+    /**
+     * A client who sends a line way too long to be a log line (or never sends
+     * a newline at all) should just get that line dropped, and not take the
+     * server down with it.
+     */
+    @Test
+    public void testLongLine() throws Exception {
+        LogFileParser parser = new ReorderingFileParser(600, false);
+        final LogServer server = new LogServer(parser, 5, false, false);
+        InetSocketAddress address = server.bind(new InetSocketAddress("localhost", 0));
+        Thread serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.serve();
+                } catch (IOException ioe) {
+                    throw new RuntimeException(ioe);
+                }
+            }
+        });
+        serverThread.start();
+        try {
+            Socket feed = new Socket(address.getHostName(), address.getPort());
+            OutputStream feedOut = feed.getOutputStream();
+            BufferedReader feedIn = new BufferedReader(new InputStreamReader(
+                    feed.getInputStream(), StandardCharsets.UTF_8));
+            byte[] junk = new byte[64 * 1024];
+            Arrays.fill(junk, (byte)'x');
+            for (int ii = 0; ii < 50; ++ii) feedOut.write(junk);
+            feedOut.write('\n');
+            send(feedOut, "src/test/resources/log1.txt");
+            assertEquals(expected("src/test/resources/log1.txt"),
+                         ask(feedOut, feedIn, "top 5\n"));
+            assertEquals(1, parser.getDiagnostics().getCount(Diagnostics.DROPPED_REQUEST));
+
+            //  and one which never ends
+            for (int ii = 0; ii < 50; ++ii) feedOut.write(junk);
+            feedOut.flush();
+            feed.close();
+            Socket query = new Socket(address.getHostName(), address.getPort());
+            BufferedReader queryIn = new BufferedReader(new InputStreamReader(
+                    query.getInputStream(), StandardCharsets.UTF_8));
+            assertEquals(expected("src/test/resources/log1.txt"),
+                         ask(query.getOutputStream(), queryIn, "top 5\n"));
+            query.close();
+        } finally {
+            server.close();
+            serverThread.join();
+        }
+    }
+
+    /**
+     * Returns what summaryToString() says about a parser fed the given files,
+     * with the blank line the server puts after it.
+     */
+    private String expected(String... files) throws IOException {
+        LogFileParser lfp = new ReorderingFileParser(600, false);
+        lfp.processEverything(Arrays.asList(files));
+        return LogTop.summaryToString(lfp.getSummary(5), false) + "\n";
+    }
+
+    private void send(OutputStream out, String file) throws IOException {
+        BufferedReader in = new BufferedReader(new FileReader(file));
+        String line;
+        while ((line = in.readLine()) != null) {
+            out.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        in.close();
+        out.flush();
+    }
+
+    /**
+     * Sends the given query, returns everything up to & including the blank
+     * line which ends the response.
+     */
+    private String ask(OutputStream out, BufferedReader in, String query) throws IOException {
+        out.write(query.getBytes(StandardCharsets.UTF_8));
+        out.flush();
+        StringBuilder rv = new StringBuilder();
+        String line;
+        while ((line = in.readLine()) != null) {
+            rv.append(line).append('\n');
+            if (line.isEmpty()) break;
+        }
+        return rv.toString();
+    }
+}
@@ -0,0 +1,129 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class LogSubscriberTest {
+
+    /**
+     * Publishing log1.txt and log4.txt in chunks which don't line up with
+     * lines should get the same answer as reading the files, and a summary
+     * taken in the middle shouldn't bother anybody.
+     */
+    @Test
+    public void testPublisher() throws Exception {
+        byte[] bytes = concat("src/test/resources/log1.txt",
+                              "src/test/resources/log4.txt");
+        LogFileParser lfp = new ReorderingFileParser(600, false);
+        LogSubscriber subscriber = new LogSubscriber(lfp, "test", 2);
+        //  a tiny buffer, so that it has to wait for us
+        SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>(
+                ForkJoinPool.commonPool(), 2);
+        publisher.subscribe(subscriber);
+        for (int off = 0; off < bytes.length; off += 7) {
+            publisher.submit(ByteBuffer.wrap(bytes, off, Math.min(7, bytes.length - off)));
+            if (off == 700) lfp.getSummary(5);
+        }
+        publisher.close();
+
+        int lines = subscriber.getCompletion().get();
+        assertEquals(expected("src/test/resources/log1.txt",
+                              "src/test/resources/log4.txt"),
+                LogTop.summaryToString(lfp.getSummary(5), false));
+        assertEquals(lfp.getLinesRead(), lines);
+    }
+
+    /**
+     * We should never have more than prefetch chunks asked for and not
+     * delivered, and should keep asking as they come in.
+     */
+    @Test
+    public void testBackpressure() throws Exception {
+        byte[] bytes = concat("src/test/resources/log1.txt");
+        LogFileParser lfp = new ReorderingFileParser(600, false);
+        final LogSubscriber subscriber = new LogSubscriber(lfp, "test", 4);
+        final long[] requested = { 0 };
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                assertTrue(n > 0);
+                requested[0] += n;
+            }
+
+            @Override
+            public void cancel() {
+                fail("cancelled");
+            }
+        });
+        assertEquals(4, requested[0]);
+        int delivered = 0;
+        for (int off = 0; off < bytes.length; off += 10) {
+            //  the publisher's side of the deal
+            assertTrue(requested[0] > delivered);
+            subscriber.onNext(ByteBuffer.wrap(bytes, off, Math.min(10, bytes.length - off)));
+            ++delivered;
+            assertTrue(requested[0] - delivered <= 4);
+        }
+        subscriber.onComplete();
+        assertEquals(expected("src/test/resources/log1.txt"),
+                LogTop.summaryToString(lfp.getSummary(5), false));
+
+        //  A second subscription gets cancelled.
+        final boolean[] cancelled = { false };
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                fail("requested from a second subscription");
+            }
+
+            @Override
+            public void cancel() {
+                cancelled[0] = true;
+            }
+        });
+        assertTrue(cancelled[0]);
+    }
+
+    @Test
+    public void testError() throws Exception {
+        LogSubscriber subscriber = new LogSubscriber(
+                new ReorderingFileParser(600, false), "test");
+        SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>();
+        publisher.subscribe(subscriber);
+        publisher.closeExceptionally(new IOException("oops"));
+        try {
+            subscriber.getCompletion().get();
+            fail("completed normally");
+        } catch (ExecutionException expected) {
+            assertEquals("oops", expected.getCause().getMessage());
+        }
+    }
+
+    private static byte[] concat(String... files) throws IOException {
+        byte[] rv = new byte[0];
+        for (String file : files) {
+            byte[] tb = Files.readAllBytes(Paths.get(file));
+            int len = rv.length;
+            rv = Arrays.copyOf(rv, len + tb.length);
+            System.arraycopy(tb, 0, rv, len, tb.length);
+        }
+        return rv;
+    }
+
+    private static String expected(String... files) throws IOException {
+        LogFileParser lfp = new ReorderingFileParser(600, false);
+        lfp.processEverything(Arrays.asList(files));
+        return LogTop.summaryToString(lfp.getSummary(5), false);
+    }
+}
@@ -1,6 +1,11 @@
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 public class LogTopTest {
     @Test
@@ -24,4 +29,58 @@ public class LogTopTest {
                      "leroy           12      4       20:03   0:01\n",
                 LogTop.summaryToString(summary, true));
     }
+
+    @Test
+    public void testSummaryWriter() throws IOException {
+        Summary summary = new Summary();
+        summary.uniqueUsers = 666;
+        summary.top.add(new Summary.User("sally-bob", 123, 3, 113, 1));
+        summary.top.add(new Summary.User("leroy", 12, 4, 1203, 1));
+        summary.top.add(new Summary.User("\"bob\", jr.\\\u0001", 1, 1, 1, 1));
+
+        assertEquals("id,pages,sessions,longest,shortest\n" +
+                     "sally-bob,123,3,1,0\n" +
+                     "leroy,12,4,20,0\n" +
+                     "\"\"\"bob\"\", jr.\\\u0001\",1,1,0,0\n",
+                write(summary, SummaryWriter.CSV, false));
+
+        assertEquals("{\"uniqueUsers\":666}\n" +
+                     "{\"id\":\"sally-bob\",\"pages\":123,\"sessions\":3,\"longest\":\"1:53\",\"shortest\":\"0:01\"}\n" +
+                     "{\"id\":\"leroy\",\"pages\":12,\"sessions\":4,\"longest\":\"20:03\",\"shortest\":\"0:01\"}\n" +
+                     "{\"id\":\"\\\"bob\\\", jr.\\\\\\u0001\",\"pages\":1,\"sessions\":1,\"longest\":\"0:01\",\"shortest\":\"0:01\"}\n",
+                write(summary, SummaryWriter.JSON_LINES, true));
+
+        //  enough users to fill up its buffer a few times
+        Summary big = new Summary();
+        StringBuilder expect = new StringBuilder("id,pages,sessions,longest,shortest\n");
+        for (int ii = 0; ii < 20000; ++ii) {
+            big.top.add(new Summary.User("user" + ii, Integer.MAX_VALUE - ii, ii, ii * 60, 0));
+            expect.append("user" + ii + "," + (Integer.MAX_VALUE - ii) + "," + ii + "," + ii + ",0\n");
+        }
+        assertEquals(expect.toString(), write(big, SummaryWriter.CSV, false));
+    }
+
+    @Test
+    public void testParseTime() {
+        assertEquals(1471320000, LogTop.parseTime("1471320000"));
+        assertEquals(1471305600, LogTop.parseTime("2016-08-16"));
+        assertEquals(1471340000, LogTop.parseTime("2016-08-16T09:33:20"));
+        assertEquals(1471340000, LogTop.parseTime("2016-08-16T09:33:20Z"));
+        assertEquals(1471340000, LogTop.parseTime("2016-08-16T04:33:20-05:00"));
+        for (String bad : new String[] { "yesterday", "2016-08-32", "99999999999" }) {
+            try {
+                LogTop.parseTime(bad);
+                fail(bad);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    private String write(Summary summary, int format, boolean includeSeconds) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        SummaryWriter sw = new SummaryWriter(Channels.newChannel(out), format, includeSeconds);
+        summary.visit(sw);
+        sw.close();
+        return out.toString("UTF-8");
+    }
 }